@@ -1,25 +1,38 @@
 package ucles.weblab.common.files.blob.api;
 
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 
 /**
- * A blob encapsulates a file and stores data as a byte array.
- * 
+ * A blob encapsulates a file and stores data as a read-only buffer, which is shared rather than copied.
+ *
  * @author Sukhraj
  */
 public final class Blob implements Serializable {
-    
+
     private final BlobId id;
     private final String mimeType;
-    private final byte[] data;
+    private final transient ByteBuffer data;
     private final Instant expiryDate;
     private final String url;
-    
+
+    /**
+     * Creates a blob with the given data. The array is not copied so must not be modified afterwards.
+     */
     public Blob(BlobId id, String mimeType, byte[] data, Instant expiryDate, String url) {
+        this(id, mimeType, ByteBuffer.wrap(data), expiryDate, url);
+    }
+
+    /**
+     * Creates a blob with the remaining content of the given buffer, which is not copied.
+     */
+    public Blob(BlobId id, String mimeType, ByteBuffer data, Instant expiryDate, String url) {
         this.id = id;
         this.mimeType = mimeType;
-        this.data = data.clone();
+        this.data = data.slice().asReadOnlyBuffer();
         this.expiryDate = expiryDate;
         this.url = url;
     }
@@ -27,15 +40,31 @@ public final class Blob implements Serializable {
     public BlobId getId() {
         return id;
     }
-    
+
     public String getMimeType() {
         return mimeType;
     }
-    
+
+    /**
+     * Returns a copy of the data. Prefer {@link #getContent()}, which does not copy it.
+     */
     public byte[] getData() {
-        return data;
+        final byte[] copy = new byte[data.remaining()];
+        data.duplicate().get(copy);
+        return copy;
     }
-    
+
+    /**
+     * Returns a read-only view of the data, with its own position and limit.
+     */
+    public ByteBuffer getContent() {
+        return data.duplicate();
+    }
+
+    public int getLength() {
+        return data.remaining();
+    }
+
     public Instant getExpiryDate() {
         return expiryDate;
     }
@@ -43,9 +72,42 @@ public final class Blob implements Serializable {
     public String getUrl() {
         return url;
     }
- 
+
     @Override
     public String toString() {
         return this.getClass().getSimpleName() + " id[" + id + "] mimeType[" + mimeType + "]";
     }
+
+    /**
+     * Buffers are not serializable, so a blob is serialized as a copy with its data in an array.
+     */
+    private Object writeReplace() {
+        return new SerializedForm(this);
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("Serialized form required");
+    }
+
+    private static class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final BlobId id;
+        private final String mimeType;
+        private final byte[] data;
+        private final Instant expiryDate;
+        private final String url;
+
+        SerializedForm(Blob blob) {
+            this.id = blob.id;
+            this.mimeType = blob.mimeType;
+            this.data = blob.getData();
+            this.expiryDate = blob.expiryDate;
+            this.url = blob.url;
+        }
+
+        private Object readResolve() {
+            return new Blob(id, mimeType, data, expiryDate, url);
+        }
+    }
 }
@@ -1,7 +1,10 @@
 package ucles.weblab.common.files.blob.api;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
@@ -30,6 +33,47 @@ public interface BlobStoreService {
      * @throws BlobStoreException 
      */
     Optional<BlobStoreResult> putBlob(BlobId id, String mimeType, byte data[], Instant purgeTime) throws BlobStoreException;
+
+    /**
+     * Save the blob with the remaining content of a buffer. Implementations should read the buffer directly rather
+     * than copying it, and must leave its position unchanged.
+     * @param id - with the specified name
+     * @param mimeType
+     * @param data
+     * @param purgeTime
+     * @return an Optional BlobStoreResult that will hold all information from the result of a 'put'
+     * @throws BlobStoreException
+     */
+    default Optional<BlobStoreResult> putBlob(BlobId id, String mimeType, ByteBuffer data, Instant purgeTime) throws BlobStoreException {
+        final byte[] copy = new byte[data.remaining()];
+        data.duplicate().get(copy);
+        return putBlob(id, mimeType, copy, purgeTime);
+    }
+    
+    /**
+     * Save the blob with the content of a stream, which implementations should send as it is read rather than reading
+     * it into memory all at once. The default implementation reads it all into memory. The caller must close the
+     * stream.
+     * @param id - with the specified name
+     * @param mimeType
+     * @param in - the content to save
+     * @param length - the exact number of bytes which the stream provides
+     * @param purgeTime
+     * @return an Optional BlobStoreResult that will hold all information from the result of a 'put'
+     * @throws BlobStoreException
+     */
+    default Optional<BlobStoreResult> putBlob(BlobId id, String mimeType, InputStream in, long length, Instant purgeTime) throws BlobStoreException {
+        if (length > Integer.MAX_VALUE) {
+            throw new BlobStoreException(id + " is too large to read into memory: " + length + " bytes");
+        }
+        final byte[] data = new byte[(int) length];
+        try {
+            new DataInputStream(in).readFully(data);
+        } catch (IOException e) {
+            throw new BlobStoreException(e.getClass() + " thrown whilst attempting to read " + id, e);
+        }
+        return putBlob(id, mimeType, data, purgeTime);
+    }
     
     /**
      * Save the blob in the blob implementation. 
@@ -50,6 +94,19 @@ public interface BlobStoreService {
      * @throws BlobNotFoundException 
      */
     Optional<Blob> getBlob(BlobId id, boolean includeContent) throws BlobStoreException, BlobNotFoundException;
+
+    /**
+     * Open the content of the blob with the specified id, which implementations should stream rather than read into
+     * memory all at once. The caller must close the stream.
+     * @param id - the id of blob to read.
+     * @return
+     * @throws BlobStoreException
+     * @throws BlobNotFoundException
+     */
+    default InputStream openBlob(BlobId id) throws BlobStoreException, BlobNotFoundException {
+        final Blob blob = getBlob(id, true).orElseThrow(() -> new BlobNotFoundException(id + " not found"));
+        return new ByteBufferInputStream(blob.getContent());
+    }
     
     /**
      * Get a blob with an id that matches the prefix passed in and has the same suffix as parameter. Both
@@ -78,6 +135,21 @@ public interface BlobStoreService {
      * @throws BlobStoreException 
      */
     void removeBlob(BlobId id) throws BlobStoreException;
+
+    /**
+     * Remove the blobs whose ids start with the prefix and which were last written before the specified instant, e.g.
+     * those past an expiry which is the same length for every blob with that prefix. Blobs with other ids are left
+     * alone whenever they were written. Implementations should do so without reading each blob, and the default
+     * implementation, which cannot tell when a blob was written, does nothing.
+     * @param prefix - only blobs whose ids start with this are removed
+     * @param cutOff - blobs written before this are removed
+     * @return the number of blobs removed, or empty if not supported, in which case the caller must find and remove
+     * blobs itself
+     * @throws BlobStoreException
+     */
+    default Optional<Long> removeBlobsModifiedBefore(String prefix, Instant cutOff) throws BlobStoreException {
+        return Optional.empty();
+    }
     
     /**
      * Rename the file represented by oldBlob with the id of new blob Id. 
@@ -96,6 +168,20 @@ public interface BlobStoreService {
      * @throws BlobNotFoundException 
      */
     Optional<URI> getUrl(BlobId blobId) throws BlobStoreException, BlobNotFoundException;
+
+    /**
+     * Get a url of the Blob which need only work until the specified instant, such as a pre-signed url which gives
+     * access to a private blob for a short time. The default implementation returns the same url as
+     * {@link #getUrl(BlobId)}.
+     * @param blobId
+     * @param expiry - the url may stop working after this
+     * @return
+     * @throws BlobStoreException
+     * @throws BlobNotFoundException
+     */
+    default Optional<URI> getUrl(BlobId blobId, Instant expiry) throws BlobStoreException, BlobNotFoundException {
+        return getUrl(blobId);
+    }
     
     /**
      * Return a flag if the blob id exists in the blob store implementation. 
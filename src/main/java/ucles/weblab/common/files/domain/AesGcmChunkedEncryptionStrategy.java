@@ -0,0 +1,331 @@
+package ucles.weblab.common.files.domain;
+
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Streaming encryption with AES-GCM.
+ * The plain data is split into fixed-size segments, each of which is encrypted and authenticated separately, so that
+ * only one segment need be held in memory whatever the size of the file. The encrypted data consists of a header
+ * (format version, segment size and a random 7-byte nonce prefix) followed by each encrypted segment with its tag.
+ * <p>
+ * The 12-byte nonce for each segment is the prefix, then the segment index, then a flag marking the final segment.
+ * Segments cannot therefore be reordered, and truncation of the data at a segment boundary is detected.
+ * </p>
+ *
+ * @since 18/10/26
+ */
+public class AesGcmChunkedEncryptionStrategy implements EncryptionStrategy {
+    /** Default plaintext segment size. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    /** Upper bound on the segment size accepted from a header, so corrupt data cannot demand huge buffers. */
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int NONCE_PREFIX_BYTES = 7;
+    private static final int HEADER_BYTES = 1 + 4 + NONCE_PREFIX_BYTES;
+    private static final int GCM_TAG_BITS = 128;
+    private static final int GCM_TAG_BYTES = GCM_TAG_BITS / 8;
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    private final byte[] aad;
+    private final int segmentSize;
+
+    public AesGcmChunkedEncryptionStrategy(String aad) {
+        this(aad, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public AesGcmChunkedEncryptionStrategy(String aad, int segmentSize) {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size out of range: " + segmentSize);
+        }
+        this.aad = aad == null ? null : aad.getBytes();
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public boolean supports(String cipher) {
+        return cipher.equals(EncryptionService.CIPHER_AES_GCM_CHUNKED);
+    }
+
+    @Override
+    public byte[] encrypt(String cipherName, byte[] key, byte[] plainData) {
+        try (InputStream in = encryptingStream(cipherName, key, new ByteArrayInputStream(plainData))) {
+            return StreamUtils.copyToByteArray(in);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public byte[] decrypt(String cipherName, byte[] key, byte[] encryptedData) {
+        try (InputStream in = decryptingStream(cipherName, key, new ByteArrayInputStream(encryptedData))) {
+            return StreamUtils.copyToByteArray(in);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public InputStream encryptingStream(String cipherName, byte[] key, InputStream plainData) {
+        final byte[] header = new byte[HEADER_BYTES];
+        ByteBuffer.wrap(header).put(FORMAT_VERSION).putInt(segmentSize);
+        final byte[] noncePrefix = new byte[NONCE_PREFIX_BYTES];
+        RANDOM.get().nextBytes(noncePrefix);
+        System.arraycopy(noncePrefix, 0, header, HEADER_BYTES - NONCE_PREFIX_BYTES, NONCE_PREFIX_BYTES);
+        return new EncryptingInputStream(plainData, new SecretKeySpec(key, "AES"), segmentSize, noncePrefix, header);
+    }
+
+    @Override
+    public InputStream decryptingStream(String cipherName, byte[] key, InputStream encryptedData) throws IOException {
+        final byte[] header = new byte[HEADER_BYTES];
+        if (fill(encryptedData, header, 0, HEADER_BYTES) < HEADER_BYTES) {
+            throw new EOFException("Encrypted data is too short to contain a header");
+        }
+        final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        final byte version = headerBuffer.get();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported " + EncryptionService.CIPHER_AES_GCM_CHUNKED + " format version: " + version);
+        }
+        final int encryptedSegmentSize = headerBuffer.getInt();
+        if (encryptedSegmentSize <= 0 || encryptedSegmentSize > MAX_SEGMENT_SIZE) {
+            throw new IOException("Invalid segment size in header: " + encryptedSegmentSize);
+        }
+        final byte[] noncePrefix = new byte[NONCE_PREFIX_BYTES];
+        headerBuffer.get(noncePrefix);
+        return new DecryptingInputStream(encryptedData, new SecretKeySpec(key, "AES"), encryptedSegmentSize, noncePrefix);
+    }
+
+    @Override
+    public long encryptedLength(String cipherName, long plainLength) {
+        final long segments = Math.max(1, (plainLength + segmentSize - 1) / segmentSize);
+        return HEADER_BYTES + plainLength + segments * GCM_TAG_BYTES;
+    }
+
+    private Cipher initCipher(Cipher cipher, int mode, SecretKeySpec key, byte[] noncePrefix, long segment, boolean last)
+            throws GeneralSecurityException, IOException {
+        if (segment > 0xFFFFFFFFL) {
+            throw new IOException("Too many segments for a single file");
+        }
+        final byte[] nonce = ByteBuffer.allocate(NONCE_PREFIX_BYTES + 5)
+                .put(noncePrefix)
+                .putInt((int) segment)
+                .put((byte) (last ? 1 : 0))
+                .array();
+        cipher.init(mode, key, new GCMParameterSpec(GCM_TAG_BITS, nonce));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return cipher;
+    }
+
+    Cipher createCipher() throws GeneralSecurityException {
+        return Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    /**
+     * Reads as many bytes as are available up to the given length, returning the number read.
+     */
+    private static int fill(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int count = in.read(buffer, offset + total, length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Base for the encrypting and decrypting streams. Each reads one input segment ahead by a single byte, so that
+     * the final segment can be identified when it is reached.
+     */
+    private abstract class SegmentInputStream extends FilterInputStream {
+        final SecretKeySpec key;
+        final byte[] noncePrefix;
+        final Cipher cipher;
+        private final byte[] single = new byte[1];
+        private final byte[] input;
+        private final int inputSegmentSize;
+        final byte[] output;
+        int outputPosition;
+        int outputLimit;
+        private int lookahead;
+        long segment;
+        private boolean finished;
+
+        SegmentInputStream(InputStream in, SecretKeySpec key, int inputSegmentSize, int outputSegmentSize, byte[] noncePrefix) {
+            super(in);
+            this.key = key;
+            this.noncePrefix = noncePrefix;
+            this.inputSegmentSize = inputSegmentSize;
+            this.input = new byte[inputSegmentSize + 1];
+            this.output = new byte[outputSegmentSize];
+            try {
+                this.cipher = createCipher();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        abstract int process(byte[] input, int length, boolean last) throws GeneralSecurityException, IOException;
+
+        /**
+         * Number of output bytes in every segment but the last, if a segment can be skipped without processing it,
+         * or zero if not.
+         */
+        int skippableSegmentOutput() {
+            return 0;
+        }
+
+        private boolean nextSegment() throws IOException {
+            if (finished) {
+                return false;
+            }
+            final int count = fillSegment();
+            processSegment(count, count <= inputSegmentSize);
+            return true;
+        }
+
+        private int fillSegment() throws IOException {
+            return lookahead + fill(in, input, lookahead, input.length - lookahead);
+        }
+
+        private void processSegment(int count, boolean last) throws IOException {
+            try {
+                outputLimit = process(input, last ? count : inputSegmentSize, last);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Segment " + segment + " could not be processed", e);
+            }
+            outputPosition = 0;
+            advance(last);
+        }
+
+        private void advance(boolean last) {
+            segment++;
+            if (last) {
+                finished = true;
+                lookahead = 0;
+            } else {
+                input[0] = input[inputSegmentSize];
+                lookahead = 1;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (outputPosition == outputLimit) {
+                if (!nextSegment()) {
+                    return -1;
+                }
+            }
+            final int count = Math.min(len, outputLimit - outputPosition);
+            System.arraycopy(output, outputPosition, b, off, count);
+            outputPosition += count;
+            return count;
+        }
+
+        /**
+         * Skips output, without processing any whole segment which is skipped where possible. A skipped segment is
+         * not authenticated, but none of its content is returned either.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            final int buffered = (int) Math.min(n, outputLimit - outputPosition);
+            outputPosition += buffered;
+            long remaining = n - buffered;
+            final int skippable = skippableSegmentOutput();
+            while (remaining > 0 && !finished) {
+                final int count = fillSegment();
+                final boolean last = count <= inputSegmentSize;
+                if (!last && skippable > 0 && remaining >= skippable) {
+                    advance(false);
+                    remaining -= skippable;
+                } else {
+                    processSegment(count, last);
+                    final int skipped = (int) Math.min(remaining, outputLimit);
+                    outputPosition = skipped;
+                    remaining -= skipped;
+                }
+            }
+            return n - remaining;
+        }
+
+        @Override
+        public int available() {
+            return outputLimit - outputPosition;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+    }
+
+    private class EncryptingInputStream extends SegmentInputStream {
+        EncryptingInputStream(InputStream in, SecretKeySpec key, int segmentSize, byte[] noncePrefix, byte[] header) {
+            super(in, key, segmentSize, Math.max(segmentSize + GCM_TAG_BYTES, header.length), noncePrefix);
+            System.arraycopy(header, 0, output, 0, header.length);
+            outputLimit = header.length;
+        }
+
+        @Override
+        int process(byte[] input, int length, boolean last) throws GeneralSecurityException, IOException {
+            return initCipher(cipher, Cipher.ENCRYPT_MODE, key, noncePrefix, segment, last)
+                    .doFinal(input, 0, length, output, 0);
+        }
+    }
+
+    private class DecryptingInputStream extends SegmentInputStream {
+        DecryptingInputStream(InputStream in, SecretKeySpec key, int segmentSize, byte[] noncePrefix) {
+            super(in, key, segmentSize + GCM_TAG_BYTES, segmentSize, noncePrefix);
+        }
+
+        @Override
+        int skippableSegmentOutput() {
+            return output.length;
+        }
+
+        @Override
+        int process(byte[] input, int length, boolean last) throws GeneralSecurityException, IOException {
+            if (length < GCM_TAG_BYTES) {
+                throw new EOFException("Segment " + segment + " is truncated");
+            }
+            return initCipher(cipher, Cipher.DECRYPT_MODE, key, noncePrefix, segment, last)
+                    .doFinal(input, 0, length, output, 0);
+        }
+    }
+}
@@ -1,43 +1,40 @@
 package ucles.weblab.common.files.domain;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
-import java.security.Security;
-import java.security.spec.AlgorithmParameterSpec;
 import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Encryption with AES-GCM.
  * The encrypted data consists of a 16-byte random IV followed by the actual ciphertext. This ensures that a different
  * ciphertext will be produced even for the same key and plaintext.
+ * <p>
+ * Each thread keeps its own {@link Cipher} and {@link SecureRandom}, as looking up the cipher provider and seeding a
+ * new random number generator on every call are expensive. A cipher is initialised afresh for every operation so
+ * no state carries over between files.
+ * </p>
  * @author Gareth Boden
  */
 public class AesGcmEncryptionStrategy implements EncryptionStrategy {
-    private static final Logger log = LoggerFactory.getLogger(AesGcmEncryptionStrategy.class);
-    private static final boolean JDK8_PLUS = System.getProperty("java.specification.version").compareTo("1.8") >= 0;
     private static final int GCM_TAG_BITS = 128;
+    private static final int IV_BYTES = 16;
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
 
     /*Optional property string to update aad of the cipher */
-    private String aad;
-    
-    public AesGcmEncryptionStrategy(String aad) {
-        this.aad = aad;
-    }
-    
-    static {
-        // If we're on JDK < 8 then we need Bouncy Castle to implement AES-GCM. Otherwise it's built in.
-        if (!JDK8_PLUS && Security.getProvider("BC") == null) {
-            try {
-                Security.addProvider((java.security.Provider) Class.forName("org.bouncycastle.jce.provider.BouncyCastleProvider").newInstance());
-            } catch (Exception e) {
-                throw new IllegalStateException("JDK <8 and no Bouncy Castle available.", e);
-            }
+    private final byte[] aad;
+
+    private final ThreadLocal<Cipher> cipher = ThreadLocal.withInitial(() -> {
+        try {
+            return createCipher();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
         }
+    });
+
+    public AesGcmEncryptionStrategy(String aad) {
+        this.aad = aad == null ? null : aad.getBytes();
     }
 
     @Override
@@ -48,22 +45,17 @@ public class AesGcmEncryptionStrategy implements EncryptionStrategy {
     @Override
     public byte[] encrypt(String cipherName, byte[] key, byte[] data) {
         try {
-            Cipher cipher = createCipher();
-            final SecureRandom random = new SecureRandom();
-            final byte iv[] = new byte[cipher.getBlockSize()];
-            random.nextBytes(iv);
-            
-            
-            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), constructParamSpec(iv));
+            final Cipher cipher = this.cipher.get();
+            final byte[] encryptedData = new byte[(int) encryptedLength(cipherName, data.length)];
+            final byte[] iv = new byte[IV_BYTES];
+            RANDOM.get().nextBytes(iv);
+            System.arraycopy(iv, 0, encryptedData, 0, IV_BYTES);
+
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_TAG_BITS, iv));
             if (aad != null) {
-                cipher.updateAAD(aad.getBytes());
+                cipher.updateAAD(aad);
             }
-            
-            final byte[] buffer = new byte[cipher.getOutputSize(data.length)];
-            final int outputSize = cipher.doFinal(data, 0, data.length, buffer);
-            final byte[] encryptedData = new byte[iv.length + outputSize];
-            System.arraycopy(iv, 0, encryptedData, 0, iv.length);
-            System.arraycopy(buffer, 0, encryptedData, iv.length, outputSize);
+            cipher.doFinal(data, 0, data.length, encryptedData, IV_BYTES);
             return encryptedData;
         } catch (GeneralSecurityException e) {
             throw new IllegalStateException(e);
@@ -71,83 +63,26 @@ public class AesGcmEncryptionStrategy implements EncryptionStrategy {
     }
 
     @Override
-    @SuppressWarnings("UnnecessaryLocalVariable")
     public byte[] decrypt(String cipherName, byte[] key, byte[]encryptedData) {
         try {
-            Cipher cipher = createCipher();
-            final int blockSize = cipher.getBlockSize();
-            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), constructParamSpec(encryptedData, blockSize));
-            
+            final Cipher cipher = this.cipher.get();
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_TAG_BITS, encryptedData, 0, IV_BYTES));
             if (aad != null) {
-                cipher.updateAAD(aad.getBytes());
+                cipher.updateAAD(aad);
             }
-            return cipher.doFinal(encryptedData, blockSize, encryptedData.length - blockSize);
+            return cipher.doFinal(encryptedData, IV_BYTES, encryptedData.length - IV_BYTES);
         } catch (GeneralSecurityException e) {
             throw new IllegalStateException(e);
         }
     }
 
-    Cipher createCipher() throws GeneralSecurityException {
-        return Cipher.getInstance("AES/GCM/NoPadding");
-    }
-
-    /**
-     * Build an <code>AlgorithmParameterSpec</code> instance used to initialize a <code>Cipher</code> instance
-     * for AES-GCM block cipher encryption. Uses IvParameterSpec below JDK8 and
-     * GCMParameterSpec from JDK8 on.
-     *
-     * @param iv the initialization vector
-     * @return the newly constructed AlgorithmParameterSpec instance, appropriate for the JDK version.
-     */
-    private AlgorithmParameterSpec constructParamSpec(byte[] iv) {
-        if (JDK8_PLUS) {
-            // Same as: new GCMParameterSpec(GCM_TAG_BITS, iv)
-            log.trace("JDK8 or higher: Attempting to create GCMParameterSpec");
-            try {
-                Class gcmSpecClass = Class.forName("javax.crypto.spec.GCMParameterSpec");
-                @SuppressWarnings("unchecked")
-                AlgorithmParameterSpec gcmSpec = (AlgorithmParameterSpec) gcmSpecClass.getConstructor(int.class, byte[].class)
-                        .newInstance(GCM_TAG_BITS, iv);
-                log.trace("Successfully created GCMParameterSpec");
-                return gcmSpec;
-            } catch (Exception e) {
-                log.debug("Failed to create GCMParameterSpec, falling back to returning IvParameterSpec", e);
-                return new IvParameterSpec(iv);
-            }
-
-        } else {
-            log.trace("JDK7 or below: returning IvParameterSpec");
-            return new IvParameterSpec(iv);
-        }
+    @Override
+    public long encryptedLength(String cipherName, long plainLength) {
+        // IV of one block, then the ciphertext (the same length as the plain data) with its authentication tag
+        return IV_BYTES + plainLength + GCM_TAG_BITS / 8;
     }
 
-    /**
-     * Build an <code>AlgorithmParameterSpec</code> instance used to initialize a <code>Cipher</code> instance
-     * for AES-GCM block cipher decryption. Requires JDK8+.Uses IvParameterSpec below JDK8 and GCMParameterSpec from JDK8 on.
-     *
-     * @param encryptedData the encrypted data
-     * @param blockSize the block size (from Cipher)
-     * @return the newly constructed AlgorithmParameterSpec instance, appropriate for the JDK version.
-     */
-    private AlgorithmParameterSpec constructParamSpec(byte[] encryptedData, int blockSize) {
-        if (JDK8_PLUS) {
-            // Same as: new GCMParameterSpec(GCM_TAG_BITS, encryptedData, 0, blockSize);
-            log.trace("JDK8 or higher: Attempting to create GCMParameterSpec");
-            try {
-                Class gcmSpecClass = Class.forName("javax.crypto.spec.GCMParameterSpec");
-                @SuppressWarnings("unchecked")
-                AlgorithmParameterSpec gcmSpec = (AlgorithmParameterSpec) gcmSpecClass.getConstructor(int.class, byte[].class, int.class, int.class)
-                        .newInstance(GCM_TAG_BITS, encryptedData, 0, blockSize);
-                log.trace("Successfully created GCMParameterSpec");
-                return gcmSpec;
-            } catch (Exception e) {
-                log.debug("Failed to create GCMParameterSpec, falling back to returning IvParameterSpec", e);
-                return new IvParameterSpec(encryptedData, 0, blockSize);
-            }
-
-        } else {
-            log.trace("JDK7 or below: returning IvParameterSpec");
-            return new IvParameterSpec(encryptedData, 0, blockSize);
-        }
+    Cipher createCipher() throws GeneralSecurityException {
+        return Cipher.getInstance("AES/GCM/NoPadding");
     }
 }
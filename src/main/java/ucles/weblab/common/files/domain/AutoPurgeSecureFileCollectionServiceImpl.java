@@ -3,28 +3,69 @@ package ucles.weblab.common.files.domain;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.AsyncResult;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.scheduling.annotation.Scheduled;
 
-import javax.transaction.Transactional;
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Implementation of the service which as well as providing an on-demand purge also schedules an automatic purge
  * of expired file collections every day.
+ * <p>
+ * Purges run in the background, on a thread of their own unless an executor named {@code filesPurgeExecutor} is
+ * provided, and only one runs at a time. Each expired collection is emptied in batches of {@code files.purge.batchSize}
+ * files, each deleted in a short transaction of its own so that uploads are not blocked for long, and the purge can
+ * be throttled by pausing for {@code files.purge.batchDelayMillis} between batches. Nothing is kept between batches,
+ * so a purge which is interrupted, e.g. by a crash, carries on from where it stopped the next time it runs.
+ * Repositories which can delete a whole collection's files at once, such as MongoDB dropping GridFS buckets, do so
+ * instead of deleting in batches.
+ * Progress is published as {@code files.purge.*} actuator metrics.
+ * </p>
  *
  * @since 24/07/15
  */
-@Transactional
-public class AutoPurgeSecureFileCollectionServiceImpl implements SecureFileCollectionService {
+public class AutoPurgeSecureFileCollectionServiceImpl implements SecureFileCollectionService, PublicMetrics {
+    private static final String METRIC_PREFIX = "files.purge.";
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private Clock clock = Clock.systemUTC();
 
     private final SecureFileCollectionRepository secureFileCollectionRepository;
     private final SecureFileRepository secureFileRepository;
 
+    private Executor executor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "secure-file-purge");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int batchSize = 1000;
+    private Duration batchDelay = Duration.ZERO;
+
+    /** The purge in progress, if any, which is returned to anyone asking for another purge meanwhile. */
+    private final AtomicReference<CompletableFuture<Long>> runningPurge = new AtomicReference<>();
+
+    private final AtomicLong filesPurged = new AtomicLong();
+    private final AtomicLong collectionsPurged = new AtomicLong();
+    private final AtomicLong lastRunFilesPurged = new AtomicLong();
+    private volatile long lastRunStartNanos;
+    private volatile long lastRunEndNanos;
+
     public AutoPurgeSecureFileCollectionServiceImpl(SecureFileCollectionRepository secureFileCollectionRepository, SecureFileRepository secureFileRepository) {
         this.secureFileCollectionRepository = secureFileCollectionRepository;
         this.secureFileRepository = secureFileRepository;
@@ -36,6 +77,23 @@ public class AutoPurgeSecureFileCollectionServiceImpl implements SecureFileColle
         this.clock = clock;
     }
 
+    @Autowired(required = false) // will fall back to a thread of its own
+    void configureExecutor(@Qualifier("filesPurgeExecutor") Executor executor) {
+        logger.info("Purge executor overridden with " + executor);
+        this.executor = executor;
+    }
+
+    @Autowired
+    void configureBatches(@Value("${files.purge.batchSize:1000}") int batchSize,
+                          @Value("${files.purge.batchDelayMillis:0}") long batchDelayMillis) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Purge batch size must be positive: " + batchSize);
+        }
+        logger.info("Purging in batches of " + batchSize + " files, " + batchDelayMillis + "ms apart");
+        this.batchSize = batchSize;
+        this.batchDelay = Duration.ofMillis(batchDelayMillis);
+    }
+
     /**
      * Scheduled job to purge the repositories once a day at 4am (or override with {@code files.purge.cron}).
      */
@@ -45,15 +103,107 @@ public class AutoPurgeSecureFileCollectionServiceImpl implements SecureFileColle
         purgeRepository();
     }
 
+    /**
+     * Starts a purge in the background, unless one is already running in which case that one is returned instead.
+     */
+    @Override
     public Future<Long> purgeRepository() {
+        while (true) {
+            final CompletableFuture<Long> current = runningPurge.get();
+            if (current != null) {
+                logger.info("Secure file collections are already being purged.");
+                return current;
+            }
+            final CompletableFuture<Long> purge = new CompletableFuture<>();
+            if (runningPurge.compareAndSet(null, purge)) {
+                try {
+                    executor.execute(() -> run(purge));
+                } catch (RejectedExecutionException e) {
+                    runningPurge.set(null);
+                    purge.completeExceptionally(e);
+                }
+                return purge;
+            }
+        }
+    }
+
+    private void run(CompletableFuture<Long> purge) {
+        final Long count;
+        try {
+            try {
+                count = purge();
+            } finally {
+                // Cleared before completing, so that whoever is waiting on the purge can start another.
+                runningPurge.set(null);
+            }
+        } catch (Throwable e) {
+            logger.error("Failed purging secure file collections.", e);
+            purge.completeExceptionally(e);
+            throw e;
+        }
+        purge.complete(count);
+    }
+
+    private Long purge() {
         logger.info("Purging secure file collections…");
-        Instant now = Instant.now(clock);
-        final Integer fileCount = secureFileRepository.deleteByCollectionPurgeInstantBefore(now);
-        final Long count = secureFileCollectionRepository.removeByPurgeInstantBefore(now);
+        final Instant now = Instant.now(clock);
+        lastRunFilesPurged.set(0);
+        lastRunStartNanos = System.nanoTime();
+        lastRunEndNanos = 0;
+        try {
+            final Collection<? extends SecureFileCollectionEntity> expired = secureFileCollectionRepository.findAllByPurgeInstantBefore(now);
+            final Optional<Long> deletedAtOnce = expired.isEmpty() ? Optional.of(0L) : secureFileRepository.deleteAllByCollectionIn(expired);
+            if (deletedAtOnce.isPresent()) {
+                lastRunFilesPurged.addAndGet(deletedAtOnce.get());
+                filesPurged.addAndGet(deletedAtOnce.get());
+            } else {
+                for (SecureFileCollectionEntity collection : expired) {
+                    int deleted;
+                    do {
+                        deleted = secureFileRepository.deleteBatchByCollection(collection, batchSize);
+                        lastRunFilesPurged.addAndGet(deleted);
+                        filesPurged.addAndGet(deleted);
+                        if (deleted >= batchSize) {
+                            pause();
+                        }
+                    } while (deleted >= batchSize);
+                }
+            }
+            final Long count = secureFileCollectionRepository.removeByPurgeInstantBefore(now);
+            collectionsPurged.addAndGet(count);
 
-        logger.debug("Purged files - {} secure file collections purged containing {} files.", count, fileCount);
+            logger.debug("Purged files - {} secure file collections purged containing {} files.", count, lastRunFilesPurged.get());
 
-        logger.info("Finished purging secure file collections.");
-        return new AsyncResult<>(count);
+            logger.info("Finished purging secure file collections.");
+            return count;
+        } finally {
+            lastRunEndNanos = System.nanoTime();
+        }
+    }
+
+    private void pause() {
+        if (!batchDelay.isZero()) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(batchDelay.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Purge interrupted", e);
+            }
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final long start = lastRunStartNanos;
+        final long end = lastRunEndNanos;
+        final long files = lastRunFilesPurged.get();
+        final long elapsedNanos = start == 0 ? 0 : (end == 0 ? System.nanoTime() : end) - start;
+        final double filesPerSecond = elapsedNanos <= 0 ? 0 : files * 1e9 / elapsedNanos;
+        return Arrays.asList(
+                new Metric<>(METRIC_PREFIX + "running", runningPurge.get() != null ? 1 : 0),
+                new Metric<>(METRIC_PREFIX + "files", filesPurged.get()),
+                new Metric<>(METRIC_PREFIX + "collections", collectionsPurged.get()),
+                new Metric<>(METRIC_PREFIX + "lastRun.files", files),
+                new Metric<>(METRIC_PREFIX + "lastRun.filesPerSecond", filesPerSecond));
     }
 }
@@ -1,5 +1,7 @@
 package ucles.weblab.common.files.domain;
 
+import java.io.InputStream;
+
 /** A dummy implementation which doesn't actually encrypt or decrypt. */
 public class DummyEncryptionStrategy implements EncryptionStrategy {
     @Override
@@ -16,4 +18,19 @@ public class DummyEncryptionStrategy implements EncryptionStrategy {
     public byte[] decrypt(String cipher, byte[] key, byte[] encryptedData) {
         return encryptedData;
     }
+
+    @Override
+    public long encryptedLength(String cipherName, long plainLength) {
+        return plainLength;
+    }
+
+    @Override
+    public InputStream encryptingStream(String cipherName, byte[] key, InputStream plainData) {
+        return plainData;
+    }
+
+    @Override
+    public InputStream decryptingStream(String cipherName, byte[] key, InputStream encryptedData) {
+        return encryptedData;
+    }
 }
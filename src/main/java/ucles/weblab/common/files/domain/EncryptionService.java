@@ -1,12 +1,34 @@
 package ucles.weblab.common.files.domain;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * @since 18/03/15
  */
 public interface EncryptionService {
     String CIPHER_NONE = "NONE";
     String CIPHER_AES_GCM = "AES-GCM";
+    /** AES-GCM applied to fixed-size, separately authenticated segments, so files can be processed as streams. */
+    String CIPHER_AES_GCM_CHUNKED = "AES-GCM-CH";
 
     byte[] encrypt(String cipherName, byte[] fileKey, byte[] plainData);
     byte[] decrypt(String cipherName, byte[] fileKey, byte[] encryptedData);
+
+    /**
+     * Wraps a stream of plain data so that it is encrypted as it is read.
+     * The caller is responsible for closing the returned stream, which closes the one supplied.
+     */
+    InputStream encryptingStream(String cipherName, byte[] fileKey, InputStream plainData) throws IOException;
+
+    /**
+     * Wraps a stream of encrypted data so that it is decrypted as it is read.
+     * The caller is responsible for closing the returned stream, which closes the one supplied.
+     */
+    InputStream decryptingStream(String cipherName, byte[] fileKey, InputStream encryptedData) throws IOException;
+
+    /**
+     * Length of the data produced by encrypting plain data of the given length, or -1 if it cannot be known in advance.
+     */
+    long encryptedLength(String cipherName, long plainLength);
 }
@@ -1,9 +1,12 @@
 package ucles.weblab.common.files.domain;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collection;
 
 /**
- * Provides in-memory encryption and decryption services for files, with multiple cipher implementations.
+ * Provides encryption and decryption services for files, with multiple cipher implementations.
+ * Data can be processed either in memory or as streams.
  *
  * @since 18/03/15
  */
@@ -18,23 +21,33 @@ public class EncryptionServiceImpl implements EncryptionService {
 
     @Override
     public byte[] encrypt(String cipherName, byte[] fileKey, byte[] plainData) {
-        byte[] combinedKey = combineKeys(secretKey, fileKey);
-
-        for (EncryptionStrategy delegate : delegates) {
-            if (delegate.supports(cipherName)) {
-                return delegate.encrypt(cipherName, combinedKey, plainData);
-            }
-        }
-        throw new IllegalArgumentException("No encryption strategy known for: " + cipherName);
+        return findStrategy(cipherName).encrypt(cipherName, combineKeys(secretKey, fileKey), plainData);
     }
 
     @Override
     public byte[] decrypt(String cipherName, byte[] fileKey, byte[] encryptedData) {
-        byte[] combinedKey = combineKeys(secretKey, fileKey);
+        return findStrategy(cipherName).decrypt(cipherName, combineKeys(secretKey, fileKey), encryptedData);
+    }
+
+    @Override
+    public InputStream encryptingStream(String cipherName, byte[] fileKey, InputStream plainData) throws IOException {
+        return findStrategy(cipherName).encryptingStream(cipherName, combineKeys(secretKey, fileKey), plainData);
+    }
+
+    @Override
+    public InputStream decryptingStream(String cipherName, byte[] fileKey, InputStream encryptedData) throws IOException {
+        return findStrategy(cipherName).decryptingStream(cipherName, combineKeys(secretKey, fileKey), encryptedData);
+    }
+
+    @Override
+    public long encryptedLength(String cipherName, long plainLength) {
+        return findStrategy(cipherName).encryptedLength(cipherName, plainLength);
+    }
 
+    private EncryptionStrategy findStrategy(String cipherName) {
         for (EncryptionStrategy delegate : delegates) {
             if (delegate.supports(cipherName)) {
-                return delegate.decrypt(cipherName, combinedKey, encryptedData);
+                return delegate;
             }
         }
         throw new IllegalArgumentException("No encryption strategy known for: " + cipherName);
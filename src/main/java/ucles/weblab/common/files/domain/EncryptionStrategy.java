@@ -1,9 +1,45 @@
 package ucles.weblab.common.files.domain;
 
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 public interface EncryptionStrategy {
     boolean supports(String cipher);
 
     byte[] decrypt(@SuppressWarnings("UnusedParameters") String cipherName, byte[] key, byte[] encryptedData);
 
     byte[] encrypt(@SuppressWarnings("UnusedParameters") String cipherName, byte[] key, byte[] plainData);
+
+    /**
+     * Wraps a stream so that it is encrypted as it is read. The default implementation reads the whole stream into
+     * memory and delegates to {@link #encrypt(String, byte[], byte[])}, which suits ciphers whose format cannot be
+     * produced incrementally.
+     */
+    default InputStream encryptingStream(String cipherName, byte[] key, InputStream plainData) throws IOException {
+        try (InputStream in = plainData) {
+            return new ByteArrayInputStream(encrypt(cipherName, key, StreamUtils.copyToByteArray(in)));
+        }
+    }
+
+    /**
+     * Wraps a stream so that it is decrypted as it is read. The default implementation reads the whole stream into
+     * memory and delegates to {@link #decrypt(String, byte[], byte[])}, which suits ciphers whose format cannot be
+     * consumed incrementally.
+     */
+    default InputStream decryptingStream(String cipherName, byte[] key, InputStream encryptedData) throws IOException {
+        try (InputStream in = encryptedData) {
+            return new ByteArrayInputStream(decrypt(cipherName, key, StreamUtils.copyToByteArray(in)));
+        }
+    }
+
+    /**
+     * Length of the data produced by encrypting plain data of the given length. The default implementation returns -1,
+     * meaning the length is unknown until the data has been encrypted.
+     */
+    default long encryptedLength(@SuppressWarnings("UnusedParameters") String cipherName, long plainLength) {
+        return -1;
+    }
 }
@@ -1,8 +1,12 @@
 package ucles.weblab.common.files.domain;
 
-import java.time.Instant;
+import org.springframework.core.io.InputStreamSource;
 import ucles.weblab.common.domain.Buildable;
 
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
 /**
  * Value object (i.e. unidentified) representation of a secure file.
  *
@@ -13,12 +17,45 @@ public interface SecureFile extends Buildable<SecureFile>, SecureFileMetadata {
 
     byte[] getEncryptedData();
 
+    /**
+     * Length of the encrypted data, which implementations should find without reading the data where they can.
+     */
+    default long getEncryptedLength() {
+        return getEncryptedData().length;
+    }
+
+    /**
+     * Encrypted data as a read-only buffer, which may share the file's own copy of the data rather than copying it.
+     */
+    default ByteBuffer getEncryptedDataBuffer() {
+        return ByteBuffer.wrap(getEncryptedData()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Source of the encrypted data, which can be read as a stream instead of being held in memory.
+     * Implementations which cannot stream their data return {@code null}, in which case
+     * {@link #getEncryptedDataBuffer()} should be used.
+     */
+    default InputStreamSource getEncryptedDataSource() {
+        return null;
+    }
+
+    /**
+     * Source of the plain data, which can be read as a stream instead of being held in memory.
+     * Value objects built with {@link Builder#plainData(byte[])} rather than {@link Builder#plainDataSource(InputStreamSource)}
+     * may return {@code null}, in which case {@link #getPlainData()} should be used.
+     */
+    default InputStreamSource getPlainDataSource() {
+        return () -> new ByteArrayInputStream(getPlainData());
+    }
+
     interface Builder extends Buildable.Builder<SecureFile> {
         Builder filename(String filename);
         Builder contentType(String contentType);
         Builder length(long length);
         Builder notes(String notes);
         Builder plainData(byte[] plainData);
+        Builder plainDataSource(InputStreamSource plainDataSource);
         Builder createdDate(Instant createdDate);
     }
 }
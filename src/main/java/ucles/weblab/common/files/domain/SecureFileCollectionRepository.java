@@ -25,5 +25,7 @@ public interface SecureFileCollectionRepository {
 
     SecureFileCollectionEntity findOneByBucket(String bucket);
 
+    Collection<? extends SecureFileCollectionEntity> findAllByPurgeInstantBefore(Instant cutOff);
+
     Long removeByPurgeInstantBefore(Instant cutOff);
 }
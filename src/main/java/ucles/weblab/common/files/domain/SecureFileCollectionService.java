@@ -14,7 +14,7 @@ public interface SecureFileCollectionService {
     void scheduledPurge();
 
     /**
-     * Purge any file collections with purge instants in the past.
+     * Purge any file collections with purge instants in the past. The purge may run in the background.
      *
      * @return a future to obtain the number of collections purged, or any exception which occurred during the purge
      */
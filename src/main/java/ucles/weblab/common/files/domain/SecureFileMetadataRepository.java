@@ -1,6 +1,9 @@
 package ucles.weblab.common.files.domain;
 
+import org.springframework.data.domain.Pageable;
+
 import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -17,4 +20,9 @@ public interface SecureFileMetadataRepository {
     Optional<? extends SecureFileMetadataEntity> findOneByCollectionAndFilename(SecureFileCollectionEntity collection, String filename);
 
     Collection<? extends SecureFileMetadataEntity> findAllByCollection(SecureFileCollectionEntity collection);
+
+    /**
+     * Finds one page of the files in a collection, sorted and paged by the underlying store.
+     */
+    List<? extends SecureFileMetadataEntity> findAllByCollection(SecureFileCollectionEntity collection, Pageable pageable);
 }
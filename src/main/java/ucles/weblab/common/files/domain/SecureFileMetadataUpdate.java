@@ -0,0 +1,48 @@
+package ucles.weblab.common.files.domain;
+
+import java.util.Optional;
+
+/**
+ * Value object representing changes to a secure file's metadata. Anything left {@code null} is unchanged.
+ *
+ * @since 18/10/26
+ */
+public final class SecureFileMetadataUpdate {
+    private final String filename;
+    private final String contentType;
+    private final String notes;
+
+    public SecureFileMetadataUpdate(String filename, String contentType, String notes) {
+        this.filename = filename;
+        this.contentType = contentType;
+        this.notes = notes;
+    }
+
+    public Optional<String> getFilename() {
+        return Optional.ofNullable(filename);
+    }
+
+    public Optional<String> getContentType() {
+        return Optional.ofNullable(contentType);
+    }
+
+    public Optional<String> getNotes() {
+        return Optional.ofNullable(notes);
+    }
+
+    /**
+     * @return {@code true} if nothing would be changed
+     */
+    public boolean isEmpty() {
+        return filename == null && contentType == null && notes == null;
+    }
+
+    @Override
+    public String toString() {
+        return "SecureFileMetadataUpdate{" +
+                "filename='" + filename + '\'' +
+                ", contentType='" + contentType + '\'' +
+                ", notes='" + notes + '\'' +
+                '}';
+    }
+}
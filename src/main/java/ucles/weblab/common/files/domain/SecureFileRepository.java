@@ -26,5 +26,39 @@ public interface SecureFileRepository {
 
     void delete(SecureFileEntity file);
 
+    /**
+     * Changes a file's metadata without reading the file.
+     *
+     * @return the number of files updated, which is zero if the file does not exist
+     */
+    Integer updateMetadata(SecureFileCollectionEntity collection, String filename, SecureFileMetadataUpdate changes);
+
+    /**
+     * Deletes a file without reading it.
+     *
+     * @return the number of files deleted, which is zero if the file does not exist
+     */
+    Integer deleteByCollectionAndFilename(SecureFileCollectionEntity collection, String filename);
+
     Integer deleteByCollectionPurgeInstantBefore(Instant cutOff);
+
+    /**
+     * Deletes some of the files in a collection, in a transaction of its own, so that a large collection can be
+     * emptied without holding locks on all its files at once.
+     *
+     * @param batchSize the most files to delete
+     * @return the number of files deleted, which is less than the batch size once the collection is empty
+     */
+    Integer deleteBatchByCollection(SecureFileCollectionEntity collection, int batchSize);
+
+    /**
+     * Deletes all the files in the given collections at once, where the repository can do this more cheaply than by
+     * deleting the files in batches, e.g. by dropping whatever holds each collection's files.
+     *
+     * @return the number of files deleted, or empty if the repository cannot do this and the collections must be
+     * emptied with {@link #deleteBatchByCollection} instead
+     */
+    default Optional<Long> deleteAllByCollectionIn(Collection<? extends SecureFileCollectionEntity> collections) {
+        return Optional.empty();
+    }
 }
@@ -0,0 +1,85 @@
+package ucles.weblab.common.files.domain.jpa;
+
+import org.hibernate.annotations.Immutable;
+
+import java.io.Serializable;
+import java.util.Objects;
+import java.util.UUID;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.JoinColumn;
+import javax.persistence.Lob;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+
+/**
+ * One fixed-size part of the encrypted data of a secure file stored in chunks, similar to a GridFS chunk.
+ * Chunks are numbered from zero, and every chunk but the last is full.
+ * <p>
+ * Chunks are inserted by {@link SecureFileRepositoryJpaImpl} and read by {@link SecureFileChunkInputStream}, and are
+ * deleted by the database along with their file.
+ * </p>
+ *
+ * @since 18/10/26
+ */
+@Entity(name = "SecureFileChunk")
+@Immutable
+@Table(name = "secure_file_chunks")
+@IdClass(SecureFileChunkEntityJpa.Key.class)
+public class SecureFileChunkEntityJpa {
+    static final String TABLE = "secure_file_chunks";
+
+    @Id
+    @Column(name = "file_id")
+    private UUID fileId;
+
+    @Id
+    private int n;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "file_id", insertable = false, updatable = false)
+    private SecureFileEntityJpa file;
+
+    @Lob
+    @Column(nullable = false)
+    private byte[] data;
+
+    protected SecureFileChunkEntityJpa() {
+        // For Hibernate
+    }
+
+    public UUID getFileId() {
+        return fileId;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private UUID fileId;
+        private int n;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key that = (Key) o;
+            return n == that.n && Objects.equals(fileId, that.fileId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileId, n);
+        }
+    }
+}
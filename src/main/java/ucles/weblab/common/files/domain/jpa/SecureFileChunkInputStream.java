@@ -0,0 +1,134 @@
+package ucles.weblab.common.files.domain.jpa;
+
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+/**
+ * Reads the encrypted data of a file stored in chunks, fetching one chunk at a time as it is needed. Skipping does
+ * not fetch the chunks skipped over, so a range of the data can be read without reading what comes before it.
+ * <p>
+ * Chunks are fetched with the entity manager of the current transaction, if there is one, and otherwise with a new
+ * entity manager for each chunk, so the stream may be read after the session which loaded the file has closed.
+ * </p>
+ *
+ * @since 18/10/26
+ */
+class SecureFileChunkInputStream extends InputStream {
+    private final EntityManagerFactory entityManagerFactory;
+    private final UUID fileId;
+    private final int chunkSize;
+    private final long length;
+
+    private long position;
+    private int chunkNumber = -1;
+    private byte[] chunk;
+    private long mark;
+
+    SecureFileChunkInputStream(EntityManagerFactory entityManagerFactory, UUID fileId, int chunkSize, long length) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.fileId = fileId;
+        this.chunkSize = chunkSize;
+        this.length = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= length) {
+            return -1;
+        }
+        final int number = (int) (position / chunkSize);
+        if (number != chunkNumber) {
+            chunk = fetch(number);
+            chunkNumber = number;
+        }
+        final int offset = (int) (position % chunkSize);
+        if (offset >= chunk.length) {
+            throw new EOFException("Chunk " + number + " of file " + fileId + " is shorter than expected");
+        }
+        final int count = Math.min(len, chunk.length - offset);
+        System.arraycopy(chunk, offset, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        final long count = Math.max(0, Math.min(n, length - position));
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        if (chunk == null || position / chunkSize != chunkNumber) {
+            return 0;
+        }
+        return Math.max(0, chunk.length - (int) (position % chunkSize));
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    @Override
+    public void close() {
+        chunk = null;
+    }
+
+    private byte[] fetch(int number) throws IOException {
+        try {
+            final EntityManager transactional = EntityManagerFactoryUtils.getTransactionalEntityManager(entityManagerFactory);
+            if (transactional != null) {
+                return fetch(transactional, number);
+            }
+            final EntityManager entityManager = entityManagerFactory.createEntityManager();
+            try {
+                return fetch(entityManager, number);
+            } finally {
+                entityManager.close();
+            }
+        } catch (PersistenceException e) {
+            throw new IOException("Could not read chunk " + number + " of file " + fileId, e);
+        }
+    }
+
+    private byte[] fetch(EntityManager entityManager, int number) throws EOFException {
+        final List<byte[]> found = entityManager.createQuery(
+                "select c.data from SecureFileChunk c where c.fileId = :fileId and c.n = :n", byte[].class)
+                .setParameter("fileId", fileId)
+                .setParameter("n", number)
+                .getResultList();
+        if (found.isEmpty()) {
+            throw new EOFException("Chunk " + number + " of file " + fileId + " is missing");
+        }
+        return found.get(0);
+    }
+}
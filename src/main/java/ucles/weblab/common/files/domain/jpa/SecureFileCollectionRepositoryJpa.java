@@ -6,6 +6,7 @@ import ucles.weblab.common.files.domain.SecureFileCollectionRepository;
 
 import java.time.Instant;
 import java.util.Collection;
+import javax.transaction.Transactional;
 
 /**
  * Implementation of a secure file collection repository.
@@ -27,5 +28,9 @@ public interface SecureFileCollectionRepositoryJpa extends Repository<SecureFile
     SecureFileCollectionEntityJpa findOneByBucket(String bucket);
 
     @Override
+    Collection<SecureFileCollectionEntityJpa> findAllByPurgeInstantBefore(Instant cutOff);
+
+    @Override
+    @Transactional
     Long removeByPurgeInstantBefore(Instant cutOff);
 }
@@ -0,0 +1,60 @@
+package ucles.weblab.common.files.domain.jpa;
+
+import org.hibernate.annotations.Immutable;
+
+import java.sql.Blob;
+import java.util.Objects;
+import java.util.UUID;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+/**
+ * The encrypted data of a secure file, on its own. A {@link SecureFileEntityJpa} refers to this lazily, so loading
+ * files reads only their metadata and the data is only selected when it is actually read.
+ *
+ * @since 18/10/26
+ */
+@Entity(name = "SecureFileContent")
+@Immutable
+@Table(name = "secure_files")
+public class SecureFileContentEntityJpa {
+    @Id
+    private UUID id;
+
+    @Lob
+    private Blob encryptedData;
+
+    protected SecureFileContentEntityJpa() {
+        // For Hibernate
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    /**
+     * Locator for the data, which is streamed from the database as it is read.
+     */
+    public Blob getEncryptedData() {
+        return encryptedData;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SecureFileContentEntityJpa)) {
+            return false;
+        }
+        SecureFileContentEntityJpa that = (SecureFileContentEntityJpa) o;
+        return Objects.equals(getId(), that.getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getId());
+    }
+}
@@ -1,24 +1,43 @@
 package ucles.weblab.common.files.domain.jpa;
 
+import org.hibernate.annotations.ColumnTransformer;
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+import org.hibernate.engine.jdbc.BlobProxy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.dao.TransientDataAccessResourceException;
 import org.springframework.data.domain.Persistable;
+import org.springframework.util.StreamUtils;
 import ucles.weblab.common.files.domain.EncryptionService;
 import ucles.weblab.common.files.domain.SecureFile;
 import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
 import ucles.weblab.common.files.domain.SecureFileEntity;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.sql.Blob;
+import java.sql.SQLException;
 import java.time.Instant;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FetchType;
 import javax.persistence.Id;
+import javax.persistence.JoinColumn;
 import javax.persistence.Lob;
 import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
 import javax.persistence.PostPersist;
+import javax.persistence.PrePersist;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 
@@ -57,14 +76,50 @@ public class SecureFileEntityJpa implements Persistable<UUID>, SecureFileEntity
 
     private String notes;
 
+    /**
+     * The data to insert, unless it is stored in chunks. It is never selected, so that loading files only reads their
+     * metadata; the stored data is read through {@link #content} instead, which is only loaded when the data is.
+     */
     @Lob
     @Column(updatable = false)
-    private byte[] encryptedData;
+    @ColumnTransformer(read = "null")
+    private Blob encryptedData;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "id", insertable = false, updatable = false)
+    private SecureFileContentEntityJpa content;
+
+    /**
+     * Size of the chunks which the data is stored in, or {@code null} if it is stored in {@link #encryptedData}.
+     */
+    @Column(updatable = false)
+    private Integer chunkSize;
+
+    /**
+     * Length of the encrypted data. This is {@code null} for files stored before it was recorded, whose length is
+     * found from {@link #content}, and for new files whose cipher cannot tell the length until the data has been
+     * encrypted, until it is recorded as they are inserted.
+     */
+    @Column(updatable = false)
+    private Long encryptedLength;
+
+    @OneToMany(mappedBy = "file")
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    private List<SecureFileChunkEntityJpa> chunks;
+
+    /**
+     * Source of the plain data for a file created in this session. The blob stream above is consumed when the
+     * entity is inserted, so any reads of the data before the entity is reloaded are served from here.
+     */
+    @Transient
+    private InputStreamSource plainDataSource;
 
     @Transient
     private EncryptionService encryptionService;
     @Transient
     private String defaultCipherName;
+    @Transient
+    private EntityManagerFactory entityManagerFactory;
 
     private Instant createdDate;
 
@@ -83,7 +138,17 @@ public class SecureFileEntityJpa implements Persistable<UUID>, SecureFileEntity
         this.length = vo.getLength();
         this.notes = vo.getNotes();
         this.cipher = defaultCipherName;
-        this.encryptedData = encryptionService.encrypt(this.cipher, getFileKey(), vo.getPlainData());
+        final long plainLength;
+        if (vo.getPlainDataSource() != null) {
+            this.plainDataSource = vo.getPlainDataSource();
+            plainLength = vo.getLength();
+        } else {
+            final byte[] plainData = vo.getPlainData();
+            this.plainDataSource = new ByteArrayResource(plainData);
+            plainLength = plainData.length;
+        }
+        final long knownLength = encryptionService.encryptedLength(cipher, plainLength);
+        this.encryptedLength = knownLength < 0 ? null : knownLength;
         this.createdDate =  Instant.now();
     }
 
@@ -97,6 +162,11 @@ public class SecureFileEntityJpa implements Persistable<UUID>, SecureFileEntity
         this.encryptionService = encryptionService;
     }
 
+    @Autowired(required = false) // only needed to read files stored in chunks
+    public void configureEntityManagerFactory(EntityManagerFactory entityManagerFactory) {
+        this.entityManagerFactory = entityManagerFactory;
+    }
+
     @Autowired
     public void configureDefaultCipher(@Value("${files.security.cipher:AES-GCM}") String cipherName) {
         this.defaultCipherName = cipherName;
@@ -112,6 +182,50 @@ public class SecureFileEntityJpa implements Persistable<UUID>, SecureFileEntity
         return unsaved;
     }
 
+    /**
+     * Stores the data in chunks of the given size instead of in a single blob. The chunks must be inserted once the
+     * file itself has been.
+     */
+    void storeInChunks(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    Integer getChunkSize() {
+        return chunkSize;
+    }
+
+    @PrePersist
+    void prepareEncryptedData() {
+        if (chunkSize == null) {
+            if (encryptedLength == null) {
+                // The blob's length must be known before it is read, so a cipher which cannot tell it is run first.
+                // Such ciphers encrypt in memory anyway.
+                final byte[] encrypted = getEncryptedData();
+                this.encryptedLength = (long) encrypted.length;
+                this.encryptedData = BlobProxy.generateProxy(encrypted);
+                return;
+            }
+            try {
+                // The data is encrypted as the JDBC driver reads it on insert, so it is never held in memory all at once.
+                this.encryptedData = BlobProxy.generateProxy(openEncryptedData(), encryptedLength);
+            } catch (IOException e) {
+                throw new TransientDataAccessResourceException("Could not read file data", e);
+            }
+        }
+    }
+
+    boolean hasEncryptedLength() {
+        return encryptedLength != null;
+    }
+
+    /**
+     * Records the length of data stored in chunks, once they have been inserted, if the cipher could not tell it
+     * beforehand.
+     */
+    void recordEncryptedLength(long encryptedLength) {
+        this.encryptedLength = encryptedLength;
+    }
+
     @PostPersist
     void markNotNew() {
         this.unsaved = false;
@@ -163,12 +277,79 @@ public class SecureFileEntityJpa implements Persistable<UUID>, SecureFileEntity
 
     @Override
     public byte[] getEncryptedData() {
-        return encryptedData;
+        try (InputStream in = openEncryptedData()) {
+            return StreamUtils.copyToByteArray(in);
+        } catch (IOException e) {
+            throw new TransientDataAccessResourceException("Could not obtain file data", e);
+        }
+    }
+
+    @Override
+    public long getEncryptedLength() {
+        if (encryptedLength != null) {
+            return encryptedLength;
+        }
+        if (plainDataSource != null) {
+            // Not inserted yet, and the cipher cannot tell the length without encrypting the data
+            return getEncryptedData().length;
+        }
+        try {
+            return content.getEncryptedData().length();
+        } catch (SQLException e) {
+            throw new TransientDataAccessResourceException("Could not obtain file data", e);
+        }
     }
 
     @Override
     public byte[] getPlainData() {
-        return encryptionService.decrypt(cipher, getFileKey(), encryptedData);
+        if (plainDataSource != null) {
+            try (InputStream in = plainDataSource.getInputStream()) {
+                return StreamUtils.copyToByteArray(in);
+            } catch (IOException e) {
+                throw new TransientDataAccessResourceException("Could not obtain file data", e);
+            }
+        }
+        return encryptionService.decrypt(cipher, getFileKey(), getEncryptedData());
+    }
+
+    /**
+     * Source of the plain data which decrypts as it is read. Data stored in chunks is fetched a chunk at a time as it
+     * is read, which works after the session has closed. Data in a single blob is read from the database now, as the
+     * returned source may be used after the session has closed, so all of it is held in memory until the source is
+     * no longer used.
+     */
+    @Override
+    public InputStreamSource getPlainDataSource() {
+        if (plainDataSource != null) {
+            return plainDataSource;
+        }
+        if (chunkSize != null) {
+            return () -> encryptionService.decryptingStream(cipher, getFileKey(), openEncryptedData());
+        }
+        final byte[] encrypted = getEncryptedData();
+        return () -> encryptionService.decryptingStream(cipher, getFileKey(), new ByteArrayInputStream(encrypted));
+    }
+
+    /**
+     * Source of the encrypted data, which is read from the database as it is read from the stream.
+     */
+    @Override
+    public InputStreamSource getEncryptedDataSource() {
+        return this::openEncryptedData;
+    }
+
+    InputStream openEncryptedData() throws IOException {
+        if (plainDataSource != null) {
+            return encryptionService.encryptingStream(cipher, getFileKey(), plainDataSource.getInputStream());
+        }
+        if (chunkSize != null) {
+            return new SecureFileChunkInputStream(entityManagerFactory, id, chunkSize, getEncryptedLength());
+        }
+        try {
+            return content.getEncryptedData().getBinaryStream();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
     }
 
     @Override
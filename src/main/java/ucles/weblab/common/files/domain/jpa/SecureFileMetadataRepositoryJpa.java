@@ -1,10 +1,12 @@
 package ucles.weblab.common.files.domain.jpa;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.repository.Repository;
 import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
 import ucles.weblab.common.files.domain.SecureFileMetadataRepository;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -19,4 +21,7 @@ public interface SecureFileMetadataRepositoryJpa extends SecureFileMetadataRepos
 
     @Override
     Collection<SecureFileMetadataEntityJpa> findAllByCollection(SecureFileCollectionEntity collection);
+
+    @Override
+    List<SecureFileMetadataEntityJpa> findAllByCollection(SecureFileCollectionEntity collection, Pageable pageable);
 }
@@ -11,13 +11,14 @@ import java.time.Instant;
 import java.util.Collection;
 import java.util.Optional;
 import java.util.UUID;
+import javax.transaction.Transactional;
 
 /**
  * Implementation of a secure file repository.
  *
  * @since 18/03/15
  */
-public interface SecureFileRepositoryJpa extends SecureFileRepository, Repository<SecureFileEntityJpa, UUID> {
+public interface SecureFileRepositoryJpa extends SecureFileRepository, SecureFileRepositoryJpaCustom, Repository<SecureFileEntityJpa, UUID> {
     @Override
     Optional<SecureFileEntityJpa> findOneByCollectionAndFilename(SecureFileCollectionEntity collection, String filename);
 
@@ -32,6 +33,13 @@ public interface SecureFileRepositoryJpa extends SecureFileRepository, Repositor
 
     @Override
     @Modifying
+    @Transactional
+    @Query("delete from SecureFile f where f.collection = ?1 and f.filename = ?2")
+    Integer deleteByCollectionAndFilename(SecureFileCollectionEntity collection, String filename);
+
+    @Override
+    @Modifying
+    @Transactional
     @Query("delete from SecureFile f where f in (select sf from SecureFile sf WHERE sf.collection.purgeInstant < ?)")
     Integer deleteByCollectionPurgeInstantBefore(Instant cutOff);
 }
@@ -0,0 +1,21 @@
+package ucles.weblab.common.files.domain.jpa;
+
+import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
+import ucles.weblab.common.files.domain.SecureFileEntity;
+import ucles.weblab.common.files.domain.SecureFileMetadataUpdate;
+
+/**
+ * Declaration of secure file repository methods which cannot be implemented automatically by spring-data-jpa.
+ *
+ * @since 18/10/26
+ */
+public interface SecureFileRepositoryJpaCustom {
+    /**
+     * Saves the file, inserting its data in chunks if chunked storage is enabled.
+     */
+    SecureFileEntityJpa save(SecureFileEntity secureFile);
+
+    Integer updateMetadata(SecureFileCollectionEntity collection, String filename, SecureFileMetadataUpdate changes);
+
+    Integer deleteBatchByCollection(SecureFileCollectionEntity collection, int batchSize);
+}
@@ -0,0 +1,187 @@
+package ucles.weblab.common.files.domain.jpa;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.TransientDataAccessResourceException;
+import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
+import ucles.weblab.common.files.domain.SecureFileEntity;
+import ucles.weblab.common.files.domain.SecureFileMetadataUpdate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.CriteriaUpdate;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.transaction.Transactional;
+
+/**
+ * Implementation of those secure file repository methods which cannot be implemented automatically by
+ * spring-data-jpa. Metadata is changed with a single {@code UPDATE} statement, so the file data is never loaded.
+ * <p>
+ * Files can optionally be stored in fixed-size chunks in the {@code secure_file_chunks} table, instead of in a single
+ * blob. Chunks are inserted in JDBC batches as the data is encrypted, and read back one at a time, so neither the
+ * database driver nor the application ever holds the whole file.
+ * </p>
+ *
+ * @since 18/10/26
+ */
+public class SecureFileRepositoryJpaImpl implements SecureFileRepositoryJpaCustom {
+    /** Number of chunks inserted in each batch, which bounds the data held while a file is inserted. */
+    private static final int CHUNK_BATCH_SIZE = 16;
+    private static final String INSERT_CHUNK = "insert into " + SecureFileChunkEntityJpa.TABLE + " (file_id, n, data) values (?, ?, ?)";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private boolean chunked;
+    private int chunkSize;
+
+    @Autowired
+    void configureChunkedStorage(@Value("${files.jpa.chunked:false}") boolean chunked,
+                                 @Value("${files.jpa.chunkSize:261120}") int chunkSize) {
+        if (chunked) {
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+            }
+            log.info("New files will be stored in chunks of " + chunkSize + " bytes");
+        }
+        this.chunked = chunked;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    @Transactional
+    public SecureFileEntityJpa save(SecureFileEntity secureFile) {
+        final SecureFileEntityJpa file = (SecureFileEntityJpa) secureFile;
+        if (!file.isNew()) {
+            return entityManager.merge(file);
+        }
+        if (chunked) {
+            file.storeInChunks(chunkSize);
+        }
+        entityManager.persist(file);
+        if (file.getChunkSize() != null) {
+            // The chunks refer to the file, so it must be inserted first.
+            entityManager.flush();
+            final boolean lengthKnown = file.hasEncryptedLength();
+            final long encryptedLength = insertChunks(file);
+            if (!lengthKnown) {
+                // The cipher could not tell the length beforehand, so the bytes inserted are recorded instead.
+                entityManager.createQuery("update SecureFile f set f.encryptedLength = :length where f.id = :id")
+                        .setParameter("length", encryptedLength)
+                        .setParameter("id", file.getId())
+                        .executeUpdate();
+                file.recordEncryptedLength(encryptedLength);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @return the number of bytes inserted
+     */
+    private long insertChunks(SecureFileEntityJpa file) {
+        final SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+        final Type idType = session.getFactory().getClassMetadata(SecureFileEntityJpa.class).getIdentifierType();
+        return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            try (InputStream in = file.openEncryptedData(); PreparedStatement insert = connection.prepareStatement(INSERT_CHUNK)) {
+                int n = 0;
+                long length = 0;
+                byte[] chunk;
+                while ((chunk = readChunk(in, file.getChunkSize())) != null) {
+                    length += chunk.length;
+                    idType.nullSafeSet(insert, file.getId(), 1, session);
+                    insert.setInt(2, n);
+                    insert.setBytes(3, chunk);
+                    insert.addBatch();
+                    if (++n % CHUNK_BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                    }
+                }
+                if (n % CHUNK_BATCH_SIZE != 0) {
+                    insert.executeBatch();
+                }
+                return length;
+            } catch (IOException e) {
+                throw new TransientDataAccessResourceException("Could not store file data", e);
+            }
+        });
+    }
+
+    /**
+     * Reads the next chunk, which is only short if it is the last one.
+     *
+     * @return the chunk, or {@code null} if there is no more data
+     */
+    private static byte[] readChunk(InputStream in, int chunkSize) throws IOException {
+        final byte[] chunk = new byte[chunkSize];
+        int count = 0;
+        int read;
+        while (count < chunkSize && (read = in.read(chunk, count, chunkSize - count)) >= 0) {
+            count += read;
+        }
+        if (count == 0) {
+            return null;
+        }
+        return count == chunkSize ? chunk : Arrays.copyOf(chunk, count);
+    }
+
+    @Override
+    @Transactional
+    public Integer updateMetadata(SecureFileCollectionEntity collection, String filename, SecureFileMetadataUpdate changes) {
+        final CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        if (changes.isEmpty()) {
+            final CriteriaQuery<Long> count = cb.createQuery(Long.class);
+            final Root<SecureFileEntityJpa> file = count.from(SecureFileEntityJpa.class);
+            count.select(cb.count(file)).where(isFile(cb, file, collection, filename));
+            return entityManager.createQuery(count).getSingleResult().intValue();
+        }
+
+        final CriteriaUpdate<SecureFileEntityJpa> update = cb.createCriteriaUpdate(SecureFileEntityJpa.class);
+        final Root<SecureFileEntityJpa> file = update.from(SecureFileEntityJpa.class);
+        changes.getFilename().ifPresent(value -> update.set(file.get(SecureFileEntityJpa_.filename), value));
+        changes.getContentType().ifPresent(value -> update.set(file.get(SecureFileEntityJpa_.contentType), value));
+        changes.getNotes().ifPresent(value -> update.set(file.get(SecureFileEntityJpa_.notes), value));
+        update.where(isFile(cb, file, collection, filename));
+        return entityManager.createQuery(update).executeUpdate();
+    }
+
+    /**
+     * Finds a batch of files by the collection's index and deletes them by primary key, so that only the files
+     * deleted are locked.
+     */
+    @Override
+    @Transactional
+    public Integer deleteBatchByCollection(SecureFileCollectionEntity collection, int batchSize) {
+        final List<UUID> ids = entityManager.createQuery("select f.id from SecureFile f where f.collection = :collection", UUID.class)
+                .setParameter("collection", collection)
+                .setMaxResults(batchSize)
+                .getResultList();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return entityManager.createQuery("delete from SecureFile f where f.id in :ids")
+                .setParameter("ids", ids)
+                .executeUpdate();
+    }
+
+    private static Predicate isFile(CriteriaBuilder cb, Root<SecureFileEntityJpa> file, SecureFileCollectionEntity collection, String filename) {
+        return cb.and(cb.equal(file.get(SecureFileEntityJpa_.collection), collection),
+                cb.equal(file.get(SecureFileEntityJpa_.filename), filename));
+    }
+}
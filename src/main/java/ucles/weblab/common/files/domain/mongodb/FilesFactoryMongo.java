@@ -1,6 +1,7 @@
 package ucles.weblab.common.files.domain.mongodb;
 
 import java.time.Instant;
+import org.springframework.core.io.InputStreamSource;
 import ucles.weblab.common.files.domain.FilesFactory;
 import ucles.weblab.common.files.domain.SecureFile;
 import ucles.weblab.common.files.domain.SecureFileCollection;
@@ -70,10 +71,18 @@ public class FilesFactoryMongo implements FilesFactory {
         @Override
         public byte[] getEncryptedData() { return file.getEncryptedData(); }
 
+        @Override
+        public long getEncryptedLength() { return file.getEncryptedLength(); }
+
         @Override
         public byte[] getPlainData() {
             return file.getPlainData();
         }
+
+        @Override
+        public InputStreamSource getPlainDataSource() {
+            return file.getPlainDataSource();
+        }
         
         @Override
         public Instant getCreatedDate() {
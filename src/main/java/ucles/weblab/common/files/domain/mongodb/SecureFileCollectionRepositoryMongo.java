@@ -4,6 +4,7 @@ import org.springframework.data.repository.Repository;
 import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
 import ucles.weblab.common.files.domain.SecureFileCollectionRepository;
 
+import java.time.Instant;
 import java.util.Collection;
 
 /**
@@ -24,4 +25,7 @@ public interface SecureFileCollectionRepositoryMongo extends Repository<SecureFi
 
     @Override
     SecureFileCollectionEntityMongo findOneByBucket(String bucket);
+
+    @Override
+    Collection<SecureFileCollectionEntityMongo> findAllByPurgeInstantBefore(Instant cutOff);
 }
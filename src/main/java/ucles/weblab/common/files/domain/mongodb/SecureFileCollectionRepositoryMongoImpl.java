@@ -1,15 +1,32 @@
 package ucles.weblab.common.files.domain.mongodb;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoOperations;
+
 import java.time.Instant;
 
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
 /**
  * Implementation of those secure file repository which cannot be implemented automatically by spring-data-mongodb.
  *
  * @since 24/07/15
  */
 public class SecureFileCollectionRepositoryMongoImpl implements SecureFileCollectionRepositoryMongoCustom {
+    private final MongoOperations mongoOperations;
+
+    @Autowired
+    public SecureFileCollectionRepositoryMongoImpl(MongoOperations mongoOperations) {
+        this.mongoOperations = mongoOperations;
+    }
+
+    /**
+     * Removes the collections due to be purged. Their buckets are dropped separately, by
+     * {@link SecureFileRepositoryMongo#deleteByCollectionPurgeInstantBefore(Instant)}.
+     */
     @Override
     public Long deleteByPurgeInstantBefore(Instant cutOff) {
-        throw new UnsupportedOperationException("Purging not yet implemented for MongoDB.");
+        return (long) mongoOperations.remove(query(where("purgeInstant").lt(cutOff)), SecureFileCollectionEntityMongo.class).getN();
     }
 }
@@ -4,12 +4,15 @@ import com.mongodb.gridfs.GridFSDBFile;
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.dao.TransientDataAccessResourceException;
 import ucles.weblab.common.files.domain.EncryptionService;
 import ucles.weblab.common.files.domain.SecureFileEntity;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
 import java.util.Objects;
 
@@ -18,6 +21,11 @@ import static ucles.weblab.common.domain.ConfigurableEntitySupport.configureBean
 /**
  * Representation of a secure file, holding encrypted data in the {@link SecureFileRepositoryMongo}.
  * This class is only used for already-persisted files.
+ * <p>
+ * Only the file's GridFS metadata is read when the entity is created. Its chunks are read when its data is first
+ * asked for, or streamed each time if the data is read through {@link #getEncryptedDataSource()} or
+ * {@link #getPlainDataSource()}.
+ * </p>
  *
  * @since 18/03/15
  */
@@ -27,6 +35,7 @@ public class SecureFileEntityMongo implements SecureFileEntity {
     public static final String NOTES_PROPERTY = "notes";
     public static final String FILENAME_PROPERTY = "filename";
     public static final String CONTENT_TYPE_PROPERTY = "contentType";
+    public static final String PLAIN_LENGTH_PROPERTY = "plainLength";
 
     private SecureFileCollectionEntityMongo bucket;
     private GridFSDBFile dbFile;
@@ -40,6 +49,7 @@ public class SecureFileEntityMongo implements SecureFileEntity {
      * To be combined with a system-wide secret key to decrypt or encrypt the file.
      */
     private byte[] fileKey;
+    /** Encrypted data, once it has been read from the chunks. */
     private byte[] encryptedData;
     
     private Instant createdDate;
@@ -49,13 +59,11 @@ public class SecureFileEntityMongo implements SecureFileEntity {
     @SuppressWarnings("UnusedDeclaration") // for testing
     SecureFileEntityMongo() {
         configureBean(this);
-        this.encryptionService = null;
     }
 
     /**
-     * Creates a new entity object from an existing GridFSDBFile record.
+     * Creates a new entity object from an existing GridFSDBFile record. The file's chunks are not read.
      * @param dbFile the MongoDB GridFS record
-     * @throws IOException
      */
     public SecureFileEntityMongo(SecureFileCollectionEntityMongo bucket, GridFSDBFile dbFile) {
         this();
@@ -63,16 +71,13 @@ public class SecureFileEntityMongo implements SecureFileEntity {
         this.dbFile = dbFile;
         this.filename = dbFile.getFilename();
         this.contentType = dbFile.getContentType();
-        this.length = dbFile.getLength();
         this.fileKey = ((ObjectId) dbFile.getId()).toByteArray();
         this.cipher = (String) dbFile.get(CIPHER_PROPERTY);
         this.notes = (String) dbFile.get(NOTES_PROPERTY);
-        this.encryptedData = new byte[(int) this.length];
-        try (DataInputStream dis = new DataInputStream(dbFile.getInputStream())) {
-            dis.readFully(this.encryptedData);
-        } catch (IOException ex) {
-            throw new TransientDataAccessResourceException("Could not obtain file data", ex);
-        }
+        // Files stored before the plain length was recorded report their stored (encrypted) length.
+        final Number plainLength = (Number) dbFile.get(PLAIN_LENGTH_PROPERTY);
+        this.length = plainLength != null ? plainLength.longValue() : dbFile.getLength();
+        this.createdDate = dbFile.getUploadDate() == null ? null : dbFile.getUploadDate().toInstant();
     }
 
     public Object readResolve() {
@@ -135,14 +140,48 @@ public class SecureFileEntityMongo implements SecureFileEntity {
         this.notes = notes;
     }
 
+    /**
+     * Reads the file's chunks the first time it is called, and holds on to the data read.
+     */
     @Override
     public byte[] getEncryptedData() {
+        if (encryptedData == null) {
+            final byte[] data = new byte[(int) dbFile.getLength()];
+            try (DataInputStream dis = new DataInputStream(dbFile.getInputStream())) {
+                dis.readFully(data);
+            } catch (IOException ex) {
+                throw new TransientDataAccessResourceException("Could not obtain file data", ex);
+            }
+            encryptedData = data;
+        }
         return encryptedData;
     }
 
+    @Override
+    public long getEncryptedLength() {
+        return dbFile.getLength();
+    }
+
+    /**
+     * Streams the file's chunks as they are read, unless the data has already been read.
+     */
+    @Override
+    public InputStreamSource getEncryptedDataSource() {
+        return this::openEncryptedData;
+    }
+
     @Override
     public byte[] getPlainData() {
-        return encryptionService.decrypt(cipher, fileKey, encryptedData);
+        return encryptionService.decrypt(cipher, fileKey, getEncryptedData());
+    }
+
+    @Override
+    public InputStreamSource getPlainDataSource() {
+        return () -> encryptionService.decryptingStream(cipher, fileKey, openEncryptedData());
+    }
+
+    private InputStream openEncryptedData() {
+        return encryptedData != null ? new ByteArrayInputStream(encryptedData) : dbFile.getInputStream();
     }
 
     @Override
@@ -0,0 +1,112 @@
+package ucles.weblab.common.files.domain.mongodb;
+
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import ucles.weblab.common.files.domain.SecureFileMetadataEntity;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Representation of a secure file, without its data, in the {@link SecureFileMetadataRepositoryMongo}. Intended for
+ * reading metadata from a bucket's {@code .files} collection without touching its chunks, for efficiency.
+ *
+ * @since 18/10/26
+ */
+public class SecureFileMetadataEntityMongo implements SecureFileMetadataEntity {
+    public static final String LENGTH_PROPERTY = "length";
+    public static final String UPLOAD_DATE_PROPERTY = "uploadDate";
+
+    private final SecureFileCollectionEntityMongo bucket;
+    private final ObjectId id;
+    private final String filename;
+    private final String contentType;
+    private final String cipher;
+    private final String notes;
+    private final long length;
+    private final Instant createdDate;
+
+    /**
+     * Creates a new entity object from a GridFS file document, which need only hold the fields read by
+     * {@link SecureFileMetadataRepositoryMongo}.
+     */
+    SecureFileMetadataEntityMongo(SecureFileCollectionEntityMongo bucket, DBObject file) {
+        this.bucket = bucket;
+        this.id = (ObjectId) file.get("_id");
+        this.filename = (String) file.get(SecureFileEntityMongo.FILENAME_PROPERTY);
+        this.contentType = (String) file.get(SecureFileEntityMongo.CONTENT_TYPE_PROPERTY);
+        this.cipher = (String) file.get(SecureFileEntityMongo.CIPHER_PROPERTY);
+        this.notes = (String) file.get(SecureFileEntityMongo.NOTES_PROPERTY);
+        // Files stored before the plain length was recorded report their stored (encrypted) length.
+        final Number plainLength = (Number) file.get(SecureFileEntityMongo.PLAIN_LENGTH_PROPERTY);
+        final Number storedLength = (Number) file.get(LENGTH_PROPERTY);
+        this.length = plainLength != null ? plainLength.longValue() : storedLength != null ? storedLength.longValue() : 0;
+        final Date uploadDate = (Date) file.get(UPLOAD_DATE_PROPERTY);
+        this.createdDate = uploadDate == null ? null : uploadDate.toInstant();
+    }
+
+    public ObjectId getId() {
+        return id;
+    }
+
+    @Override
+    public SecureFileCollectionEntityMongo getCollection() {
+        return bucket;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public String getNotes() {
+        return notes;
+    }
+
+    @Override
+    public Instant getCreatedDate() {
+        return createdDate;
+    }
+
+    public String getCipher() {
+        return cipher;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        SecureFileMetadataEntityMongo that = (SecureFileMetadataEntityMongo) o;
+        return Objects.equals(id, that.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id);
+    }
+
+    @Override
+    public String toString() {
+        return "SecureFileMetadataEntityMongo{" +
+                "filename='" + filename + '\'' +
+                ", contentType='" + contentType + '\'' +
+                ", length=" + length +
+                '}';
+    }
+}
@@ -0,0 +1,87 @@
+package ucles.weblab.common.files.domain.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBDecoder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
+import ucles.weblab.common.files.domain.SecureFileMetadataRepository;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Implementation of a secure file metadata repository (read-only), which queries a bucket's {@code .files}
+ * collection directly for only the fields needed, so the file data held in its chunks is never read.
+ * Sorting and paging are done by the server.
+ *
+ * @since 18/10/26
+ */
+public class SecureFileMetadataRepositoryMongo implements SecureFileMetadataRepository {
+    /** The fields of a GridFS file document which are read. */
+    private static final DBObject PROJECTION = new BasicDBObject()
+            .append(SecureFileEntityMongo.FILENAME_PROPERTY, 1)
+            .append(SecureFileEntityMongo.CONTENT_TYPE_PROPERTY, 1)
+            .append(SecureFileMetadataEntityMongo.LENGTH_PROPERTY, 1)
+            .append(SecureFileEntityMongo.PLAIN_LENGTH_PROPERTY, 1)
+            .append(SecureFileEntityMongo.NOTES_PROPERTY, 1)
+            .append(SecureFileEntityMongo.CIPHER_PROPERTY, 1)
+            .append(SecureFileMetadataEntityMongo.UPLOAD_DATE_PROPERTY, 1);
+    private static final DBObject SORT_BY_FILENAME = new BasicDBObject(SecureFileEntityMongo.FILENAME_PROPERTY, 1);
+
+    private final MongoOperations mongoOperations;
+
+    @Autowired
+    public SecureFileMetadataRepositoryMongo(MongoOperations mongoOperations) {
+        this.mongoOperations = mongoOperations;
+    }
+
+    @Override
+    public Optional<SecureFileMetadataEntityMongo> findOneByCollectionAndFilename(SecureFileCollectionEntity collection, String filename) {
+        return find(collection, new BasicDBObject(SecureFileEntityMongo.FILENAME_PROPERTY, filename), cursor -> cursor.limit(1))
+                .stream().findFirst();
+    }
+
+    @Override
+    public List<SecureFileMetadataEntityMongo> findAllByCollection(SecureFileCollectionEntity collection) {
+        return find(collection, new BasicDBObject(), cursor -> cursor.sort(SORT_BY_FILENAME));
+    }
+
+    @Override
+    public List<SecureFileMetadataEntityMongo> findAllByCollection(SecureFileCollectionEntity collection, Pageable pageable) {
+        return find(collection, new BasicDBObject(), cursor -> cursor
+                .sort(pageable.getSort() == null ? SORT_BY_FILENAME : toSort(pageable.getSort()))
+                .skip(pageable.getOffset())
+                .limit(pageable.getPageSize()));
+    }
+
+    private List<SecureFileMetadataEntityMongo> find(SecureFileCollectionEntity collection, DBObject query, UnaryOperator<DBCursor> shape) {
+        final SecureFileCollectionEntityMongo bucket = (SecureFileCollectionEntityMongo) collection;
+        return mongoOperations.execute(db -> {
+            final DBCollection files = db.getCollection(bucket.getBucket() + SecureFileRepositoryMongo.FILES_COLLECTION_SUFFIX);
+            try (DBCursor cursor = shape.apply(metadataOnly(files.find(query, PROJECTION)))) {
+                return cursor.toArray().stream()
+                        .map(file -> new SecureFileMetadataEntityMongo(bucket, file))
+                        .collect(toList());
+            }
+        });
+    }
+
+    private static DBCursor metadataOnly(DBCursor cursor) {
+        return cursor.setDecoderFactory(LazyDBDecoder.FACTORY);
+    }
+
+    private static DBObject toSort(Sort sort) {
+        final BasicDBObject fields = new BasicDBObject();
+        sort.forEach(order -> fields.append(order.getProperty(), order.isAscending() ? 1 : -1));
+        return fields;
+    }
+}
@@ -1,34 +1,80 @@
 package ucles.weblab.common.files.domain.mongodb;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
 import com.mongodb.gridfs.GridFS;
 import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSInputFile;
 import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.dao.TransientDataAccessResourceException;
 import org.springframework.data.mongodb.core.MongoOperations;
 import ucles.weblab.common.files.domain.EncryptionService;
 import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
 import ucles.weblab.common.files.domain.SecureFileEntity;
+import ucles.weblab.common.files.domain.SecureFileMetadataUpdate;
 import ucles.weblab.common.files.domain.SecureFileRepository;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.stream.Collectors.toList;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
 /**
  * Implementation of a secure file repository.
+ * <p>
+ * Each collection's files are held in a GridFS bucket of their own, so expired collections are purged by dropping
+ * their buckets whole rather than deleting their files. The buckets dropped and the storage they used are published
+ * as {@code files.purge.gridfs.*} actuator metrics.
+ * </p>
+ * <p>
+ * Creating a GridFS handle checks the bucket's indexes, which costs several round trips to the database, so handles
+ * are kept for the {@code files.mongo.gridFsCacheSize} most recently used buckets and the indexes are checked once
+ * for each.
+ * </p>
  *
  * @since 18/03/15
  */
-public class SecureFileRepositoryMongo implements SecureFileRepository {
+public class SecureFileRepositoryMongo implements SecureFileRepository, PublicMetrics {
+    /** GridFS keeps the metadata for each bucket's files in a collection named with this suffix. */
+    static final String FILES_COLLECTION_SUFFIX = ".files";
+    /** GridFS keeps the data for each bucket's files in a collection named with this suffix. */
+    private static final String CHUNKS_COLLECTION_SUFFIX = ".chunks";
+    private static final String METRIC_PREFIX = "files.purge.gridfs.";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
     private final MongoOperations mongoOperations;
     private final EncryptionService encryptionService;
     private String cipherName;
+    private int purgeParallelism = 4;
+    private Map<String, GridFS> gridFsCache = newGridFsCache(256);
+
+    private final AtomicLong bucketsDropped = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
 
     @Autowired
     public SecureFileRepositoryMongo(MongoOperations mongoOperations, EncryptionService encryptionService) {
@@ -41,11 +87,50 @@ public class SecureFileRepositoryMongo implements SecureFileRepository {
         this.cipherName = cipherName;
     }
 
+    @Autowired
+    void configurePurgeParallelism(@Value("${files.purge.mongo.parallelism:4}") int purgeParallelism) {
+        if (purgeParallelism <= 0) {
+            throw new IllegalArgumentException("Purge parallelism must be positive: " + purgeParallelism);
+        }
+        this.purgeParallelism = purgeParallelism;
+    }
+
+    @Autowired
+    void configureGridFsCache(@Value("${files.mongo.gridFsCacheSize:256}") int gridFsCacheSize) {
+        if (gridFsCacheSize < 0) {
+            throw new IllegalArgumentException("GridFS cache size must not be negative: " + gridFsCacheSize);
+        }
+        this.gridFsCache = newGridFsCache(gridFsCacheSize);
+    }
+
+    private static Map<String, GridFS> newGridFsCache(int maximumSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, GridFS>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, GridFS> eldest) {
+                return size() > maximumSize;
+            }
+        });
+    }
+
+    /**
+     * Finds the GridFS handle for a bucket, creating it if it has not been used recently.
+     */
+    GridFS gridFs(DB db, SecureFileCollectionEntityMongo bucket) {
+        final GridFS cached = gridFsCache.get(bucket.getBucket());
+        if (cached != null && cached.getDB() == db) {
+            return cached;
+        }
+        // Created outside the lock as it goes to the database. Two threads may both create one, which does no harm.
+        final GridFS gridFS = new GridFS(db, bucket.getBucket());
+        gridFsCache.put(bucket.getBucket(), gridFS);
+        return gridFS;
+    }
+
     @Override
     public Optional<SecureFileEntityMongo> findOneByCollectionAndFilename(SecureFileCollectionEntity collection, String filename) {
         return mongoOperations.execute(db -> {
             final SecureFileCollectionEntityMongo bucket = (SecureFileCollectionEntityMongo) collection;
-            GridFS gridFS = new GridFS(db, bucket.getBucket());
+            GridFS gridFS = gridFs(db, bucket);
             return Optional.ofNullable(gridFS.findOne(filename)).map(f -> new SecureFileEntityMongo(bucket, f));
         });
     }
@@ -55,17 +140,32 @@ public class SecureFileRepositoryMongo implements SecureFileRepository {
         if (secureFile.isNew()) {
             return mongoOperations.execute(db -> {
                 final SecureFileCollectionEntityMongo bucket = (SecureFileCollectionEntityMongo) secureFile.getCollection();
-                final GridFS gridFS = new GridFS(db, bucket.getBucket());
+                final GridFS gridFS = gridFs(db, bucket);
                 ObjectId oid = new ObjectId();
-                final byte[] encryptedData = encryptionService.encrypt(cipherName, oid.toByteArray(), secureFile.getPlainData());
-                final GridFSInputFile file = gridFS.createFile(new ByteArrayInputStream(encryptedData), secureFile.getFilename(), true);
-                file.setId(oid);
-                file.setContentType(secureFile.getContentType());
-                file.put(SecureFileEntityMongo.CIPHER_PROPERTY, cipherName);
-                file.put(SecureFileEntityMongo.NOTES_PROPERTY, secureFile.getNotes());
-                file.save();
-
-                return new SecureFileEntityMongo(bucket, gridFS.findOne((ObjectId) file.getId()));
+                final InputStreamSource plainData;
+                final long plainLength;
+                if (secureFile.getPlainDataSource() != null) {
+                    plainData = secureFile.getPlainDataSource();
+                    plainLength = secureFile.getLength();
+                } else {
+                    final byte[] plainBytes = secureFile.getPlainData();
+                    plainData = new ByteArrayResource(plainBytes);
+                    plainLength = plainBytes.length;
+                }
+                // GridFS reads the stream a chunk at a time as it saves, so the file is never held in memory all at once.
+                try (InputStream encryptedData = encryptionService.encryptingStream(cipherName, oid.toByteArray(), plainData.getInputStream())) {
+                    final GridFSInputFile file = gridFS.createFile(encryptedData, secureFile.getFilename(), true);
+                    file.setId(oid);
+                    file.setContentType(secureFile.getContentType());
+                    file.put(SecureFileEntityMongo.CIPHER_PROPERTY, cipherName);
+                    file.put(SecureFileEntityMongo.NOTES_PROPERTY, secureFile.getNotes());
+                    file.put(SecureFileEntityMongo.PLAIN_LENGTH_PROPERTY, plainLength);
+                    file.save();
+                } catch (IOException e) {
+                    throw new TransientDataAccessResourceException("Could not store file data", e);
+                }
+
+                return new SecureFileEntityMongo(bucket, gridFS.findOne(oid));
             });
         } else {
             SecureFileEntityMongo mongoFile = (SecureFileEntityMongo) secureFile;
@@ -84,7 +184,7 @@ public class SecureFileRepositoryMongo implements SecureFileRepository {
     public Collection<SecureFileEntityMongo> findAllByCollection(SecureFileCollectionEntity collection) {
         return mongoOperations.execute(db -> {
             final SecureFileCollectionEntityMongo bucket = (SecureFileCollectionEntityMongo) collection;
-            GridFS gridFS = new GridFS(db, bucket.getBucket());
+            GridFS gridFS = gridFs(db, bucket);
             // Can't use GridFS.getFileList() as it does not call GridFS._fix()
             // Have to instead use GridFS.find() which does.
             return gridFS.find(new BasicDBObject(), new BasicDBObject("filename", 1)).stream()
@@ -96,16 +196,146 @@ public class SecureFileRepositoryMongo implements SecureFileRepository {
     @Override
     public void delete(SecureFileEntity file) {
         mongoOperations.execute(db -> {
-            GridFS gridFS = null;
             final SecureFileCollectionEntityMongo bucket = (SecureFileCollectionEntityMongo) file.getCollection();
-            gridFS = new GridFS(db, bucket.getBucket());
+            final GridFS gridFS = gridFs(db, bucket);
             gridFS.remove(file.getFilename());
             return null;
         });
     }
 
+    /**
+     * Changes the file's metadata document in place. The file's chunks are not read.
+     */
+    @Override
+    public Integer updateMetadata(SecureFileCollectionEntity collection, String filename, SecureFileMetadataUpdate changes) {
+        return mongoOperations.execute(db -> {
+            final SecureFileCollectionEntityMongo bucket = (SecureFileCollectionEntityMongo) collection;
+            final DBCollection files = db.getCollection(bucket.getBucket() + FILES_COLLECTION_SUFFIX);
+            final BasicDBObject query = new BasicDBObject(SecureFileEntityMongo.FILENAME_PROPERTY, filename);
+            if (changes.isEmpty()) {
+                return (int) files.count(query);
+            }
+            final BasicDBObject set = new BasicDBObject();
+            changes.getFilename().ifPresent(value -> set.put(SecureFileEntityMongo.FILENAME_PROPERTY, value));
+            changes.getContentType().ifPresent(value -> set.put(SecureFileEntityMongo.CONTENT_TYPE_PROPERTY, value));
+            changes.getNotes().ifPresent(value -> set.put(SecureFileEntityMongo.NOTES_PROPERTY, value));
+            return files.update(query, new BasicDBObject("$set", set), false, true).getN();
+        });
+    }
+
+    /**
+     * Removes the file's metadata document and chunks. The chunks are not read.
+     */
+    @Override
+    public Integer deleteByCollectionAndFilename(SecureFileCollectionEntity collection, String filename) {
+        return mongoOperations.execute(db -> {
+            final SecureFileCollectionEntityMongo bucket = (SecureFileCollectionEntityMongo) collection;
+            final GridFS gridFS = gridFs(db, bucket);
+            final BasicDBObject query = new BasicDBObject(SecureFileEntityMongo.FILENAME_PROPERTY, filename);
+            final int count = gridFS.getFileList(query).count();
+            gridFS.remove(query);
+            return count;
+        });
+    }
+
+    @Override
+    public Integer deleteBatchByCollection(SecureFileCollectionEntity collection, int batchSize) {
+        return mongoOperations.execute(db -> {
+            final SecureFileCollectionEntityMongo bucket = (SecureFileCollectionEntityMongo) collection;
+            final GridFS gridFS = gridFs(db, bucket);
+            final List<Object> ids = gridFS.getFileList(new BasicDBObject()).limit(batchSize).toArray().stream()
+                    .map(file -> file.get("_id"))
+                    .collect(toList());
+            ids.forEach(id -> gridFS.remove((ObjectId) id));
+            return ids.size();
+        });
+    }
+
+    /**
+     * Drops the buckets of all the collections due to be purged. The collections themselves are left in place.
+     */
     @Override
     public Integer deleteByCollectionPurgeInstantBefore(Instant cutOff) {
-        throw new UnsupportedOperationException("Purging not yet implemented for MongoDB.");
+        final List<SecureFileCollectionEntityMongo> expired = mongoOperations.find(
+                query(where("purgeInstant").lt(cutOff)), SecureFileCollectionEntityMongo.class);
+        return deleteAllByCollectionIn(expired).get().intValue();
+    }
+
+    /**
+     * Drops each collection's bucket, i.e. its {@code .files} and {@code .chunks} collections, which takes the same
+     * time however many files it holds. Up to {@code files.purge.mongo.parallelism} buckets are dropped at once.
+     */
+    @Override
+    public Optional<Long> deleteAllByCollectionIn(Collection<? extends SecureFileCollectionEntity> collections) {
+        if (collections.isEmpty()) {
+            return Optional.of(0L);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(purgeParallelism, collections.size()), runnable -> {
+            final Thread thread = new Thread(runnable, "secure-file-purge-gridfs");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final List<CompletableFuture<DroppedBucket>> drops = collections.stream()
+                    .map(collection -> CompletableFuture.supplyAsync(() -> dropBucket((SecureFileCollectionEntityMongo) collection), executor))
+                    .collect(toList());
+            long files = 0;
+            long bytes = 0;
+            for (CompletableFuture<DroppedBucket> drop : drops) {
+                final DroppedBucket dropped = drop.join();
+                files += dropped.files;
+                bytes += dropped.bytes;
+            }
+            logger.info("Dropped {} GridFS buckets holding {} files, reclaiming {} bytes.", drops.size(), files, bytes);
+            return Optional.of(files);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private DroppedBucket dropBucket(SecureFileCollectionEntityMongo collection) {
+        return mongoOperations.execute(db -> {
+            final DBCollection files = db.getCollection(collection.getBucket() + FILES_COLLECTION_SUFFIX);
+            final DBCollection chunks = db.getCollection(collection.getBucket() + CHUNKS_COLLECTION_SUFFIX);
+            final DroppedBucket dropped = new DroppedBucket(files.count(), storageSize(files) + storageSize(chunks));
+            gridFsCache.remove(collection.getBucket());
+            files.drop();
+            chunks.drop();
+            logger.debug("Dropped GridFS bucket {} holding {} files.", collection.getBucket(), dropped.files);
+            bucketsDropped.incrementAndGet();
+            bytesReclaimed.addAndGet(dropped.bytes);
+            return dropped;
+        });
+    }
+
+    /**
+     * Storage allocated to the collection, or zero if it does not exist or the server will not say.
+     */
+    private long storageSize(DBCollection collection) {
+        try {
+            final CommandResult stats = collection.getStats();
+            final Object storageSize = stats.get("storageSize");
+            return stats.ok() && storageSize instanceof Number ? ((Number) storageSize).longValue() : 0;
+        } catch (RuntimeException e) { // only reported, so not worth failing the purge for
+            logger.debug("Could not get storage size of {}", collection.getName(), e);
+            return 0;
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>(METRIC_PREFIX + "buckets", bucketsDropped.get()),
+                new Metric<>(METRIC_PREFIX + "bytes", bytesReclaimed.get()));
+    }
+
+    private static final class DroppedBucket {
+        final long files;
+        final long bytes;
+
+        DroppedBucket(long files, long bytes) {
+            this.files = files;
+            this.bytes = bytes;
+        }
     }
 }
@@ -1,6 +1,8 @@
 package ucles.weblab.common.files.domain.s3;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.HttpMethod;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.services.s3.AmazonS3;
@@ -9,18 +11,31 @@ import com.amazonaws.services.s3.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import ucles.weblab.common.files.blob.api.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * An amazon s3 implementation of the BlobStoreService. 
@@ -30,6 +45,23 @@ import java.util.Optional;
  * The root path represents the file structure under that bucket. So if it is file1/file2, 
  * then file1 folder exists under the bucket, in file1, there is a s3 directory called file2. 
  * 
+ * Blobs larger than {@code files.s3.multipart.threshold} bytes are sent as a multipart upload, in parts of
+ * {@code files.s3.multipart.partSize} bytes which are uploaded {@code files.s3.multipart.parallelism} at a time. Each
+ * part is tried up to {@code files.s3.multipart.partAttempts} times, and if a part still fails the upload is aborted
+ * so that S3 does not keep the parts already sent.
+ * 
+ * Blobs are read with a ranged GET of their first {@code files.s3.multipart.threshold} bytes, so smaller blobs take a
+ * single request. The rest of a larger blob is fetched in ranges of {@code files.s3.multipart.partSize} bytes, the same
+ * number at a time and with the same retries as an upload, and reassembled in order. {@link #openBlob(BlobId)} streams
+ * the content, holding no more ranges in memory than are being fetched ahead of the reader.
+ * 
+ * Parts, ranges and batches of deletes are sent on a pool of {@code files.s3.transferThreads} threads shared by every
+ * transfer. Each transfer uses no more than {@code files.s3.multipart.parallelism} of them at once, so one large
+ * transfer does not hold up the others.
+ * 
+ * Blobs are publicly readable, at a plain S3 url, unless {@code files.s3.presignedUrls} is set. Then they are private
+ * and their urls are pre-signed, so that they can be downloaded straight from S3 but only until the url expires.
+ * 
  * @author Sukhraj
  */
 public class BlobStoreServiceS3 implements BlobStoreService {
@@ -47,6 +79,19 @@ public class BlobStoreServiceS3 implements BlobStoreService {
     private final String rootPath;
     
     private final String s3Region;
+
+    /** S3 will not accept parts smaller than this, other than the last. */
+    static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    /** S3 will not delete more objects than this in a single request. */
+    static final int MAX_KEYS_PER_DELETE = 1000;
+
+    private boolean presignedUrls;
+    private long multipartThreshold = 16 * 1024 * 1024;
+    private int partSize = 8 * 1024 * 1024;
+    private int partAttempts = 3;
+    private int multipartParallelism = 4;
+    private int transferThreads = 16;
+    private ExecutorService partTransferExecutor = newPartTransferExecutor(transferThreads);
     
     /**
      * Initialise this service
@@ -64,50 +109,140 @@ public class BlobStoreServiceS3 implements BlobStoreService {
                               String s3region,
                               String namespace,
                               String rootPath) {
-        
+        this(awsCredentials == null ?
+                        new AmazonS3Client(new DefaultAWSCredentialsProviderChain(), new WeblabClientConfiguration(true, 5)) :
+                        new AmazonS3Client(awsCredentials, new WeblabClientConfiguration(true, 5)),
+                accountId, s3region, namespace, rootPath);
+    }
+
+    /**
+     * Initialise this service with a client of its own, e.g. one pointing at an S3-compatible store.
+     */
+    public BlobStoreServiceS3(AmazonS3 s3,
+                              String accountId,
+                              String s3region,
+                              String namespace,
+                              String rootPath) {
         this.bucketName = (namespace + "-" + accountId).toLowerCase();
+        this.s3 = s3;
+        this.rootPath = rootPath;
+        this.s3Region = s3region;
+    }
 
-        this.s3 = awsCredentials == null ?
-                new AmazonS3Client(new DefaultAWSCredentialsProviderChain(), new WeblabClientConfiguration(true, 5)) :
-                new AmazonS3Client(awsCredentials, new WeblabClientConfiguration(true, 5));
-        
-        this.rootPath = rootPath;        
-        this.s3Region = s3region;        
+    @Autowired
+    void configurePresignedUrls(@Value("${files.s3.presignedUrls:false}") boolean presignedUrls) {
+        log.info(presignedUrls ? "Blobs are private and read with pre-signed urls" : "Blobs are publicly readable");
+        this.presignedUrls = presignedUrls;
+    }
+
+    @Autowired
+    void configureMultipartUpload(@Value("${files.s3.multipart.threshold:16777216}") long multipartThreshold,
+                                  @Value("${files.s3.multipart.partSize:8388608}") int partSize,
+                                  @Value("${files.s3.multipart.parallelism:4}") int multipartParallelism,
+                                  @Value("${files.s3.multipart.partAttempts:3}") int partAttempts) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Multipart upload part size must be at least " + MIN_PART_SIZE + ": " + partSize);
+        }
+        if (multipartParallelism <= 0 || partAttempts <= 0) {
+            throw new IllegalArgumentException("Multipart upload parallelism and part attempts must be positive");
+        }
+        log.info("Uploading blobs over {} bytes in parts of {} bytes, {} at a time", multipartThreshold, partSize, multipartParallelism);
+        this.multipartThreshold = multipartThreshold;
+        this.partSize = partSize;
+        this.partAttempts = partAttempts;
+        this.multipartParallelism = multipartParallelism;
+    }
+
+    @Autowired
+    void configureTransferThreads(@Value("${files.s3.transferThreads:16}") int transferThreads) {
+        if (transferThreads <= 0) {
+            throw new IllegalArgumentException("Transfer threads must be positive: " + transferThreads);
+        }
+        log.info("Transferring parts of blobs on {} threads shared by all transfers", transferThreads);
+        if (transferThreads != this.transferThreads) {
+            this.partTransferExecutor.shutdown();
+            this.partTransferExecutor = newPartTransferExecutor(transferThreads);
+            this.transferThreads = transferThreads;
+        }
+    }
+
+    private static ExecutorService newPartTransferExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "s3-part-transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends part of a transfer once fewer than {@code files.s3.multipart.parallelism} of its parts are being sent, so
+     * that it leaves threads for other transfers.
+     */
+    private <T> Future<T> submitPart(Semaphore transferThreads, Callable<T> part) throws InterruptedException {
+        transferThreads.acquire();
+        try {
+            return partTransferExecutor.submit(() -> {
+                try {
+                    return part.call();
+                } finally {
+                    transferThreads.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            transferThreads.release();
+            throw e;
+        }
     }
     
     @Override
     public void dispose() {
-        //do not do anything yet...
+        partTransferExecutor.shutdown();
     }
 
     @Override
     public Optional<BlobStoreResult> putBlob(BlobId id, String mimeType, byte[] data, Instant expiryTime) throws BlobStoreException {
+        return putBlob(id, mimeType, data == null ? null : ByteBuffer.wrap(data), expiryTime);
+    }
+
+    @Override
+    public Optional<BlobStoreResult> putBlob(BlobId id, String mimeType, ByteBuffer data, Instant expiryTime) throws BlobStoreException {
         
-        log.info("Writing data to BlobId[" + id + "] writing[" + (data == null ? 0 : data.length) + "] bytes");
-        if (data == null || data.length == 0) {
+        log.info("Writing data to BlobId[" + id + "] writing[" + (data == null ? 0 : data.remaining()) + "] bytes");
+        if (data == null || !data.hasRemaining()) {
             log.info("No data to append ... not writing to S3");
             return Optional.empty();
         }
         
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(data);
-            //set up some meta data
-            ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentLength(data.length);
-            metadata.setContentType(mimeType);
-            metadata.setExpirationTime(Date.from(expiryTime));
-            metadata.addUserMetadata("expiry", expiryTime.toString());
-            metadata.setContentDisposition("attachment; filename=\""+ id.getId() + '"');
-            //set up the request
-            PutObjectRequest request = new PutObjectRequest(bucketName, getKey(id), bis, metadata);                            
-            request.withCannedAcl(CannedAccessControlList.PublicRead);
-            
-            //put the result 
-            s3.putObject(request);
+            ObjectMetadata metadata = newMetadata(id, mimeType, expiryTime);
+
+            if (data.remaining() > multipartThreshold) {
+                //each part reads straight from its own slice of the buffer
+                final ByteBuffer remaining = data.duplicate();
+                uploadInParts(getKey(id), metadata, getCannedAcl(), () -> {
+                    if (!remaining.hasRemaining()) {
+                        return null;
+                    }
+                    final ByteBuffer part = remaining.slice();
+                    part.limit(Math.min(partSize, remaining.remaining()));
+                    remaining.position(remaining.position() + part.remaining());
+                    return part;
+                });
+            } else {
+                //the request reads straight from the buffer
+                InputStream in = new ByteBufferInputStream(data);
+                metadata.setContentLength(data.remaining());
+                //set up the request
+                PutObjectRequest request = new PutObjectRequest(bucketName, getKey(id), in, metadata);
+                request.withCannedAcl(getCannedAcl());
+
+                //put the result
+                s3.putObject(request);
+            }
             
             BlobStoreResult blobResult = new BlobStoreResult(id, id.getId(), rootPath, expiryTime, "");
             
-            log.info("Wrote data to BlobId {} to a total of {} bytes", id, data.length);
+            log.info("Wrote data to BlobId {} to a total of {} bytes", id, data.remaining());
             return Optional.of(blobResult);
         }
         catch (Exception ex) {
@@ -116,6 +251,29 @@ public class BlobStoreServiceS3 implements BlobStoreService {
         
     }
 
+    /**
+     * Sends the stream as it is read, in parts if it is large, so that no more than a part for each upload thread is
+     * held in memory.
+     */
+    @Override
+    public Optional<BlobStoreResult> putBlob(BlobId id, String mimeType, InputStream in, long length, Instant expiryTime) throws BlobStoreException {
+        log.info("Writing data to BlobId[" + id + "] writing[" + length + "] bytes");
+        if (in == null || length == 0) {
+            log.info("No data to append ... not writing to S3");
+            return Optional.empty();
+        }
+
+        try {
+            putStream(getKey(id), newMetadata(id, mimeType, expiryTime), getCannedAcl(), in, length);
+
+            log.info("Wrote data to BlobId {} to a total of {} bytes", id, length);
+            return Optional.of(new BlobStoreResult(id, id.getId(), rootPath, expiryTime, ""));
+        }
+        catch (Exception ex) {
+            throw new BlobStoreException(ex.getClass() + " thrown whilst attempting to save BlobId[" + id + "] to S3", ex);
+        }
+    }
+
     @Override
     public void putBlob(BlobId id, String mimeType, InputStream in, int length) throws BlobStoreException {
         log.info("Writing data to BlobId[" + id + "] writing[" + length + "] bytes");
@@ -126,12 +284,9 @@ public class BlobStoreServiceS3 implements BlobStoreService {
         
         try {
             ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentLength(length);
             metadata.setContentType(mimeType);
 
-            PutObjectRequest request = new PutObjectRequest(bucketName, getKey(id), in, metadata);
-
-            s3.putObject(request);
+            putStream(getKey(id), metadata, null, in, length);
             
             log.info("Wrote data to BlobId[" + id + "] to a total of [" + length + "] bytes");
         }
@@ -140,32 +295,329 @@ public class BlobStoreServiceS3 implements BlobStoreService {
         }
     }
 
+    private ObjectMetadata newMetadata(BlobId id, String mimeType, Instant expiryTime) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(mimeType);
+        metadata.setExpirationTime(Date.from(expiryTime));
+        metadata.addUserMetadata("expiry", expiryTime.toString());
+        metadata.setContentDisposition("attachment; filename=\""+ id.getId() + '"');
+        return metadata;
+    }
+
+    private void putStream(String key, ObjectMetadata metadata, CannedAccessControlList acl, InputStream in, long length)
+            throws IOException, InterruptedException, ExecutionException {
+        if (length > multipartThreshold) {
+            //parts are read from the stream in turn, so at most one per upload thread is held in memory
+            final DataInputStream dataIn = new DataInputStream(in);
+            final long[] unread = { length };
+            uploadInParts(key, metadata, acl, () -> {
+                if (unread[0] == 0) {
+                    return null;
+                }
+                final byte[] part = new byte[(int) Math.min(partSize, unread[0])];
+                dataIn.readFully(part);
+                unread[0] -= part.length;
+                return ByteBuffer.wrap(part);
+            });
+        } else {
+            metadata.setContentLength(length);
+            PutObjectRequest request = new PutObjectRequest(bucketName, key, in, metadata);
+            if (acl != null) {
+                request.withCannedAcl(acl);
+            }
+
+            s3.putObject(request);
+        }
+    }
+
+    /**
+     * Source of the parts of a multipart upload, in order.
+     */
+    @FunctionalInterface
+    private interface PartSource {
+        /**
+         * @return the next part, or {@code null} if there are no more
+         */
+        ByteBuffer nextPart() throws IOException;
+    }
+
+    /**
+     * Uploads an object in parts, several at once, aborting the upload if any part cannot be uploaded.
+     */
+    private void uploadInParts(String key, ObjectMetadata metadata, CannedAccessControlList acl, PartSource parts)
+            throws IOException, InterruptedException, ExecutionException {
+        final InitiateMultipartUploadRequest initiate = new InitiateMultipartUploadRequest(bucketName, key, metadata);
+        if (acl != null) {
+            initiate.withCannedACL(acl);
+        }
+        final String uploadId = s3.initiateMultipartUpload(initiate).getUploadId();
+        final Semaphore uploadThreads = new Semaphore(multipartParallelism);
+        final List<Future<PartETag>> uploads = new ArrayList<>();
+        try {
+            while (true) {
+                // Waiting before reading means no more parts are held than can be uploaded at once, and stops early
+                // if a part has failed
+                uploadThreads.acquire();
+                final ByteBuffer partData;
+                try {
+                    for (Future<PartETag> upload : uploads) {
+                        if (upload.isDone()) {
+                            upload.get();
+                        }
+                    }
+                    partData = parts.nextPart();
+                } catch (IOException | ExecutionException | RuntimeException e) {
+                    uploadThreads.release();
+                    throw e;
+                }
+                if (partData == null) {
+                    uploadThreads.release();
+                    break;
+                }
+                final int partNumber = uploads.size() + 1;
+                try {
+                    uploads.add(partTransferExecutor.submit(() -> {
+                        try {
+                            return uploadPart(key, uploadId, partNumber, partData);
+                        } finally {
+                            uploadThreads.release();
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    uploadThreads.release();
+                    throw e;
+                }
+            }
+            final List<PartETag> partETags = new ArrayList<>(uploads.size());
+            for (Future<PartETag> upload : uploads) {
+                partETags.add(upload.get());
+            }
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+            log.info("Uploaded {} in {} parts", key, partETags.size());
+        } catch (IOException | InterruptedException | ExecutionException | RuntimeException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            uploads.forEach(upload -> upload.cancel(true));
+            try {
+                s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+                log.warn("Aborted multipart upload of {}", key);
+            } catch (RuntimeException abortFailure) {
+                e.addSuppressed(abortFailure);
+            }
+            throw e;
+        }
+    }
+
+    private PartETag uploadPart(String key, String uploadId, int partNumber, ByteBuffer part) throws IOException {
+        return withRetries("part " + partNumber + " of " + key, () -> s3.uploadPart(new UploadPartRequest()
+                .withBucketName(bucketName)
+                .withKey(key)
+                .withUploadId(uploadId)
+                .withPartNumber(partNumber)
+                .withPartSize(part.remaining())
+                .withInputStream(new ByteBufferInputStream(part)))
+                .getPartETag());
+    }
+
+    /**
+     * A transfer of one part or range of an object, which can be tried again if it fails.
+     */
+    @FunctionalInterface
+    private interface PartTransfer<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Tries a transfer up to {@code files.s3.multipart.partAttempts} times, unless S3 rejects the request itself.
+     */
+    private <T> T withRetries(String description, PartTransfer<T> transfer) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return transfer.run();
+            } catch (AmazonClientException | IOException e) {
+                final boolean clientError = e instanceof AmazonServiceException && ((AmazonServiceException) e).getStatusCode() < 500;
+                if (clientError || attempt >= partAttempts || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                log.warn("Retrying {} after attempt {} failed: {}", description, attempt, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gets the object with a ranged GET of at most its first {@code files.s3.multipart.threshold} bytes.
+     */
+    private S3Object getFirstRange(String key) {
+        try {
+            return s3.getObject(new GetObjectRequest(bucketName, key).withRange(0, Math.max(multipartThreshold, partSize) - 1));
+        } catch (AmazonS3Exception ex) {
+            if (ex.getStatusCode() != 416) {
+                throw ex;
+            }
+            //an empty object has no range to get
+            return s3.getObject(new GetObjectRequest(bucketName, key));
+        }
+    }
+
+    /**
+     * Reads a range of an object into the given array, failing rather than mixing in a different version of it.
+     */
+    private byte[] readRange(String key, String eTag, long start, byte[] range, int offset, int length) throws IOException {
+        return withRetries("bytes " + start + " of " + key, () -> {
+            final S3Object object = s3.getObject(new GetObjectRequest(bucketName, key)
+                    .withRange(start, start + length - 1)
+                    .withMatchingETagConstraint(eTag));
+            if (object == null) {
+                throw new ConcurrentModificationException(key + " changed whilst being read" + FROM_S3);
+            }
+            try (InputStream in = object.getObjectContent()) {
+                new DataInputStream(in).readFully(range, offset, length);
+            }
+            return range;
+        });
+    }
+
+    /**
+     * Reads the whole content of an object, fetching what follows its first range several ranges at once.
+     */
+    private byte[] readContent(String key, S3Object firstRange) throws IOException, InterruptedException, ExecutionException {
+        final ObjectMetadata metadata = firstRange.getObjectMetadata();
+        final long length = metadata.getInstanceLength();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(key + " is too large to read into memory: " + length + " bytes");
+        }
+        final byte[] content = new byte[(int) length];
+        final int firstRangeLength = (int) metadata.getContentLength();
+        //a single read may return less than the whole range
+        new DataInputStream(firstRange.getObjectContent()).readFully(content, 0, firstRangeLength);
+
+        final Semaphore rangeThreads = new Semaphore(multipartParallelism);
+        final List<Future<byte[]>> ranges = new ArrayList<>();
+        try {
+            for (int start = firstRangeLength; start < content.length; start += partSize) {
+                final int rangeStart = start;
+                final int rangeLength = Math.min(partSize, content.length - start);
+                ranges.add(submitPart(rangeThreads, () -> readRange(key, metadata.getETag(), rangeStart, content, rangeStart, rangeLength)));
+            }
+            for (Future<byte[]> range : ranges) {
+                range.get();
+            }
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            ranges.forEach(range -> range.cancel(true));
+            throw e;
+        }
+        if (!ranges.isEmpty()) {
+            log.info("Read {} in {} ranges", key, ranges.size() + 1);
+        }
+        return content;
+    }
+
+    /**
+     * Stream of an object's content which reads its first range directly and fetches the ranges after it in the
+     * background, as many at a time as an upload would send.
+     */
+    private final class RangedObjectInputStream extends InputStream {
+        private final String key;
+        private final String eTag;
+        private final long length;
+        private final Deque<Future<byte[]>> rangesAhead = new ArrayDeque<>();
+        private long nextRangeStart;
+        private InputStream current;
+
+        RangedObjectInputStream(String key, S3Object firstRange) {
+            this.key = key;
+            this.eTag = firstRange.getObjectMetadata().getETag();
+            this.length = firstRange.getObjectMetadata().getInstanceLength();
+            this.nextRangeStart = firstRange.getObjectMetadata().getContentLength();
+            this.current = firstRange.getObjectContent();
+            fetchAhead();
+        }
+
+        private void fetchAhead() {
+            while (rangesAhead.size() < multipartParallelism && nextRangeStart < length) {
+                final long start = nextRangeStart;
+                final int rangeLength = (int) Math.min(partSize, length - start);
+                rangesAhead.add(partTransferExecutor.submit(() -> readRange(key, eTag, start, new byte[rangeLength], 0, rangeLength)));
+                nextRangeStart += rangeLength;
+            }
+        }
+
+        private boolean nextRange() throws IOException {
+            final Future<byte[]> range = rangesAhead.poll();
+            if (range == null) {
+                return false;
+            }
+            current.close();
+            try {
+                current = new ByteArrayInputStream(range.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted whilst reading " + key + FROM_S3);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getClass() + " thrown whilst attempting to read " + key + FROM_S3, e.getCause());
+            }
+            fetchAhead();
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int count;
+            while ((count = current.read(b, off, len)) < 0) {
+                if (!nextRange()) {
+                    return -1;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            rangesAhead.forEach(range -> range.cancel(true));
+            rangesAhead.clear();
+            current.close();
+        }
+    }
+
     @Override
     public Optional<Blob> getBlob(BlobId id, boolean includeContent) throws BlobStoreException, BlobNotFoundException {
         S3Object object = null;
 
         try {
-            GetObjectRequest request = new GetObjectRequest(bucketName, getKey(id));
-            object = s3.getObject(request);
-            
-            if (object == null) {
-                return Optional.empty();
+            ObjectMetadata metadata;
+            if (includeContent) {
+                object = getFirstRange(getKey(id));
+                if (object == null) {
+                    return Optional.empty();
+                }
+                metadata = object.getObjectMetadata();
+            } else {
+                //only the metadata is needed, so the content is not fetched at all
+                metadata = s3.getObjectMetadata(bucketName, getKey(id));
             }
             
             //get the expiry user meta data 
-            String expiryString = object.getObjectMetadata().getUserMetaDataOf("expiry");
+            String expiryString = metadata.getUserMetaDataOf("expiry");
             Instant expiryInstant = Instant.parse(expiryString);
             
             byte buffer[] = new byte[0];
             if (includeContent) {
-                int length = (int)object.getObjectMetadata().getContentLength();
-                buffer = new byte[length];
-                InputStream in = object.getObjectContent();
-                in.read(buffer, 0, length);
+                buffer = readContent(getKey(id), object);
             }
             URI url = getUrl(id).orElse(null);
+            //the blob shares the buffer just read rather than copying it
             Blob blob = new Blob(id,                     
-                                object.getObjectMetadata().getContentType(), 
+                                metadata.getContentType(), 
                                 buffer, 
                                 expiryInstant, 
                                 url == null ? null :url.toString());
@@ -196,6 +648,28 @@ public class BlobStoreServiceS3 implements BlobStoreService {
     
     }
 
+    @Override
+    public InputStream openBlob(BlobId id) throws BlobStoreException, BlobNotFoundException {
+        try {
+            final S3Object firstRange = getFirstRange(getKey(id));
+            final ObjectMetadata metadata = firstRange.getObjectMetadata();
+            if (metadata.getInstanceLength() <= metadata.getContentLength()) {
+                return firstRange.getObjectContent();
+            }
+            return new RangedObjectInputStream(getKey(id), firstRange);
+        }
+        catch (AmazonS3Exception ex) {
+            if (ex.getStatusCode() == 404) {
+                throw new BlobNotFoundException(id + " not found whilst attempting to retrieve from S3"); // NOPMD - lack of exception is deliberate
+            }
+
+            throw new BlobStoreException(ex.getClass() + " thrown whilst attempting to retrieve " + id + FROM_S3, ex);
+        }
+        catch (RuntimeException ex) {
+            throw new BlobStoreException(ex.getClass() + " thrown whilst attempting to retrieve " + id + FROM_S3, ex);
+        }
+    }
+
     @Override
     public Optional<Long> getBlobSize(BlobId id) throws BlobStoreException, BlobNotFoundException {
        // S3Object object = null;
@@ -232,6 +706,74 @@ public class BlobStoreServiceS3 implements BlobStoreService {
         }
     }
 
+    /**
+     * Lists the blobs with the prefix page by page, deleting those written before the cut-off from each page in a
+     * single request while the next page is listed. Their expiry is not read, so the prefix must only hold blobs with
+     * the same lifetime.
+     */
+    @Override
+    public Optional<Long> removeBlobsModifiedBefore(String prefix, Instant cutOff) throws BlobStoreException {
+        final Date cutOffDate = Date.from(cutOff);
+        final Semaphore deleteThreads = new Semaphore(multipartParallelism);
+        final List<Future<Integer>> deletions = new ArrayList<>();
+        try {
+            ObjectListing objectListing = s3.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucketName)
+                    .withPrefix(getKey(new BlobId(prefix)))
+                    .withMaxKeys(MAX_KEYS_PER_DELETE));
+            while (true) {
+                final List<DeleteObjectsRequest.KeyVersion> keys = new ArrayList<>();
+                for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
+                    if (summary.getLastModified().before(cutOffDate)) {
+                        keys.add(new DeleteObjectsRequest.KeyVersion(summary.getKey()));
+                    }
+                }
+                if (!keys.isEmpty()) {
+                    deletions.add(submitPart(deleteThreads, () -> deleteObjects(keys)));
+                }
+                if (!objectListing.isTruncated()) {
+                    break;
+                }
+                objectListing = s3.listNextBatchOfObjects(objectListing);
+            }
+
+            long removed = 0;
+            for (Future<Integer> deletion : deletions) {
+                removed += deletion.get();
+            }
+            log.info("Removed {} blobs under {} written before {} in {} requests", removed, prefix, cutOff, deletions.size());
+            return Optional.of(removed);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            deletions.forEach(deletion -> deletion.cancel(true));
+            throw new BlobStoreException("Interrupted whilst attempting to delete blobs" + FROM_S3, ex);
+        }
+        catch (ExecutionException | RuntimeException ex) {
+            deletions.forEach(deletion -> deletion.cancel(true));
+            final Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+            throw new BlobStoreException(cause.getClass() + " thrown whilst attempting to delete blobs" + FROM_S3, cause);
+        }
+    }
+
+    /**
+     * Deletes up to {@value #MAX_KEYS_PER_DELETE} objects in a single request.
+     *
+     * @return the number deleted
+     */
+    private int deleteObjects(List<DeleteObjectsRequest.KeyVersion> keys) throws IOException {
+        return withRetries("deleting " + keys.size() + " objects", () -> {
+            try {
+                //a quiet delete only reports the keys which could not be deleted
+                s3.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(keys).withQuiet(true));
+                return keys.size();
+            } catch (MultiObjectDeleteException ex) {
+                ex.getErrors().forEach(error -> log.warn("Failed to delete {}: {}", error.getKey(), error.getMessage()));
+                return keys.size() - ex.getErrors().size();
+            }
+        });
+    }
+
     @Override
     public void renameBlob(BlobId oldBlob, BlobId newBlob) throws BlobStoreException, BlobNotFoundException {
         //Copy the object
@@ -252,8 +794,21 @@ public class BlobStoreServiceS3 implements BlobStoreService {
          
     }
 
+    /**
+     * Blobs are made public unless they are read with pre-signed urls.
+     */
+    private CannedAccessControlList getCannedAcl() {
+        return presignedUrls ? null : CannedAccessControlList.PublicRead;
+    }
+
+    /**
+     * If urls are pre-signed, they last for the SDK's default of 15 minutes.
+     */
     @Override
     public Optional<URI> getUrl(BlobId blobId) throws BlobStoreException, BlobNotFoundException {
+        if (presignedUrls) {
+            return getPresignedUrl(blobId, new GeneratePresignedUrlRequest(bucketName, getKey(blobId), HttpMethod.GET));
+        }
         
         try {
             //links are always /https://s3-eu-west-1.amazonaws.com/bucketname/rootpath/filename
@@ -266,6 +821,24 @@ public class BlobStoreServiceS3 implements BlobStoreService {
         }  
     }
  
+    @Override
+    public Optional<URI> getUrl(BlobId blobId, Instant expiry) throws BlobStoreException, BlobNotFoundException {
+        if (!presignedUrls) {
+            return getUrl(blobId);
+        }
+        return getPresignedUrl(blobId, new GeneratePresignedUrlRequest(bucketName, getKey(blobId), HttpMethod.GET)
+                .withExpiration(Date.from(expiry)));
+    }
+
+    private Optional<URI> getPresignedUrl(BlobId blobId, GeneratePresignedUrlRequest request) throws BlobStoreException {
+        try {
+            //signed locally, without a request to S3
+            return Optional.of(s3.generatePresignedUrl(request).toURI());
+        } catch (URISyntaxException | AmazonClientException e) {
+            throw new BlobStoreException(e.getClass() + " thrown whilst attempting to pre-sign url of " + blobId, e);
+        }
+    }
+ 
     /**
      * Get the key for a blob id. Prepend the root path plus / if there is 
      * root path set, otherwise just return the id. 
@@ -284,22 +857,27 @@ public class BlobStoreServiceS3 implements BlobStoreService {
     @Override
     public boolean exists(BlobId blobId) {
 
-        return s3.doesObjectExist(bucketName, blobId.getId());
+        return s3.doesObjectExist(bucketName, getKey(blobId));
     }   
     
     @Override
     public Optional<Blob> getBlobWithPartBlobId(String prefix, String suffix, boolean includeContent) throws BlobStoreException, BlobNotFoundException {
-        ObjectListing objectListing = s3.listObjects(bucketName, rootPath);
-        List<S3ObjectSummary> objectSummaries = objectListing.getObjectSummaries();
-        for (S3ObjectSummary sum : objectSummaries) {
-            String fileName = sum.getKey();
-            if (fileName.startsWith(rootPath + "/" + prefix) && fileName.endsWith(suffix)) {
-                //remove the root path from filename
-                String s3FileName = fileName.substring(rootPath.length() + 1);
-                return getBlob(new BlobId(s3FileName), includeContent);
+        //only keys with the prefix are listed, rather than every key under the root path
+        ObjectListing objectListing = s3.listObjects(bucketName, getKey(new BlobId(prefix)));
+        while (true) {
+            for (S3ObjectSummary sum : objectListing.getObjectSummaries()) {
+                String fileName = sum.getKey();
+                if (fileName.endsWith(suffix)) {
+                    //remove the root path from filename
+                    String s3FileName = rootPath == null || rootPath.isEmpty() ? fileName : fileName.substring(rootPath.length() + 1);
+                    return getBlob(new BlobId(s3FileName), includeContent);
+                }
             }
+            if (!objectListing.isTruncated()) {
+                return Optional.empty();
+            }
+            objectListing = s3.listNextBatchOfObjects(objectListing);
         }
-        return Optional.empty();
     }        
 
     @Override
@@ -307,10 +885,11 @@ public class BlobStoreServiceS3 implements BlobStoreService {
         
         ListObjectsRequest listObjectsRequest = new ListObjectsRequest().withBucketName(bucketName).withPrefix(rootPath);
         List<Blob> res = new ArrayList<>();
-        ObjectListing objectListing = s3.listObjects(listObjectsRequest);
+        ObjectListing objectListing = null;
 
         do {
-            objectListing = s3.listObjects(listObjectsRequest);
+            //the next page follows on from the last key of this one, as there is no next marker without a delimiter
+            objectListing = objectListing == null ? s3.listObjects(listObjectsRequest) : s3.listNextBatchOfObjects(objectListing);
             
             for (S3ObjectSummary s : objectListing.getObjectSummaries() ) {
                 String name = s.getKey();
@@ -329,8 +908,7 @@ public class BlobStoreServiceS3 implements BlobStoreService {
                     blob.ifPresent(m -> res.add(m));    
                 }
             }
-                                    
-            listObjectsRequest.setMarker(objectListing.getNextMarker());
+
         } while (objectListing.isTruncated());    
             
         return res;
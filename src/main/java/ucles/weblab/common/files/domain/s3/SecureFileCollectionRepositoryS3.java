@@ -71,6 +71,11 @@ public class SecureFileCollectionRepositoryS3 implements SecureFileCollectionRep
         throw new UnsupportedOperationException(NOT_SUPPORTED_YET); //To change body of generated methods, choose Tools | Templates.
     }
 
+    @Override
+    public Collection<? extends SecureFileCollectionEntity> findAllByPurgeInstantBefore(Instant cutOff) {
+        throw new UnsupportedOperationException(NOT_SUPPORTED_YET);
+    }
+
     @Override
     public Long removeByPurgeInstantBefore(Instant cutOff) {
         throw new UnsupportedOperationException(NOT_SUPPORTED_YET); //To change body of generated methods, choose Tools | Templates.
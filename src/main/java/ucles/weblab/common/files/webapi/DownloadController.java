@@ -1,18 +1,30 @@
 package ucles.weblab.common.files.webapi;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.dao.TransientDataAccessResourceException;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
 import ucles.weblab.common.files.domain.SecureFileEntity;
 
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.time.Clock;
 import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -24,10 +36,18 @@ import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
  * served out without authentication since the browser cannot supply the Authorization header required and AJAX
  * requests cannot result in downloads. They must also be served out with caching enabled otherwise Internet Explorer
  * will refuse to save the files.
+ * <p>
+ * Downloads are streamed from the {@link PendingDownload} rather than being read into memory, and single HTTP
+ * {@code Range} requests are supported so that downloads can be resumed or fetched in parts. Requests for multiple
+ * ranges are answered with the whole file, which HTTP permits.
+ * </p>
  */
 @RestController
 @RequestMapping("/downloads")
 public class DownloadController {
+    /** Separates the download ID from any token which follows it in the ID path segment. */
+    static final char TOKEN_SEPARATOR = '.';
+
     private Clock clock = Clock.systemUTC();
     private FileDownloadCache<UUID, PendingDownload> recentDownloadCache;
 
@@ -56,16 +76,22 @@ public class DownloadController {
      * @param collectionName
      * @param id
      * @param fileName
+     * @param range the requested byte range, if any
      * @return
      */
     @RequestMapping(value = "/{collectionName}/{id}/{fileName}/",
                     method = RequestMethod.GET)
-    public ResponseEntity<byte[]> fetchPreviouslyGeneratedDownload(@PathVariable String collectionName,
+    public ResponseEntity<Resource> fetchPreviouslyGeneratedDownload(@PathVariable String collectionName,
                                                                    @PathVariable String id,
-                                                                   @PathVariable String fileName) {
-        final UUID downloadId = UUID.fromString(id);
+                                                                   @PathVariable String fileName,
+                                                                   @RequestHeader(value = HttpHeaders.RANGE, required = false) String range) {
+        // A cache which keeps no state appends a token to the ID, e.g. a signed reference to the file
+        final int tokenStart = id.indexOf(TOKEN_SEPARATOR);
+        final UUID downloadId = UUID.fromString(tokenStart < 0 ? id : id.substring(0, tokenStart));
 
-        Optional<PendingDownload> pendingDownloadOptional = recentDownloadCache.get(downloadId, collectionName, fileName);
+        Optional<PendingDownload> pendingDownloadOptional = tokenStart < 0
+                ? recentDownloadCache.get(downloadId, collectionName, fileName)
+                : recentDownloadCache.get(downloadId, collectionName, fileName, id.substring(tokenStart + 1));
 
         PendingDownload pendingDownload = pendingDownloadOptional.orElse(null);
 
@@ -74,15 +100,156 @@ public class DownloadController {
         }
 
         // TODO: validate that toUri() is OK and doesn't need replacing with URI.create(...toString()) to avoid double-encoding.
-        URI toUri = linkTo(methodOn(DownloadController.class).fetchPreviouslyGeneratedDownload(downloadId.toString(), collectionName, fileName)).toUri();
+        URI toUri = linkTo(methodOn(DownloadController.class).fetchPreviouslyGeneratedDownload(collectionName, id, fileName, null)).toUri();
         HttpHeaders headers = new HttpHeaders();
         // The important thing is to avoid no-cache and no-store, for IE.
         headers.setCacheControl("private, max-age=300");
         headers.setContentType(pendingDownload.getContentType());
-        headers.setContentLength(pendingDownload.getContent().length);
+        // Content-Length is set from the resource, which may be just the requested range.
         headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + '"');
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
         headers.setLocation(toUri);
-        return new ResponseEntity<>(pendingDownload.getContent(), headers, HttpStatus.OK);
+
+        final long length = pendingDownload.getContentLength();
+        final List<HttpRange> ranges = parseRanges(range);
+        long offset = 0;
+        long count = length;
+        HttpStatus status = HttpStatus.OK;
+        if (ranges.size() == 1) {
+            final long start = ranges.get(0).getRangeStart(length);
+            final long end = ranges.get(0).getRangeEnd(length);
+            if (start >= length || start > end) {
+                headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                return new ResponseEntity<>(headers, HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            }
+            headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + '-' + end + '/' + length);
+            offset = start;
+            count = end - start + 1;
+            status = HttpStatus.PARTIAL_CONTENT;
+        }
+        try {
+            return new ResponseEntity<>(new PendingDownloadResource(pendingDownload, offset, count), headers, status);
+        } catch (FileNotFoundException e) {
+            // The file was deleted or replaced after the download was generated
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        } catch (IOException e) {
+            throw new TransientDataAccessResourceException("Could not read download " + fileName, e);
+        }
+    }
+
+    /**
+     * Parses a Range header, ignoring it if it is malformed as HTTP allows.
+     */
+    private static List<HttpRange> parseRanges(String range) {
+        try {
+            return HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Exposes all or part of the content of a pending download as a resource. The content is opened when the resource
+     * is created, so that content which can no longer be read is found before the response is started.
+     */
+    private static class PendingDownloadResource extends AbstractResource {
+        private final String filename;
+        private final InputStream content;
+        private final long length;
+
+        PendingDownloadResource(PendingDownload pendingDownload, long offset, long length) throws IOException {
+            this.filename = pendingDownload.getFilename();
+            this.length = length;
+            final InputStream content = pendingDownload.openContent();
+            long skipped = 0;
+            while (skipped < offset) {
+                final long count = content.skip(offset - skipped);
+                if (count <= 0) {
+                    content.close();
+                    throw new EOFException("Download content ended before offset " + offset);
+                }
+                skipped += count;
+            }
+            this.content = new BoundedInputStream(content, length);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return content;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public String getDescription() {
+            return "Pending download [" + filename + "]";
+        }
+    }
+
+    /**
+     * Reads no more than a given number of bytes from the underlying stream.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int count = in.read(b, off, (int) Math.min(len, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long count = in.skip(Math.min(n, remaining));
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
     }
 
 }
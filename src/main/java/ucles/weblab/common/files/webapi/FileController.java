@@ -1,8 +1,11 @@
 package ucles.weblab.common.files.webapi;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.core.NestedRuntimeException;
 import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.hateoas.Link;
 import org.springframework.hateoas.ResourceSupport;
 import org.springframework.http.HttpHeaders;
@@ -14,6 +17,7 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import ucles.weblab.common.files.domain.SecureFileMetadataEntity;
 import ucles.weblab.common.files.domain.SecureFileMetadataRepository;
+import ucles.weblab.common.files.domain.SecureFileMetadataUpdate;
 import ucles.weblab.common.webapi.AccessAudited;
 import ucles.weblab.common.webapi.exception.ResourceNotFoundException;
 import ucles.weblab.common.files.domain.FilesFactory;
@@ -32,10 +36,14 @@ import java.io.IOException;
 import java.net.URI;
 import java.time.Clock;
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
-import java.util.function.Function;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -70,8 +78,9 @@ public class FileController {
     private final Supplier<SecureFile.Builder> secureFileBuilder;
     private final FileDownloadCache<UUID, PendingDownload> downloadCache;
     private Clock clock = Clock.systemUTC();
+    private GaugeService gaugeService;
 
-    private final Object mutex = new Object();
+    private final ConcurrentMap<String, CompletableFuture<Optional<URI>>> downloadsInFlight = new ConcurrentHashMap<>();
 
     private static class DecryptionFailedException extends NestedRuntimeException {
         DecryptionFailedException(Exception e) {
@@ -102,6 +111,11 @@ public class FileController {
         this.downloadCache = downloadCache;
     }
 
+    @Autowired(required = false) // upload rates are only logged if there is no metrics support
+    void configureGaugeService(GaugeService gaugeService) {
+        this.gaugeService = gaugeService;
+    }
+
     @RequestMapping(value = "/", method = RequestMethod.GET, produces = APPLICATION_JSON_UTF8_VALUE)
     @PreAuthorize(IS_AUTHENTICATED)
     public List<FileCollectionResource> listBuckets() {
@@ -123,12 +137,22 @@ public class FileController {
 
     @RequestMapping(value = "/{bucket}/", method = RequestMethod.GET, produces = APPLICATION_JSON_UTF8_VALUE)
     @AccessAudited
-    public ResponseEntity<List<FileMetadataResource>> listFilesInBucket(@PathVariable String bucket) {
+    public ResponseEntity<List<FileMetadataResource>> listFilesInBucket(@PathVariable String bucket,
+                                                                        @RequestParam(required = false) Integer page,
+                                                                        @RequestParam(required = false) Integer size) {
+        if ((page != null && page < 0) || (size != null && size < 1) || (page != null && size == null)) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
         SecureFileCollectionEntity collection = secureFileCollectionRepository.findOneByBucket(bucket);
         if (collection == null) {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
-        return ResponseEntity.ok(secureFileMetadataRepository.findAllByCollection(collection).stream()
+        // Without a page size, every file is listed
+        final Collection<? extends SecureFileMetadataEntity> files = size == null
+                ? secureFileMetadataRepository.findAllByCollection(collection)
+                : secureFileMetadataRepository.findAllByCollection(collection,
+                        new PageRequest(page == null ? 0 : page, size, Sort.Direction.ASC, "filename"));
+        return ResponseEntity.ok(files.stream()
                 .map(fileMetadataResourceAssembler::toResource)
                 .collect(toList()));
     }
@@ -154,19 +178,14 @@ public class FileController {
         if (collection == null) {
             throw new ResourceNotFoundException(bucket);
         }
-        final SecureFileEntity file = secureFileRepository.findOneByCollectionAndFilename(collection, filename)
-                .orElseThrow(() -> new ResourceNotFoundException(filename));
-
-        if (update.getContentType() != null) {
-            file.setContentType(update.getContentType());
-        }
-        if (update.getFilename() != null) {
-            file.setFilename(update.getFilename());
-        }
-        if (update.getNotes() != null) {
-            file.setNotes(update.getNotes());
+        final SecureFileMetadataUpdate changes = new SecureFileMetadataUpdate(update.getFilename(), update.getContentType(), update.getNotes());
+        if (secureFileRepository.updateMetadata(collection, filename, changes) == 0) {
+            throw new ResourceNotFoundException(filename);
         }
-        return fileMetadataResourceAssembler.toResource(secureFileRepository.save(file));
+        final String updatedFilename = changes.getFilename().orElse(filename);
+        return secureFileMetadataRepository.findOneByCollectionAndFilename(collection, updatedFilename)
+                .map(fileMetadataResourceAssembler::toResource)
+                .orElseThrow(() -> new ResourceNotFoundException(updatedFilename));
     }
 
     @RequestMapping(value = "/{bucket}/{filename}/", method = RequestMethod.DELETE, produces = APPLICATION_JSON_UTF8_VALUE)
@@ -177,10 +196,9 @@ public class FileController {
         if (collection == null) {
             throw new ResourceNotFoundException(bucket);
         }
-        final SecureFileEntity file = secureFileRepository.findOneByCollectionAndFilename(collection, filename)
-                .orElseThrow(() -> new ResourceNotFoundException(filename));
-
-        secureFileRepository.delete(file);
+        if (secureFileRepository.deleteByCollectionAndFilename(collection, filename) == 0) {
+            throw new ResourceNotFoundException(filename);
+        }
     }
 
     @RequestMapping(value = "/{bucket}/{filename}/preview/", method = RequestMethod.GET)
@@ -202,17 +220,17 @@ public class FileController {
     @PreAuthorize(IS_AUTHENTICATED)
     @AccessAudited
     public ResponseEntity<ResourceSupport> redirectToDownload(@PathVariable String bucket, @PathVariable String filename) {
-        return redirectToDownload(bucket, filename, SecureFile::getPlainData);
+        return redirectToDownload(bucket, filename, false);
     }
 
     @RequestMapping(value = "/{bucket}/{filename}/downloadEncrypted/", method = RequestMethod.GET)
     @PreAuthorize(IS_AUTHENTICATED)
     @AccessAudited
     public ResponseEntity<ResourceSupport> redirectToDownloadEncrypted(@PathVariable String bucket, @PathVariable String filename) {
-        return redirectToDownload(bucket, filename, SecureFile::getEncryptedData);
+        return redirectToDownload(bucket, filename, true);
     }
 
-    private ResponseEntity<ResourceSupport> redirectToDownload(@PathVariable String bucket, @PathVariable String filename, Function<SecureFile, byte[]> extractData) {
+    private ResponseEntity<ResourceSupport> redirectToDownload(@PathVariable String bucket, @PathVariable String filename, boolean encrypted) {
         final SecureFileCollectionEntity collection = secureFileCollectionRepository.findOneByBucket(bucket);
         if (collection == null) {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
@@ -226,11 +244,7 @@ public class FileController {
                 Optional<URI> res = downloadCache.getUrl(id, bucket, secureFile.getFilename());
 
                 //create PendingDownload to save
-                PendingDownload pd = new PendingDownload(MediaType.valueOf(secureFile.getContentType()),
-                        secureFile.getFilename(),
-                        extractData.apply(secureFile),
-                        Instant.now(clock).plus(this.downloadCache.getExpiry()),
-                        res.orElse(null));
+                PendingDownload pd = newPendingDownload(collection, secureFile, encrypted, res.orElse(null));
 
                 //put it in the cache
                 downloadCache.put(id, bucket, pd);
@@ -280,35 +294,65 @@ public class FileController {
         if (collection == null) {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
+        final Optional<URI> location = findOrCreateDownload(bucket, collection, filename, encrypted);
+        if (!location.isPresent()) {
+            log.info("{} not found in repository, returning 404", filename);
+            //it's not in the cache nor the repository
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return getRedirectResponseOrNotFound(location.get());
+    }
+
+    /**
+     * Finds the download for a file in the cache, or creates one from the repository.
+     * Concurrent first requests for the same file share a single load of it, so only one download is created no
+     * matter how many threads ask, while requests for different files proceed in parallel.
+     */
+    private Optional<URI> findOrCreateDownload(String bucket, SecureFileCollectionEntity collection, String filename, boolean encrypted) {
+        final String flightKey = bucket + '/' + filename + (encrypted ? "/encrypted" : "");
+        final CompletableFuture<Optional<URI>> flight = new CompletableFuture<>();
+        final CompletableFuture<Optional<URI>> existing = downloadsInFlight.putIfAbsent(flightKey, flight);
+        if (existing != null) {
+            log.info(Thread.currentThread().getName() + " thread is waiting for {} to be loaded", filename);
+            return await(existing);
+        }
+        try {
+            flight.complete(findCachedOrLoad(bucket, collection, filename, encrypted));
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            downloadsInFlight.remove(flightKey, flight);
+        }
+        return await(flight);
+    }
+
+    private Optional<URI> findCachedOrLoad(String bucket, SecureFileCollectionEntity collection, String filename, boolean encrypted) {
         //always create a random id, first time round
         UUID id = UUID.randomUUID();
-        URI location;
-        Optional<PendingDownload> fileOpt;
-
-        synchronized (mutex) {
-            //one thread at a time
-            log.info(Thread.currentThread().getName() + " thread is getting {} from cache", filename);
-            fileOpt = downloadCache.get(id, bucket, filename);
-
-            if (fileOpt.isPresent()) {
-                log.info(Thread.currentThread().getName() + " thread found {} in cache", filename);
-                //if it's there, then set the location
-                location = fileOpt.get().getUrl();
-            } else {
-                log.info(Thread.currentThread().getName() + " thread not found {} in cache, going to database", filename);
-                //this should only be done ONCE no matter how many first threads.
-                Optional<URI> optReturn  = getLocation(id, bucket, collection, filename, encrypted);
-                if (optReturn.isPresent()) {
-                    location = optReturn.get();
-                } else {
-                    log.info("{} not found in repository, returning 404", filename);
-                    //it's not in the cache nor the repository
-                    return new ResponseEntity<>(HttpStatus.NOT_FOUND);
-                }
-            }
+        log.info(Thread.currentThread().getName() + " thread is getting {} from cache", filename);
+        // Looked up within the flight, so a request arriving just after another load finishes still finds its download
+        final Optional<PendingDownload> fileOpt = downloadCache.get(id, bucket, filename);
+        if (fileOpt.isPresent()) {
+            log.info(Thread.currentThread().getName() + " thread found {} in cache", filename);
+            //if it's there, then set the location
+            return Optional.ofNullable(fileOpt.get().getUrl());
         }
+        log.info(Thread.currentThread().getName() + " thread not found {} in cache, going to database", filename);
+        return getLocation(id, bucket, collection, filename, encrypted);
+    }
 
-        return getRedirectResponseOrNotFound(location);
+    private static <T> T await(CompletableFuture<T> flight) {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
     }
 
     /**
@@ -320,37 +364,43 @@ public class FileController {
      * @param isEncrypted - whether or not to return encrypted file data
      */
     private Optional<URI> getLocation(UUID id, String bucket, SecureFileCollectionEntity collection, String filename, boolean isEncrypted) {
-        synchronized (this) {
-            final Optional<? extends SecureFileEntity> found = secureFileRepository.findOneByCollectionAndFilename(collection, filename);
+        final Optional<? extends SecureFileEntity> found = secureFileRepository.findOneByCollectionAndFilename(collection, filename);
 
-            //if there is a filename
-            if (found.isPresent()) {
-                log.info(Thread.currentThread().getName() + " thread getting file from database and adding cache");
-                //get the file object
-                SecureFileEntity secureFile = found.get();
+        //if there is a filename
+        if (found.isPresent()) {
+            log.info(Thread.currentThread().getName() + " thread getting file from database and adding cache");
+            //get the file object
+            SecureFileEntity secureFile = found.get();
 
-                //each cache knows how to create a url
-                Optional<URI> res = downloadCache.getUrl(id, bucket, secureFile.getFilename());
+            //each cache knows how to create a url
+            Optional<URI> res = downloadCache.getUrl(id, bucket, secureFile.getFilename());
 
-                //create PendingDownload to put in the cache
-                PendingDownload pd = new PendingDownload(MediaType.valueOf(secureFile.getContentType()),
-                        secureFile.getFilename(),
-                        isEncrypted ? secureFile.getEncryptedData() : secureFile.getPlainData(),
-                        Instant.now(clock).plus(this.downloadCache.getExpiry()),
-                        res.orElse(null));
-                //put it in the cache
-                downloadCache.put(id, bucket, pd);
+            //create PendingDownload to put in the cache
+            PendingDownload pd = newPendingDownload(collection, secureFile, isEncrypted, res.orElse(null));
+            //put it in the cache
+            downloadCache.put(id, bucket, pd);
 
-                //get location
-                URI location = downloadController.generateDownload(id, bucket, secureFile);
+            //get location
+            URI location = downloadController.generateDownload(id, bucket, secureFile);
 
-                return Optional.of(location);
-            } else {
-                return Optional.empty();
-            }
+            return Optional.of(location);
+        } else {
+            return Optional.empty();
         }
     }
 
+    /**
+     * Creates a download which refers to the stored file. Nothing is read or decrypted until the download is fetched,
+     * as most generated links are never followed.
+     */
+    private PendingDownload newPendingDownload(SecureFileCollectionEntity collection, SecureFileEntity secureFile, boolean encrypted, URI url) {
+        final MediaType contentType = MediaType.valueOf(secureFile.getContentType());
+        final Instant purgeTime = Instant.now(clock).plus(this.downloadCache.getExpiry());
+        final StoredFileReference storedFile = StoredFileReference.of(secureFile, encrypted);
+        return PendingDownload.deferred(contentType, storedFile, () -> storedFile.open(secureFileRepository, collection),
+                storedFile.contentLength(secureFile), purgeTime, url);
+    }
+
     @RequestMapping(value = "/", method = RequestMethod.POST, consumes = MULTIPART_FORM_DATA_VALUE, produces = APPLICATION_JSON_UTF8_VALUE)
     public ResponseEntity<FileMetadataResource> uploadFileToBucket(@RequestParam String collection, @RequestParam(required = false) String notes, @RequestParam MultipartFile file) throws IOException {
         if (file.isEmpty()) {
@@ -360,19 +410,32 @@ public class FileController {
         if (bucket == null) {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
+        // The upload is streamed through encryption into the repository, rather than read into memory first, unless
+        // the cipher can only encrypt the whole file at once (e.g. the default AES-GCM, unlike AES-GCM-CH).
+        final MeteredUpload upload = new MeteredUpload(file);
         final SecureFile fileDefinition = secureFileBuilder.get()
                 .filename(file.getOriginalFilename())
                 .contentType(file.getContentType())
                 .length(file.getSize())
-                .plainData(file.getBytes())
+                .plainDataSource(upload)
                 .notes(notes)
                 .get();
         final SecureFileEntity toSave = filesFactory.newSecureFile(bucket, fileDefinition);
         final SecureFileEntity savedFile = secureFileRepository.save(toSave);
+        reportUpload(upload);
         final FileMetadataResource resource = fileMetadataResourceAssembler.toResource(savedFile);
         return new ResponseEntity<>(resource, locationHeader(resource), HttpStatus.CREATED);
     }
 
+    private void reportUpload(MeteredUpload upload) {
+        log.debug("Uploaded {} bytes at {} bytes/s with largest read of {} bytes",
+                upload.getBytesRead(), upload.getBytesPerSecond(), upload.getLargestReadBytes());
+        if (gaugeService != null) {
+            gaugeService.submit("files.upload.bytesPerSecond", upload.getBytesPerSecond());
+            gaugeService.submit("files.upload.largestReadBytes", upload.getLargestReadBytes());
+        }
+    }
+
     private ResponseEntity<ResourceSupport> getRedirectResponseOrNotFound(URI location) {
         if (location == null) {
             log.info("Location was never found, returning 404");
@@ -19,6 +19,14 @@ public interface FileDownloadCache<T extends Serializable, D> {
     void clean();
     
     Optional<D> get(T id, String collectionName, String fileName);
+
+    /**
+     * Finds a download from a link carrying a token, as issued by caches which encode the download in its link
+     * instead of holding it. Other caches ignore the token.
+     */
+    default Optional<D> get(T id, String collectionName, String fileName, String token) {
+        return get(id, collectionName, fileName);
+    }
         
     Optional<BlobStoreResult> put(T id, String collectionName, D pendingDownload);
     
@@ -4,64 +4,126 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.scheduling.annotation.Scheduled;
 import ucles.weblab.common.files.blob.api.BlobId;
 import ucles.weblab.common.files.blob.api.BlobStoreResult;
 import ucles.weblab.common.files.domain.SecureFileMetadata;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
 import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import java.util.regex.Pattern;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
 
 
 /**
+ * Downloads are held in a map keyed on collection, ID and filename. A second map from collection and filename to the
+ * key of the most recent download of that file allows a download to be found when its ID is not known, so every
+ * lookup takes constant time however many downloads are pending.
+ * <p>
+ * The cache is bounded by the total content length of its downloads ({@code files.download.cache.maxBytes}) and by
+ * their number ({@code files.download.cache.maxEntries}). When a new download would exceed either, the least recently
+ * used downloads are evicted. Deferred downloads, which read the stored file only when fetched, hold no content and so
+ * only count towards the number, which is the only limit on the downloads {@link FileController} creates. Each
+ * download is also removed as soon
+ * as the cache is next used after its purge time, rather than waiting for the scheduled {@link #clean()}. Hits,
+ * misses, evictions and the bytes held are published as actuator metrics.
+ * </p>
+ * <p>
+ * With {@code files.download.cache.offHeap} set, download content is copied to temporary files (in
+ * {@code files.download.cache.offHeapDirectory}, by default the system temporary directory) instead of being held on
+ * the heap, and each file is deleted as soon as its download is evicted or expires. The size limit then applies to
+ * the files. Deferred downloads are never copied.
+ * </p>
  *
  * @author sukhraj (taken from code from DownloadController with was originally
  * written by gboden.
  */
-public class FileDownloadCacheInMemory implements FileDownloadCache<UUID, PendingDownload> {
+public class FileDownloadCacheInMemory implements FileDownloadCache<UUID, PendingDownload>, PublicMetrics {
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final String METRIC_PREFIX = "files.download.cache.";
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    private final ConcurrentHashMap<String, PendingDownload> recentDownloadCache;
+    /** Downloads in least recently used order. Guarded by itself, as are {@link #expiryQueue} and {@link #residentBytes}. */
+    private final LinkedHashMap<String, PendingDownload> recentDownloadCache;
+    /**
+     * Downloads in purge time order. May include downloads already evicted or replaced, which are skipped. Entries only
+     * refer weakly to their download, so that one which has been evicted does not stay on the heap until its purge time.
+     */
+    private final PriorityQueue<ExpiryEntry> expiryQueue;
+    /** Key in {@link #recentDownloadCache} of the most recent download for each collection and filename. */
+    private final ConcurrentHashMap<String, String> recentDownloadKeys;
+    private long residentBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
     private Clock clock = Clock.systemUTC();
     private Duration cacheExpiry;
+    private long maxBytes = 256L * 1024 * 1024;
+    private int maxEntries = 10000;
+    /** Directory for temporary files holding download content, or {@code null} to hold it on the heap. */
+    private Path offHeapDirectory;
 
     public FileDownloadCacheInMemory() {
-        recentDownloadCache = new ConcurrentHashMap<>();
+        recentDownloadCache = new LinkedHashMap<>(16, 0.75f, true);
+        expiryQueue = new PriorityQueue<>(Comparator.comparing(ExpiryEntry::getPurgeTime));
+        recentDownloadKeys = new ConcurrentHashMap<>();
     }
 
     /**
-     * Scheduled job to clean up the cache every 15 minutes.
+     * Scheduled job to clean up the cache every 15 minutes. Expired downloads are usually removed sooner, whenever the
+     * cache is used.
      */
     @Override
     @Scheduled(fixedRate = 15 * 60 * 1000)
     public void clean() {
-        recentDownloadCache.entrySet().removeIf(cacheEntry -> cacheEntry.getValue().getPurgeTime().isBefore(Instant.now(clock)));
+        synchronized (recentDownloadCache) {
+            expire();
+        }
+        recentDownloadKeys.values().removeIf(key -> !containsKey(key));
     }
 
+    /**
+     * Finds the download with the given ID or, if there is none, the most recent download of the same file.
+     */
     @Override
     public Optional<PendingDownload> get(UUID id, String collectionName, String fileName) {
-        final Iterator<Map.Entry<String, PendingDownload>> cacheEntries = recentDownloadCache.entrySet().iterator();
-        while (cacheEntries.hasNext()) {
-            Map.Entry<String, PendingDownload> cacheEntry =  cacheEntries.next();
-            String cacheKey = cacheEntry.getKey();
-            if (cacheKey.startsWith(collectionName) && cacheKey.endsWith(fileName.replaceAll("\\s+", "_"))) {
-                return Optional.of(cacheEntry.getValue());
-            }
+        final String key = createCacheKey(id, collectionName, fileName);
+        final String recentKey = recentDownloadKeys.get(createRecentKey(collectionName, fileName));
+        final PendingDownload pendingDownload;
+        synchronized (recentDownloadCache) {
+            expire();
+            final PendingDownload byId = recentDownloadCache.get(key);
+            pendingDownload = byId != null || recentKey == null ? byId : recentDownloadCache.get(recentKey);
         }
-
-        return Optional.empty();
-
+        (pendingDownload == null ? misses : hits).incrementAndGet();
+        return Optional.ofNullable(pendingDownload);
     }
 
 
@@ -69,7 +131,19 @@ public class FileDownloadCacheInMemory implements FileDownloadCache<UUID, Pendin
     public Optional<BlobStoreResult> put(UUID id, String collectionName, PendingDownload pendingDownload) {
 
         String key = createCacheKey(id, collectionName, pendingDownload.getFilename());
-        recentDownloadCache.put(key, pendingDownload);
+        final PendingDownload cachedDownload = offHeap(pendingDownload);
+        synchronized (recentDownloadCache) {
+            expire();
+            final PendingDownload replaced = recentDownloadCache.put(key, cachedDownload);
+            if (replaced != null) {
+                residentBytes -= replaced.getResidentBytes();
+                replaced.release();
+            }
+            residentBytes += cachedDownload.getResidentBytes();
+            expiryQueue.add(new ExpiryEntry(key, cachedDownload));
+            evictToFit(key);
+        }
+        recentDownloadKeys.put(createRecentKey(collectionName, pendingDownload.getFilename()), key);
         BlobStoreResult blobStoreResult = new BlobStoreResult(new BlobId(id.toString()),
                                                               pendingDownload.getFilename(),
                                                               collectionName,
@@ -78,6 +152,90 @@ public class FileDownloadCacheInMemory implements FileDownloadCache<UUID, Pendin
         return Optional.of(blobStoreResult);
     }
 
+    private PendingDownload offHeap(PendingDownload pendingDownload) {
+        if (offHeapDirectory != null && !pendingDownload.isDeferred()) {
+            try {
+                return pendingDownload.toTempFile(offHeapDirectory);
+            } catch (IOException e) {
+                log.warn("Could not store download " + pendingDownload.getFilename() + " off the heap, keeping it in memory", e);
+            }
+        }
+        return pendingDownload;
+    }
+
+    /**
+     * Removes downloads whose purge time has passed. Must hold the lock on {@link #recentDownloadCache}.
+     */
+    private void expire() {
+        final Instant now = Instant.now(clock);
+        while (!expiryQueue.isEmpty() && expiryQueue.peek().getPurgeTime().isBefore(now)) {
+            final ExpiryEntry entry = expiryQueue.poll();
+            final PendingDownload pendingDownload = recentDownloadCache.get(entry.key);
+            if (pendingDownload != null && pendingDownload == entry.pendingDownload.get()) {
+                recentDownloadCache.remove(entry.key);
+                residentBytes -= pendingDownload.getResidentBytes();
+                pendingDownload.release();
+                expirations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used downloads until the cache fits within its limits, but never the download just
+     * added. Must hold the lock on {@link #recentDownloadCache}.
+     */
+    private void evictToFit(String newKey) {
+        final Iterator<Map.Entry<String, PendingDownload>> eldest = recentDownloadCache.entrySet().iterator();
+        while ((residentBytes > maxBytes || recentDownloadCache.size() > maxEntries) && eldest.hasNext()) {
+            final Map.Entry<String, PendingDownload> entry = eldest.next();
+            if (!entry.getKey().equals(newKey)) {
+                log.warn("Evicting download {} before its purge time to stay within {} bytes and {} downloads",
+                        entry.getKey(), maxBytes, maxEntries);
+                residentBytes -= entry.getValue().getResidentBytes();
+                eldest.remove();
+                entry.getValue().release();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Releases all downloads held, deleting any temporary files.
+     */
+    @PreDestroy
+    public void releaseAll() {
+        synchronized (recentDownloadCache) {
+            recentDownloadCache.values().forEach(PendingDownload::release);
+            recentDownloadCache.clear();
+            expiryQueue.clear();
+            residentBytes = 0;
+        }
+        recentDownloadKeys.clear();
+    }
+
+    private boolean containsKey(String key) {
+        synchronized (recentDownloadCache) {
+            return recentDownloadCache.containsKey(key);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final long bytes;
+        final int entries;
+        synchronized (recentDownloadCache) {
+            bytes = residentBytes;
+            entries = recentDownloadCache.size();
+        }
+        return Arrays.asList(
+                new Metric<>(METRIC_PREFIX + "hits", hits.get()),
+                new Metric<>(METRIC_PREFIX + "misses", misses.get()),
+                new Metric<>(METRIC_PREFIX + "evictions", evictions.get()),
+                new Metric<>(METRIC_PREFIX + "expirations", expirations.get()),
+                new Metric<>(METRIC_PREFIX + "entries", entries),
+                new Metric<>(METRIC_PREFIX + "residentBytes", bytes));
+    }
+
     @Override
     public Duration getExpiry() {
         return cacheExpiry;
@@ -85,9 +243,24 @@ public class FileDownloadCacheInMemory implements FileDownloadCache<UUID, Pendin
 
     @Override
     public boolean exists(UUID id, String collectionName, SecureFileMetadata secureFileMetadata) {
-        String key = createCacheKey(id, collectionName, collectionName);
-        PendingDownload pd = recentDownloadCache.get(key);
-        return pd != null;
+        String key = createCacheKey(id, collectionName, secureFileMetadata.getFilename());
+        return containsKey(key);
+    }
+
+    @Override
+    public String createCacheKey(UUID id, String collectionName, String fileName) {
+        return WHITESPACE.matcher(collectionName + "_" + id + "_" + fileName).replaceAll("_");
+    }
+
+    /**
+     * Each part is encoded, so that no two collections and filenames share a key.
+     */
+    private String createRecentKey(String collectionName, String fileName) {
+        try {
+            return URLEncoder.encode(collectionName, UTF_8.name()) + '/' + URLEncoder.encode(fileName, UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
     }
 
     @Autowired(required = false) // will fall back to default system UTC clock
@@ -102,10 +275,34 @@ public class FileDownloadCacheInMemory implements FileDownloadCache<UUID, Pendin
         this.cacheExpiry = Duration.ofSeconds(cacheExpirySeconds);
     }
 
+    @Autowired
+    void configureMaxBytes(@Value("${files.download.cache.maxBytes:268435456}") long maxBytes) {
+        log.info("Cache limited to " + maxBytes + " bytes");
+        this.maxBytes = maxBytes;
+    }
+
+    @Autowired
+    void configureMaxEntries(@Value("${files.download.cache.maxEntries:10000}") int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache must hold at least one download: " + maxEntries);
+        }
+        log.info("Cache limited to " + maxEntries + " downloads");
+        this.maxEntries = maxEntries;
+    }
+
+    @Autowired
+    void configureOffHeap(@Value("${files.download.cache.offHeap:false}") boolean offHeap,
+                          @Value("${files.download.cache.offHeapDirectory:${java.io.tmpdir}}") String directory) {
+        this.offHeapDirectory = offHeap ? Paths.get(directory) : null;
+        if (offHeap) {
+            log.info("Download content will be held in temporary files in " + offHeapDirectory);
+        }
+    }
+
     @Override
     public Optional<URI> getUrl(UUID id, String collectionName, String fileName) {
         try {
-            String url = linkTo(methodOn(DownloadController.class).fetchPreviouslyGeneratedDownload(collectionName, id.toString(),fileName )).toString();
+            String url = linkTo(methodOn(DownloadController.class).fetchPreviouslyGeneratedDownload(collectionName, id.toString(),fileName, null)).toString();
             return Optional.of(URI.create(url));
         } catch (Exception e) {
             log.warn("Exception caught while getting url from ControllerLinkBuilder, returning empty optional", e);
@@ -116,9 +313,23 @@ public class FileDownloadCacheInMemory implements FileDownloadCache<UUID, Pendin
 
     @Override
     public URI getRedirectUrl(UUID id, String collectionName, String fileName) {
-        return URI.create(linkTo(methodOn(DownloadController.class).fetchPreviouslyGeneratedDownload(collectionName, id == null ? null : id.toString(), fileName)).toString());
+        return URI.create(linkTo(methodOn(DownloadController.class).fetchPreviouslyGeneratedDownload(collectionName, id == null ? null : id.toString(), fileName, null)).toString());
     }
 
+    private static class ExpiryEntry {
+        final String key;
+        final Instant purgeTime;
+        /** Identifies the download this entry expires, without keeping it reachable. */
+        final WeakReference<PendingDownload> pendingDownload;
 
+        ExpiryEntry(String key, PendingDownload pendingDownload) {
+            this.key = key;
+            this.purgeTime = pendingDownload.getPurgeTime();
+            this.pendingDownload = new WeakReference<>(pendingDownload);
+        }
 
+        Instant getPurgeTime() {
+            return purgeTime;
+        }
+    }
 }
@@ -1,10 +1,19 @@
 package ucles.weblab.common.files.webapi;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -12,8 +21,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.InvalidMediaTypeException;
 import org.springframework.http.MediaType;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.StreamUtils;
 import ucles.weblab.common.files.blob.api.Blob;
 import ucles.weblab.common.files.blob.api.BlobId;
 import ucles.weblab.common.files.blob.api.BlobNotFoundException;
@@ -22,11 +33,31 @@ import ucles.weblab.common.files.blob.api.BlobStoreResult;
 import ucles.weblab.common.files.blob.api.BlobStoreService;
 import ucles.weblab.common.files.domain.SecureFileMetadata;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 /**
+ * Download cache which stores each download as a publicly readable S3 object, under a key which includes the
+ * download's random ID so that it cannot be guessed.
+ * <p>
+ * Downloads are looked up by collection and filename, since each request for a file has a new ID. The key of the most
+ * recent download of each file is kept in a private object whose key is derived from the collection and filename
+ * alone, so a lookup is a single GET, and it is also remembered locally for the
+ * {@code files.download.cache.s3.indexSize} most recently used files so that a lookup need not go to S3 at all.
+ * </p>
+ * <p>
+ * Download urls only need to work until the download expires, so where the blob store pre-signs urls for private
+ * objects the bytes go straight from S3 to the browser and nobody can fetch the download afterwards. Expired objects
+ * can then be left for a bucket lifecycle rule on the {@value #DOWNLOAD_PREFIX} and {@value #LATEST_DOWNLOAD_PREFIX}
+ * prefixes to delete, with {@code files.download.cache.s3.clean} set to false.
+ * </p>
  *
  * @author Sukhraj
  */
 public class FileDownloadCacheS3 implements FileDownloadCache<UUID, PendingDownload> {
+    /** Prefix of the keys of the downloads, which is all that is removed when they expire. */
+    static final String DOWNLOAD_PREFIX = "downloads/";
+    /** Prefix of the keys of the objects which hold the key of the most recent download of each file. */
+    static final String LATEST_DOWNLOAD_PREFIX = "latest/";
     
     private final Logger log = LoggerFactory.getLogger(getClass());
     
@@ -34,6 +65,38 @@ public class FileDownloadCacheS3 implements FileDownloadCache<UUID, PendingDownl
     private final BlobStoreService blobStoreService;
     private Clock clock = Clock.systemUTC();
     private Duration cacheExpiry;
+    private Map<String, LatestDownload> latestDownloads = newLatestDownloadIndex(1000);
+    private boolean cleanEnabled = true;
+
+    /**
+     * The most recent download of a file, as recorded when it was stored.
+     */
+    static final class LatestDownload {
+        final String key;
+        final MediaType contentType;
+        final Instant purgeTime;
+
+        LatestDownload(String key, MediaType contentType, Instant purgeTime) {
+            this.key = key;
+            this.contentType = contentType;
+            this.purgeTime = purgeTime;
+        }
+
+        byte[] toBytes() {
+            return (key + '\n' + contentType + '\n' + purgeTime).getBytes(UTF_8);
+        }
+
+        static Optional<LatestDownload> fromBytes(byte[] bytes) {
+            final String[] lines = new String(bytes, UTF_8).split("\n");
+            try {
+                return lines.length == 3
+                        ? Optional.of(new LatestDownload(lines[0], MediaType.valueOf(lines[1]), Instant.parse(lines[2])))
+                        : Optional.empty();
+            } catch (InvalidMediaTypeException | DateTimeParseException e) {
+                return Optional.empty();
+            }
+        }
+    }
     
     public FileDownloadCacheS3(BlobStoreService blobStoreService) {
         this.blobStoreService = blobStoreService;
@@ -41,10 +104,33 @@ public class FileDownloadCacheS3 implements FileDownloadCache<UUID, PendingDownl
 
     }
 
+    /**
+     * Remove the downloads which have expired. Every download is kept for the same time after it is stored, so the
+     * blob store can remove those under {@value #DOWNLOAD_PREFIX} written too long ago without reading each one's
+     * expiry, where it supports that. A record of the latest download written as long ago only refers to an expired
+     * download, so those are removed too. Other blobs in the store, which may live for longer, are left alone, and so
+     * are downloads stored under the root path by earlier versions, which must be removed once by hand.
+     */
     @Override
     @Scheduled(fixedRate = 15 * 60 * 1000)
     public void clean() {
+        if (!cleanEnabled) {
+            return;
+        }
         
+        try {
+            final Instant cutOff = Instant.now(clock).minus(cacheExpiry);
+            Optional<Long> removed = blobStoreService.removeBlobsModifiedBefore(DOWNLOAD_PREFIX, cutOff);
+            if (removed.isPresent()) {
+                log.info("Removed {} expired downloads", removed.get());
+                blobStoreService.removeBlobsModifiedBefore(LATEST_DOWNLOAD_PREFIX, cutOff);
+                return;
+            }
+        } catch (BlobStoreException e) {
+            log.warn("BlobStoreException caught while removing expired downloads, cache might not have been cleared, ignoring", e);
+            return;
+        }
+
         try {
             //get all the blob in the blob store
             List<Blob> blobs = blobStoreService.listBlobs(false);
@@ -73,7 +159,8 @@ public class FileDownloadCacheS3 implements FileDownloadCache<UUID, PendingDownl
     }
 
     /**
-     * Check if the item is already in S3.
+     * Check if the file has been downloaded recently and the download is still in S3. The most recent download is
+     * found whatever its ID, from the local index or else with a single request to S3.
      * @param id
      * @param collectionName
      * @param fileName
@@ -81,32 +168,45 @@ public class FileDownloadCacheS3 implements FileDownloadCache<UUID, PendingDownl
      */
     @Override
     public Optional<PendingDownload> get(UUID id, String collectionName, String fileName ) {                        
+        final String latestKey = createLatestKey(collectionName, fileName);
+        Optional<LatestDownload> latest = Optional.ofNullable(latestDownloads.get(latestKey));
+        if (!latest.isPresent()) {
+            latest = readLatestDownload(latestKey);
+            latest.ifPresent(download -> latestDownloads.put(latestKey, download));
+        }
         try {
-            Optional<Blob> blob = blobStoreService.getBlobWithPartBlobId(collectionName, fileName.replaceAll("\\s+", "_"), false);
-            Optional<PendingDownload> result = blob.map((b) -> {                                
-                return new PendingDownload(MediaType.valueOf(b.getMimeType()),
-                        b.getId().toString(),
-                        b.getData(),
-                        b.getExpiryDate(),
-                        URI.create(b.getUrl()));
-                
-            });
-            return result;
+            final Optional<LatestDownload> current = latest.filter(download -> download.purgeTime.isAfter(Instant.now(clock)));
+            if (current.isPresent()) {
+                final URI url = blobStoreService.getUrl(new BlobId(current.get().key), current.get().purgeTime).orElse(null);
+                return Optional.of(new PendingDownload(current.get().contentType, fileName, new byte[0], current.get().purgeTime, url));
+            }
         } catch (BlobStoreException | BlobNotFoundException ex) {
-            log.warn("Exception thrown while gtting blob with prefix: {} and suffix: {}", collectionName, fileName, ex);
+            log.warn("Exception thrown while getting url of latest download of {} in {}", fileName, collectionName, ex);
         } 
         return Optional.empty();
     }
 
+    private Optional<LatestDownload> readLatestDownload(String latestKey) {
+        try (InputStream in = blobStoreService.openBlob(new BlobId(LATEST_DOWNLOAD_PREFIX + latestKey))) {
+            return LatestDownload.fromBytes(StreamUtils.copyToByteArray(in));
+        } catch (BlobNotFoundException ex) {
+            return Optional.empty();
+        } catch (BlobStoreException | IOException ex) {
+            log.warn("Exception thrown while reading latest download {}", latestKey, ex);
+            return Optional.empty();
+        }
+    }
+
     @Override
     public Optional<BlobStoreResult> put(UUID id, String collectionName, PendingDownload pendingDownload) {
-        String fileNameToStore = createCacheKey(id, collectionName, pendingDownload.getFilename());
+        String fileNameToStore = createDownloadKey(id, collectionName, pendingDownload.getFilename());
                 
         try {
-            Optional<BlobStoreResult> result = blobStoreService.putBlob(new BlobId(fileNameToStore), 
-                                                                        pendingDownload.getContentType().toString(), 
-                                                                        pendingDownload.getContent(), 
-                                                                        pendingDownload.getPurgeTime());            
+            Optional<BlobStoreResult> result = storeContent(new BlobId(fileNameToStore), pendingDownload);
+            if (result.isPresent()) {
+                writeLatestDownload(createLatestKey(collectionName, pendingDownload.getFilename()),
+                        new LatestDownload(fileNameToStore, pendingDownload.getContentType(), pendingDownload.getPurgeTime()));
+            }
             return result;                                       
             
         } catch (BlobStoreException e) {
@@ -115,19 +215,51 @@ public class FileDownloadCacheS3 implements FileDownloadCache<UUID, PendingDownl
         return Optional.empty();
     }
     
+    /**
+     * Content which is only read when the download is stored is streamed into the blob store, rather than read into
+     * memory first.
+     */
+    private Optional<BlobStoreResult> storeContent(BlobId blobId, PendingDownload pendingDownload) throws BlobStoreException {
+        final String contentType = pendingDownload.getContentType().toString();
+        if (!pendingDownload.isDeferred()) {
+            return blobStoreService.putBlob(blobId, contentType, pendingDownload.getContentBuffer(), pendingDownload.getPurgeTime());
+        }
+        try (InputStream in = pendingDownload.openContent()) {
+            return blobStoreService.putBlob(blobId, contentType, in, pendingDownload.getContentLength(), pendingDownload.getPurgeTime());
+        } catch (IOException e) {
+            throw new BlobStoreException(e.getClass() + " thrown whilst attempting to read " + pendingDownload.getFilename(), e);
+        }
+    }
+
+    private void writeLatestDownload(String latestKey, LatestDownload latest) {
+        latestDownloads.put(latestKey, latest);
+        final byte[] bytes = latest.toBytes();
+        try {
+            //streamed blobs are not made public, which would give away the download's key
+            blobStoreService.putBlob(new BlobId(LATEST_DOWNLOAD_PREFIX + latestKey), MediaType.TEXT_PLAIN_VALUE,
+                    new ByteArrayInputStream(bytes), bytes.length);
+        } catch (BlobStoreException e) {
+            log.warn("Exception thrown when recording latest download {}, it will only be found on this server", latestKey, e);
+        }
+    }
+    
     @Override
     public boolean exists(UUID id, String collectionName, SecureFileMetadata secureFileMetadata) {
         
-        String fileNameToStore = createCacheKey(id, collectionName, secureFileMetadata.getFilename());
+        String fileNameToStore = createDownloadKey(id, collectionName, secureFileMetadata.getFilename());
+        final LatestDownload latest = latestDownloads.get(createLatestKey(collectionName, secureFileMetadata.getFilename()));
+        if (latest != null && latest.key.equals(fileNameToStore) && latest.purgeTime.isAfter(Instant.now(clock))) {
+            return true;
+        }
         return blobStoreService.exists(new BlobId(fileNameToStore));
         
     }
     
     @Override
     public Optional<URI> getUrl(UUID id, String collectionName, String fileName) {
-        String s3fileName = createCacheKey(id, collectionName, fileName);
+        String s3fileName = createDownloadKey(id, collectionName, fileName);
         try {
-            Optional<URI> uri = blobStoreService.getUrl(new BlobId(s3fileName));
+            Optional<URI> uri = blobStoreService.getUrl(new BlobId(s3fileName), Instant.now(clock).plus(cacheExpiry));
             if (uri.isPresent()) {
                 //recentFileNamesToUrls.put(collectionName + "_" + pendingDownload.getFilename(), uri.get().toString());
                 return Optional.of(uri.get());
@@ -159,6 +291,46 @@ public class FileDownloadCacheS3 implements FileDownloadCache<UUID, PendingDownl
         this.clock = clock;
     }
 
+    @Autowired
+    void configureClean(@Value("${files.download.cache.s3.clean:true}") boolean cleanEnabled) {
+        if (!cleanEnabled) {
+            log.info("Expired downloads will not be removed, and should be expired by a bucket lifecycle rule");
+        }
+        this.cleanEnabled = cleanEnabled;
+    }
+
+    @Autowired
+    void configureLatestDownloadIndex(@Value("${files.download.cache.s3.indexSize:1000}") int indexSize) {
+        if (indexSize < 0) {
+            throw new IllegalArgumentException("Latest download index size must not be negative: " + indexSize);
+        }
+        this.latestDownloads = newLatestDownloadIndex(indexSize);
+    }
+
+    private static Map<String, LatestDownload> newLatestDownloadIndex(int maximumSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, LatestDownload>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LatestDownload> eldest) {
+                return size() > maximumSize;
+            }
+        });
+    }
+
+    private String createDownloadKey(UUID id, String collectionName, String fileName) {
+        return DOWNLOAD_PREFIX + createCacheKey(id, collectionName, fileName);
+    }
+
+    /**
+     * Each part is encoded, so that no two collections and filenames share a key.
+     */
+    private String createLatestKey(String collectionName, String fileName) {
+        try {
+            return URLEncoder.encode(collectionName, UTF_8.name()) + '/' + URLEncoder.encode(fileName, UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+
     @Autowired
     void configureCacheExpiry(@Value("${files.download.cache.expirySeconds:30}") int cacheExpirySeconds) {
         log.info("Cache expiry set to " + cacheExpirySeconds + "s");
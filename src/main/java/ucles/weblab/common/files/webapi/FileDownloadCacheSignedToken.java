@@ -0,0 +1,235 @@
+package ucles.weblab.common.files.webapi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import ucles.weblab.common.files.blob.api.BlobId;
+import ucles.weblab.common.files.blob.api.BlobStoreResult;
+import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
+import ucles.weblab.common.files.domain.SecureFileCollectionRepository;
+import ucles.weblab.common.files.domain.SecureFileMetadata;
+import ucles.weblab.common.files.domain.SecureFileRepository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
+
+/**
+ * A download "cache" which holds no downloads at all. Instead, each download link carries a token naming the stored
+ * file and the link's expiry, signed with HMAC-SHA256. Any node sharing the secret key can check the token and stream
+ * the file straight from the repository, so downloads need neither sticky sessions nor a shared cache, and no copy
+ * of the file is made.
+ * <p>
+ * The token follows the download ID in the link, separated by {@link DownloadController#TOKEN_SEPARATOR}. It is
+ * only issued when a deferred download is {@link #put put}, so links to downloads whose content is held in memory
+ * cannot be made. Downloads can only be found from their link, not by filename alone.
+ * </p>
+ *
+ * @since 18/10/26
+ */
+public class FileDownloadCacheSignedToken implements FileDownloadCache<UUID, PendingDownload> {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder BASE64 = Base64.getUrlEncoder().withoutPadding();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final SecureFileCollectionRepository secureFileCollectionRepository;
+    private final SecureFileRepository secureFileRepository;
+    private final ThreadLocal<Mac> mac;
+    /**
+     * Links issued by {@link #put} but not yet collected by {@link #getRedirectUrl}, which is called with only the
+     * download ID. These are only held for the duration of the request which generates the download.
+     */
+    private final ConcurrentHashMap<UUID, BlobStoreResult> issuedLinks = new ConcurrentHashMap<>();
+    private Clock clock = Clock.systemUTC();
+    private Duration cacheExpiry;
+
+    /**
+     * @param secretKey the key to sign tokens with, which must be the same on every node serving downloads
+     */
+    public FileDownloadCacheSignedToken(SecureFileCollectionRepository secureFileCollectionRepository,
+                                        SecureFileRepository secureFileRepository,
+                                        byte[] secretKey) {
+        this.secureFileCollectionRepository = secureFileCollectionRepository;
+        this.secureFileRepository = secureFileRepository;
+        final SecretKeySpec key = new SecretKeySpec(secretKey.clone(), MAC_ALGORITHM);
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Scheduled job to discard any links issued but never collected, e.g. if the request failed in between.
+     */
+    @Override
+    @Scheduled(fixedRate = 15 * 60 * 1000)
+    public void clean() {
+        final Instant now = Instant.now(clock);
+        issuedLinks.values().removeIf(link -> link.getPurgeInstant().isBefore(now));
+    }
+
+    /**
+     * Always empty, as downloads are not held. They can only be found from the token in their link.
+     */
+    @Override
+    public Optional<PendingDownload> get(UUID id, String collectionName, String fileName) {
+        return Optional.empty();
+    }
+
+    /**
+     * Checks the token and, if it is valid and has not expired, creates a download which reads the stored file.
+     */
+    @Override
+    public Optional<PendingDownload> get(UUID id, String collectionName, String fileName, String token) {
+        final String[] parts = token.split("\\.", -1);
+        if (parts.length != 4 || !(parts[1].equals("e") || parts[1].equals("p"))) {
+            log.warn("Malformed download token for {}", fileName);
+            return Optional.empty();
+        }
+        final Instant expiry;
+        final StoredFileReference storedFile;
+        try {
+            expiry = Instant.ofEpochSecond(Long.parseLong(parts[0]));
+            storedFile = new StoredFileReference(fileName, parseInstant(parts[2]), "e".equals(parts[1]));
+        } catch (NumberFormatException | DateTimeException | ArithmeticException e) {
+            // Dates out of range are as malformed as those which are not numbers
+            log.warn("Malformed download token for {}", fileName);
+            return Optional.empty();
+        }
+        if (!MessageDigest.isEqual(parts[3].getBytes(US_ASCII), sign(id, collectionName, storedFile, expiry).getBytes(US_ASCII))) {
+            log.warn("Download token for {} has an invalid signature", fileName);
+            return Optional.empty();
+        }
+        if (expiry.isBefore(Instant.now(clock))) {
+            return Optional.empty();
+        }
+        final SecureFileCollectionEntity collection = secureFileCollectionRepository.findOneByBucket(collectionName);
+        if (collection == null) {
+            return Optional.empty();
+        }
+        return storedFile.find(secureFileRepository, collection).map(secureFile ->
+                PendingDownload.deferred(MediaType.valueOf(secureFile.getContentType()), storedFile,
+                        () -> storedFile.open(secureFile), storedFile.contentLength(secureFile), expiry, null));
+    }
+
+    /**
+     * Issues a signed link for the download, without holding the download itself.
+     *
+     * @throws IllegalArgumentException if the download is not deferred, as its content could not be found again
+     */
+    @Override
+    public Optional<BlobStoreResult> put(UUID id, String collectionName, PendingDownload pendingDownload) {
+        final StoredFileReference storedFile = pendingDownload.getStoredFile().orElseThrow(() ->
+                new IllegalArgumentException("Only downloads which read a stored file can be given a signed link"));
+        // Truncated to whole seconds, which is the precision of the token
+        final Instant expiry = Instant.ofEpochSecond(pendingDownload.getPurgeTime().getEpochSecond());
+        final String token = expiry.getEpochSecond() + "." + (storedFile.isEncrypted() ? "e" : "p") + '.'
+                + formatInstant(storedFile.getCreatedDate()) + '.' + sign(id, collectionName, storedFile, expiry);
+        final String url = linkTo(methodOn(DownloadController.class).fetchPreviouslyGeneratedDownload(
+                collectionName, id.toString() + DownloadController.TOKEN_SEPARATOR + token, storedFile.getFilename(), null)).toString();
+        final BlobStoreResult result = new BlobStoreResult(new BlobId(id.toString()), storedFile.getFilename(), collectionName, expiry, url);
+        issuedLinks.put(id, result);
+        return Optional.of(result);
+    }
+
+    @Override
+    public Duration getExpiry() {
+        return cacheExpiry;
+    }
+
+    /**
+     * Always false, as downloads are not held.
+     */
+    @Override
+    public boolean exists(UUID id, String collectionName, SecureFileMetadata secureFileMetadata) {
+        return false;
+    }
+
+    /**
+     * Returns the link issued for the download, if it has been {@link #put put} but the link has not yet been
+     * collected by {@link #getRedirectUrl}.
+     */
+    @Override
+    public Optional<URI> getUrl(UUID id, String collectionName, String fileName) {
+        return Optional.ofNullable(issuedLinks.get(id)).map(link -> URI.create(link.getUrlToFile()));
+    }
+
+    /**
+     * Collects the link issued for the download when it was {@link #put put}.
+     *
+     * @return the link, or {@code null} if none has been issued for the download
+     */
+    @Override
+    public URI getRedirectUrl(UUID id, String collectionName, String fileName) {
+        final BlobStoreResult link = issuedLinks.remove(id);
+        return link == null ? null : URI.create(link.getUrlToFile());
+    }
+
+    private String sign(UUID id, String collectionName, StoredFileReference storedFile, Instant expiry) {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(message)) {
+            out.writeUTF(id.toString());
+            out.writeUTF(collectionName);
+            out.writeUTF(storedFile.getFilename());
+            out.writeBoolean(storedFile.isEncrypted());
+            out.writeUTF(formatInstant(storedFile.getCreatedDate()));
+            out.writeLong(expiry.getEpochSecond());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return BASE64.encodeToString(mac.get().doFinal(message.toByteArray()));
+    }
+
+    private static String formatInstant(Instant instant) {
+        return instant == null ? "" : instant.getEpochSecond() + "_" + instant.getNano();
+    }
+
+    private static Instant parseInstant(String value) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        final int separator = value.indexOf('_');
+        if (separator < 0) {
+            throw new NumberFormatException("Missing nanoseconds in " + value);
+        }
+        return Instant.ofEpochSecond(Long.parseLong(value.substring(0, separator)), Long.parseLong(value.substring(separator + 1)));
+    }
+
+    @Autowired(required = false) // will fall back to default system UTC clock
+    public void configureClock(Clock clock) {
+        log.warn("Clock overridden with " + clock);
+        this.clock = clock;
+    }
+
+    @Autowired
+    void configureCacheExpiry(@Value("${files.download.cache.expirySeconds:30}") int cacheExpirySeconds) {
+        log.info("Download link expiry set to " + cacheExpirySeconds + "s");
+        this.cacheExpiry = Duration.ofSeconds(cacheExpirySeconds);
+    }
+}
@@ -0,0 +1,69 @@
+package ucles.weblab.common.files.webapi;
+
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Source of uploaded file data which records how much is read, and the largest single read made from it.
+ * The largest read is not how much of the upload is held in memory: ciphers which cannot encrypt a stream as it is read
+ * hold all of it.
+ *
+ * @since 18/10/26
+ */
+class MeteredUpload implements InputStreamSource {
+    private final MultipartFile file;
+    private final long startNanos = System.nanoTime();
+    private volatile long bytesRead;
+    private volatile int largestReadBytes;
+
+    MeteredUpload(MultipartFile file) {
+        this.file = file;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new FilterInputStream(file.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b >= 0) {
+                    record(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int count = super.read(b, off, len);
+                if (count > 0) {
+                    record(count);
+                }
+                return count;
+            }
+        };
+    }
+
+    private void record(int count) {
+        bytesRead += count;
+        if (count > largestReadBytes) {
+            largestReadBytes = count;
+        }
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    int getLargestReadBytes() {
+        return largestReadBytes;
+    }
+
+    long getBytesPerSecond() {
+        final long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        return (long) (bytesRead * 1e9 / elapsedNanos);
+    }
+}
@@ -1,8 +1,20 @@
 package ucles.weblab.common.files.webapi;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.http.MediaType;
+import org.springframework.util.StreamUtils;
+import ucles.weblab.common.files.blob.api.ByteBufferInputStream;
 
 /**
  *
@@ -12,18 +24,53 @@ public class PendingDownload {
     
     final MediaType contentType;
     final String filename;
-    final byte[] content;
+    final InputStreamSource content;
+    final long contentLength;
     final Instant purgeTime;
     final URI url; 
     
+    /**
+     * Creates a pending download held in memory. The content array is not copied so must not be modified afterwards.
+     */
     PendingDownload(MediaType contentType, String filename, byte[] content, Instant purgeTime, URI url) {
+        this(contentType, filename, ByteBuffer.wrap(content), purgeTime, url);
+    }
+
+    /**
+     * Creates a pending download held in memory, with the remaining content of the buffer. The buffer is not copied,
+     * but only read through a read-only view, so the same buffer can be shared by any number of downloads.
+     */
+    PendingDownload(MediaType contentType, String filename, ByteBuffer content, Instant purgeTime, URI url) {
+        this(contentType, filename, new BufferContent(content), content.remaining(), purgeTime, url);
+    }
+
+    /**
+     * Creates a pending download whose content is read from the source when it is fetched, e.g. decrypting as it goes.
+     *
+     * @param content source of the content, which may be opened more than once
+     * @param contentLength the exact number of bytes which the source provides
+     */
+    PendingDownload(MediaType contentType, String filename, InputStreamSource content, long contentLength, Instant purgeTime, URI url) {
         this.contentType = contentType;
-        this.content = content.clone();
+        this.content = content;
+        this.contentLength = contentLength;
         this.filename = filename;
         this.purgeTime = purgeTime;
         this.url = url;
     }
 
+    /**
+     * Creates a pending download which refers to a stored file, holding only a way to read its content, so that
+     * nothing is read or decrypted unless the download is actually fetched.
+     *
+     * @param storedFile the file which the content is read from
+     * @param content source of the content, opened afresh each time the download is fetched
+     * @param contentLength the exact number of bytes which the source provides
+     */
+    static PendingDownload deferred(MediaType contentType, StoredFileReference storedFile, InputStreamSource content, long contentLength, Instant purgeTime, URI url) {
+        return new PendingDownload(contentType, storedFile.getFilename(), new DeferredContent(storedFile, content), contentLength, purgeTime, url);
+    }
+
     MediaType getContentType() {
         return contentType;
     }
@@ -32,8 +79,80 @@ public class PendingDownload {
         return filename;
     }
 
+    /**
+     * Reads the whole content into memory. Prefer {@link #openContent()} where the content can be streamed.
+     */
     byte[] getContent() {
-        return content;
+        try (InputStream in = openContent()) {
+            return StreamUtils.copyToByteArray(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read content of " + filename, e);
+        }
+    }
+
+    /**
+     * Returns the content as a read-only buffer. Content held in memory is shared, not copied.
+     */
+    ByteBuffer getContentBuffer() {
+        if (content instanceof BufferContent) {
+            return ((BufferContent) content).buffer.duplicate();
+        }
+        return ByteBuffer.wrap(getContent()).asReadOnlyBuffer();
+    }
+
+    InputStream openContent() throws IOException {
+        return content.getInputStream();
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Whether the content is only read when the download is fetched, rather than being held by the download.
+     */
+    boolean isDeferred() {
+        return content instanceof DeferredContent;
+    }
+
+    /**
+     * The stored file which the content is read from, if the download is deferred.
+     */
+    Optional<StoredFileReference> getStoredFile() {
+        return isDeferred() ? Optional.of(((DeferredContent) content).storedFile) : Optional.empty();
+    }
+
+    /**
+     * Number of bytes of content held by the download, in memory or in a temporary file.
+     */
+    long getResidentBytes() {
+        return isDeferred() ? 0 : contentLength;
+    }
+
+    /**
+     * Copies the content to a temporary file, returning a download which reads from that file instead of the heap.
+     * The file is deleted when the returned download is {@link #release() released}.
+     *
+     * @param directory the directory to create the file in
+     */
+    PendingDownload toTempFile(Path directory) throws IOException {
+        final Path file = Files.createTempFile(directory, "download", ".tmp");
+        try (InputStream in = openContent()) {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return new PendingDownload(contentType, filename, new TempFileContent(file), contentLength, purgeTime, url);
+    }
+
+    /**
+     * Releases any resources held outside the heap. Content already being read can still be read to the end.
+     */
+    void release() {
+        if (content instanceof TempFileContent) {
+            ((TempFileContent) content).delete();
+        }
     }
 
     Instant getPurgeTime() {
@@ -43,5 +162,65 @@ public class PendingDownload {
     public URI getUrl() {
         return url;
     }
-    
+
+    /**
+     * Content read from elsewhere each time it is opened.
+     */
+    private static class DeferredContent implements InputStreamSource {
+        private final StoredFileReference storedFile;
+        private final InputStreamSource source;
+
+        DeferredContent(StoredFileReference storedFile, InputStreamSource source) {
+            this.storedFile = storedFile;
+            this.source = source;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return source.getInputStream();
+        }
+    }
+
+    /**
+     * Content held in memory. Each stream reads through its own view of the buffer.
+     */
+    private static class BufferContent implements InputStreamSource {
+        private final ByteBuffer buffer;
+
+        BufferContent(ByteBuffer buffer) {
+            this.buffer = buffer.slice().asReadOnlyBuffer();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteBufferInputStream(buffer);
+        }
+    }
+
+    /**
+     * Content held in a temporary file. Streams are backed by a file channel, so skipping to a range is a seek.
+     */
+    private static class TempFileContent implements InputStreamSource {
+        private final Logger log = LoggerFactory.getLogger(getClass());
+        private final Path file;
+
+        TempFileContent(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return Files.newInputStream(file);
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // e.g. Windows refuses to delete a file which is still being read
+                log.warn("Could not delete download file " + file + ", will retry on exit", e);
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
 }
@@ -0,0 +1,91 @@
+package ucles.weblab.common.files.webapi;
+
+import org.springframework.core.io.InputStreamSource;
+import ucles.weblab.common.files.blob.api.ByteBufferInputStream;
+import ucles.weblab.common.files.domain.SecureFile;
+import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
+import ucles.weblab.common.files.domain.SecureFileEntity;
+import ucles.weblab.common.files.domain.SecureFileRepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Identifies the stored file which a download reads, and whether it reads the plain or the encrypted data.
+ * The file's creation date is included so that a file replaced under the same name is not served in its place.
+ *
+ * @since 18/10/26
+ */
+final class StoredFileReference {
+    private final String filename;
+    private final Instant createdDate;
+    private final boolean encrypted;
+
+    StoredFileReference(String filename, Instant createdDate, boolean encrypted) {
+        this.filename = filename;
+        this.createdDate = createdDate;
+        this.encrypted = encrypted;
+    }
+
+    static StoredFileReference of(SecureFileEntity secureFile, boolean encrypted) {
+        return new StoredFileReference(secureFile.getFilename(), secureFile.getCreatedDate(), encrypted);
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    Instant getCreatedDate() {
+        return createdDate;
+    }
+
+    boolean isEncrypted() {
+        return encrypted;
+    }
+
+    /**
+     * Finds the file in the repository, unless it has been deleted or replaced.
+     */
+    Optional<? extends SecureFileEntity> find(SecureFileRepository repository, SecureFileCollectionEntity collection) {
+        return repository.findOneByCollectionAndFilename(collection, filename)
+                .filter(found -> Objects.equals(found.getCreatedDate(), createdDate));
+    }
+
+    /**
+     * Number of bytes of content which {@link #open(SecureFile)} will provide.
+     */
+    long contentLength(SecureFile secureFile) {
+        return encrypted ? secureFile.getEncryptedLength() : secureFile.getLength();
+    }
+
+    /**
+     * Finds the file in the repository and opens its content.
+     *
+     * @throws FileNotFoundException if the file has been deleted or replaced
+     */
+    InputStream open(SecureFileRepository repository, SecureFileCollectionEntity collection) throws IOException {
+        final SecureFileEntity secureFile = find(repository, collection)
+                .orElseThrow(() -> new FileNotFoundException(filename + " is no longer stored"));
+        return open(secureFile);
+    }
+
+    /**
+     * Opens the file's content, decrypting it as it is read unless encrypted data is wanted.
+     */
+    InputStream open(SecureFile secureFile) throws IOException {
+        if (encrypted) {
+            final InputStreamSource encryptedDataSource = secureFile.getEncryptedDataSource();
+            return encryptedDataSource != null ? encryptedDataSource.getInputStream()
+                    : new ByteBufferInputStream(secureFile.getEncryptedDataBuffer());
+        } else if (secureFile.getPlainDataSource() != null) {
+            return secureFile.getPlainDataSource().getInputStream();
+        } else {
+            return new ByteArrayInputStream(secureFile.getPlainData());
+        }
+    }
+}
@@ -15,7 +15,7 @@ public class FileCollectionResourceAssembler implements ResourceAssembler<Secure
     @Override
     public FileCollectionResource toResource(SecureFileCollectionEntity entity) {
         FileCollectionResource resource = new FileCollectionResource(entity.getDisplayName(), entity.getPurgeInstant().orElse(null));
-        resource.add(linkTo(methodOn(FileController.class).listFilesInBucket(entity.getBucket())).withSelfRel());
+        resource.add(linkTo(methodOn(FileController.class).listFilesInBucket(entity.getBucket(), null, null)).withSelfRel().expand());
         return resource;
     }
 }
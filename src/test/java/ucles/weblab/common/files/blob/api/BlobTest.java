@@ -0,0 +1,53 @@
+package ucles.weblab.common.files.blob.api;
+
+import org.junit.Test;
+import org.springframework.util.SerializationUtils;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class BlobTest {
+    private final byte[] data = { 1, 2, 3, 4, 5 };
+
+    @Test
+    public void testContentIsSharedReadOnlyView() {
+        final Blob blob = new Blob(new BlobId("test"), "image/gif", data, Instant.now(), null);
+        final ByteBuffer content = blob.getContent();
+        assertTrue("Should not be writable", content.isReadOnly());
+        data[0] = 9;
+        assertEquals("Should share the array", 9, content.get(0));
+        content.position(3);
+        assertEquals("Each view should have its own position", 0, blob.getContent().position());
+    }
+
+    @Test
+    public void testStreamsReadIndependentlyOfBuffer() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(1);
+        try (InputStream first = new ByteBufferInputStream(buffer); InputStream second = new ByteBufferInputStream(buffer)) {
+            assertEquals(2, first.skip(2));
+            assertArrayEquals(new byte[] { 4, 5 }, StreamUtils.copyToByteArray(first));
+            assertArrayEquals(new byte[] { 2, 3, 4, 5 }, StreamUtils.copyToByteArray(second));
+        }
+        assertEquals("Buffer position should be untouched", 1, buffer.position());
+    }
+
+    @Test
+    public void testSerializationCopiesData() {
+        final Blob blob = new Blob(new BlobId("test"), "image/gif", ByteBuffer.wrap(data, 1, 3), Instant.now(), "urn:test");
+        final Blob copy = (Blob) SerializationUtils.deserialize(SerializationUtils.serialize(blob));
+        assertEquals(blob.getId(), copy.getId());
+        assertEquals(blob.getUrl(), copy.getUrl());
+        assertArrayEquals(new byte[] { 2, 3, 4 }, copy.getData());
+    }
+}
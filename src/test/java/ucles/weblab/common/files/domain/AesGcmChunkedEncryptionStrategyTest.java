@@ -0,0 +1,119 @@
+package ucles.weblab.common.files.domain;
+
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AesGcmChunkedEncryptionStrategyTest {
+    private static final int SEGMENT_SIZE = 1024;
+    private static final long SEED = 56275638975328L;
+
+    private final AesGcmChunkedEncryptionStrategy strategy = new AesGcmChunkedEncryptionStrategy("some-test-aad", SEGMENT_SIZE);
+    private final byte[] key = "0123456789012345".getBytes(UTF_8);
+
+    private static byte[] randomData(int length) {
+        final byte[] data = new byte[length];
+        new Random(SEED).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testRoundTrippingAcrossSegmentBoundaries() throws IOException {
+        assertTrue(strategy.supports(EncryptionService.CIPHER_AES_GCM_CHUNKED));
+        for (int length : new int[] { 0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 3 * SEGMENT_SIZE + 17 }) {
+            final byte[] plainData = randomData(length);
+            final byte[] encryptedData;
+            try (InputStream in = strategy.encryptingStream(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, new ByteArrayInputStream(plainData))) {
+                encryptedData = StreamUtils.copyToByteArray(in);
+            }
+            assertFalse("Expect data encrypted for length " + length, length > 0 && Arrays.equals(plainData, encryptedData));
+            try (InputStream in = strategy.decryptingStream(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, new ByteArrayInputStream(encryptedData))) {
+                assertArrayEquals("Expect round trip for length " + length, plainData, StreamUtils.copyToByteArray(in));
+            }
+        }
+    }
+
+    @Test
+    public void testInMemoryFormatMatchesStreamingFormat() throws IOException {
+        final byte[] plainData = randomData(5000);
+        final byte[] encryptedData = strategy.encrypt(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, plainData);
+        try (InputStream in = strategy.decryptingStream(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, new ByteArrayInputStream(encryptedData))) {
+            assertArrayEquals(plainData, StreamUtils.copyToByteArray(in));
+        }
+        assertArrayEquals(plainData, strategy.decrypt(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, encryptedData));
+    }
+
+    @Test
+    public void testSkippingWithinAndAcrossSegments() throws IOException {
+        final byte[] plainData = randomData(5 * SEGMENT_SIZE + 100);
+        final byte[] encryptedData = strategy.encrypt(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, plainData);
+        for (int offset : new int[] { 0, 10, SEGMENT_SIZE, 2 * SEGMENT_SIZE + 7, 5 * SEGMENT_SIZE + 97, plainData.length - 3 }) {
+            try (InputStream in = strategy.decryptingStream(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, new ByteArrayInputStream(encryptedData))) {
+                assertEquals(3, in.read(new byte[3]));
+                assertEquals("Expect skip to " + offset, offset, in.skip(offset));
+                assertArrayEquals("Expect remaining data after skip to " + offset,
+                        Arrays.copyOfRange(plainData, offset + 3, plainData.length),
+                        StreamUtils.copyToByteArray(in));
+            }
+        }
+        try (InputStream in = strategy.decryptingStream(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, new ByteArrayInputStream(encryptedData))) {
+            assertEquals("Expect skip to stop at the end", plainData.length, in.skip(plainData.length + 1000L));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testSegmentSizeIsReadFromHeader() {
+        final byte[] plainData = randomData(5000);
+        final byte[] encryptedData = strategy.encrypt(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, plainData);
+        final AesGcmChunkedEncryptionStrategy otherStrategy = new AesGcmChunkedEncryptionStrategy("some-test-aad");
+        assertArrayEquals(plainData, otherStrategy.decrypt(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, encryptedData));
+    }
+
+    @Test
+    public void testTamperedSegmentIsRejected() {
+        final byte[] encryptedData = strategy.encrypt(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, randomData(3 * SEGMENT_SIZE));
+        encryptedData[encryptedData.length / 2] ^= 1;
+        assertDecryptionFails(encryptedData);
+    }
+
+    @Test
+    public void testTruncationAtSegmentBoundaryIsRejected() {
+        final byte[] encryptedData = strategy.encrypt(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, randomData(3 * SEGMENT_SIZE));
+        final int oneSegmentLess = encryptedData.length - (SEGMENT_SIZE + 16);
+        assertDecryptionFails(Arrays.copyOf(encryptedData, oneSegmentLess));
+    }
+
+    @Test
+    public void testLegacyCiphertextStillDecryptsThroughStreamingApi() throws IOException {
+        final EncryptionService encryptionService = new EncryptionServiceImpl(
+                Arrays.asList(new AesGcmEncryptionStrategy("some-test-aad"), strategy), key);
+        final byte[] plainData = randomData(5000);
+        final byte[] legacyEncryptedData = encryptionService.encrypt(EncryptionService.CIPHER_AES_GCM, new byte[] { 1, 2, 3 }, plainData);
+        try (InputStream in = encryptionService.decryptingStream(EncryptionService.CIPHER_AES_GCM, new byte[] { 1, 2, 3 },
+                new ByteArrayInputStream(legacyEncryptedData))) {
+            assertArrayEquals(plainData, StreamUtils.copyToByteArray(in));
+        }
+    }
+
+    private void assertDecryptionFails(byte[] encryptedData) {
+        try (InputStream in = strategy.decryptingStream(EncryptionService.CIPHER_AES_GCM_CHUNKED, key, new ByteArrayInputStream(encryptedData))) {
+            StreamUtils.copyToByteArray(in);
+            fail("Expected decryption to fail");
+        } catch (IOException e) {
+            assertEquals("Expect authentication failure", javax.crypto.AEADBadTagException.class, e.getCause().getClass());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ucles.weblab.common.files.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Throughput of in-memory AES-GCM encryption and decryption, in operations per second, for small to large files.
+ * Run with {@code mvn -P benchmark test-compile exec:exec -Dbenchmark=AesGcmEncryptionBenchmark}.
+ *
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AesGcmEncryptionBenchmark {
+    private static final long SEED = 56275638975328L;
+
+    @Param({ "1024", "1048576", "104857600" })
+    private int payloadBytes;
+
+    private final AesGcmEncryptionStrategy strategy = new AesGcmEncryptionStrategy("some-test-aad");
+    private final byte[] key = "0123456789012345".getBytes(UTF_8);
+    private byte[] plainData;
+    private byte[] encryptedData;
+
+    @Setup
+    public void setUp() {
+        plainData = new byte[payloadBytes];
+        new Random(SEED).nextBytes(plainData);
+        encryptedData = strategy.encrypt(EncryptionService.CIPHER_AES_GCM, key, plainData);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return strategy.encrypt(EncryptionService.CIPHER_AES_GCM, key, plainData);
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        return strategy.decrypt(EncryptionService.CIPHER_AES_GCM, key, encryptedData);
+    }
+}
@@ -2,18 +2,37 @@ package ucles.weblab.common.files.domain;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.Metric;
 
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
+import static java.util.stream.Collectors.toMap;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -33,12 +52,109 @@ public class AutoPurgeSecureFileCollectionServiceImplTest {
     public void testPurge() throws ExecutionException, InterruptedException {
         final Instant now = Instant.now();
         Clock clock = Clock.fixed(now, ZoneOffset.UTC);
-        when(secureFileRepository.deleteByCollectionPurgeInstantBefore(now)).thenReturn(40);
+        final SecureFileCollectionEntity collection = mock(SecureFileCollectionEntity.class);
+        when(secureFileCollectionRepository.findAllByPurgeInstantBefore(now)).thenReturn((List) Collections.singletonList(collection));
+        when(secureFileRepository.deleteBatchByCollection(collection, 1000)).thenReturn(40);
         when(secureFileCollectionRepository.removeByPurgeInstantBefore(now)).thenReturn(4L);
 
         secureFileCollectionService.configureClock(clock);
+        secureFileCollectionService.configureExecutor(Runnable::run);
         final Future<Long> result = secureFileCollectionService.purgeRepository();
         assertTrue("Expect immediate completion", result.isDone());
         assertEquals("Expect count of deleted records", (Long) 4L, result.get());
     }
+
+    @Test
+    public void testPurgeDeletesInBatchesUntilEachCollectionIsEmpty() throws ExecutionException, InterruptedException {
+        final Instant now = Instant.now();
+        final SecureFileCollectionEntity first = mock(SecureFileCollectionEntity.class);
+        final SecureFileCollectionEntity second = mock(SecureFileCollectionEntity.class);
+        when(secureFileCollectionRepository.findAllByPurgeInstantBefore(now)).thenReturn((List) Arrays.asList(first, second));
+        when(secureFileRepository.deleteBatchByCollection(first, 10)).thenReturn(10, 10, 3);
+        when(secureFileRepository.deleteBatchByCollection(second, 10)).thenReturn(0);
+        when(secureFileCollectionRepository.removeByPurgeInstantBefore(now)).thenReturn(2L);
+
+        secureFileCollectionService.configureClock(Clock.fixed(now, ZoneOffset.UTC));
+        secureFileCollectionService.configureExecutor(Runnable::run);
+        secureFileCollectionService.configureBatches(10, 0);
+        assertEquals("Expect count of deleted collections", (Long) 2L, secureFileCollectionService.purgeRepository().get());
+
+        final InOrder inOrder = inOrder(secureFileRepository, secureFileCollectionRepository);
+        inOrder.verify(secureFileRepository, times(3)).deleteBatchByCollection(first, 10);
+        inOrder.verify(secureFileRepository, times(1)).deleteBatchByCollection(second, 10);
+        inOrder.verify(secureFileCollectionRepository).removeByPurgeInstantBefore(now);
+
+        final Map<String, Number> metrics = secureFileCollectionService.metrics().stream().collect(toMap(Metric::getName, Metric::getValue));
+        assertEquals("Expect files purged published", 23L, metrics.get("files.purge.files"));
+        assertEquals("Expect collections purged published", 2L, metrics.get("files.purge.collections"));
+        assertEquals("Expect purge no longer running", 0, metrics.get("files.purge.running"));
+    }
+
+    @Test
+    public void testPurgeDeletesCollectionsAtOnceWhereRepositoryCan() throws ExecutionException, InterruptedException {
+        final Instant now = Instant.now();
+        final List<SecureFileCollectionEntity> expired = Arrays.asList(mock(SecureFileCollectionEntity.class), mock(SecureFileCollectionEntity.class));
+        when(secureFileCollectionRepository.findAllByPurgeInstantBefore(now)).thenReturn((List) expired);
+        when(secureFileRepository.deleteAllByCollectionIn((List) expired)).thenReturn(Optional.of(30L));
+        when(secureFileCollectionRepository.removeByPurgeInstantBefore(now)).thenReturn(2L);
+
+        secureFileCollectionService.configureClock(Clock.fixed(now, ZoneOffset.UTC));
+        secureFileCollectionService.configureExecutor(Runnable::run);
+        assertEquals("Expect count of deleted collections", (Long) 2L, secureFileCollectionService.purgeRepository().get());
+
+        verify(secureFileRepository, never()).deleteBatchByCollection(any(), anyInt());
+        final Map<String, Number> metrics = secureFileCollectionService.metrics().stream().collect(toMap(Metric::getName, Metric::getValue));
+        assertEquals("Expect files purged published", 30L, metrics.get("files.purge.files"));
+    }
+
+    @Test
+    public void testPurgeRunsInBackgroundAndIsNotStartedTwice() throws ExecutionException, InterruptedException {
+        final Instant now = Instant.now();
+        when(secureFileCollectionRepository.findAllByPurgeInstantBefore(now)).thenReturn(Collections.emptyList());
+        when(secureFileCollectionRepository.removeByPurgeInstantBefore(now)).thenReturn(0L);
+        final List<Runnable> queued = new ArrayList<>();
+
+        secureFileCollectionService.configureClock(Clock.fixed(now, ZoneOffset.UTC));
+        secureFileCollectionService.configureExecutor(queued::add);
+        final Future<Long> result = secureFileCollectionService.purgeRepository();
+        assertFalse("Expect purge not run on caller's thread", result.isDone());
+        assertSame("Expect running purge returned", result, secureFileCollectionService.purgeRepository());
+        assertEquals("Expect only one purge queued", 1, queued.size());
+
+        queued.get(0).run();
+        assertEquals("Expect count of deleted collections", (Long) 0L, result.get());
+        assertFalse("Expect a new purge once finished", result == secureFileCollectionService.purgeRepository());
+    }
+
+    @Test
+    public void testPurgeFailingWithErrorCompletesAndCanBeRestarted() throws ExecutionException, InterruptedException {
+        final Instant now = Instant.now();
+        when(secureFileCollectionRepository.findAllByPurgeInstantBefore(now))
+                .thenThrow(new AssertionError("Simulated failure"))
+                .thenReturn(Collections.emptyList());
+        when(secureFileCollectionRepository.removeByPurgeInstantBefore(now)).thenReturn(0L);
+        final List<Runnable> queued = new ArrayList<>();
+
+        secureFileCollectionService.configureClock(Clock.fixed(now, ZoneOffset.UTC));
+        secureFileCollectionService.configureExecutor(queued::add);
+        final Future<Long> failed = secureFileCollectionService.purgeRepository();
+        try {
+            queued.get(0).run();
+            fail("Expect error rethrown to the executor");
+        } catch (AssertionError e) {
+            assertEquals("Simulated failure", e.getMessage());
+        }
+        assertTrue("Expect failed purge completed", failed.isDone());
+        try {
+            failed.get();
+            fail("Expect failure reported to the caller");
+        } catch (ExecutionException e) {
+            assertTrue("Expect cause to be the error", e.getCause() instanceof AssertionError);
+        }
+
+        final Future<Long> result = secureFileCollectionService.purgeRepository();
+        assertFalse("Expect a new purge once failed", result == failed);
+        queued.get(1).run();
+        assertEquals("Expect count of deleted collections", (Long) 0L, result.get());
+    }
 }
@@ -0,0 +1,58 @@
+package ucles.weblab.common.files.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Throughput of {@link EncryptionServiceImpl} for each cipher, in operations per second, for small to large files.
+ *
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class EncryptionServiceBenchmark {
+    private static final long SEED = 56275638975328L;
+
+    @Param({ EncryptionService.CIPHER_NONE, EncryptionService.CIPHER_AES_GCM, EncryptionService.CIPHER_AES_GCM_CHUNKED })
+    private String cipher;
+
+    @Param({ "1024", "1048576", "104857600" })
+    private int payloadBytes;
+
+    private final EncryptionService encryptionService = new EncryptionServiceImpl(Arrays.asList(
+            new AesGcmEncryptionStrategy("some-test-aad"), new AesGcmChunkedEncryptionStrategy("some-test-aad"), new DummyEncryptionStrategy()),
+            "0123456789012345".getBytes(UTF_8));
+    private final byte[] fileKey = "some-file-key".getBytes(UTF_8);
+    private byte[] plainData;
+    private byte[] encryptedData;
+
+    @Setup
+    public void setUp() {
+        plainData = new byte[payloadBytes];
+        new Random(SEED).nextBytes(plainData);
+        encryptedData = encryptionService.encrypt(cipher, fileKey, plainData);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return encryptionService.encrypt(cipher, fileKey, plainData);
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        return encryptionService.decrypt(cipher, fileKey, encryptedData);
+    }
+}
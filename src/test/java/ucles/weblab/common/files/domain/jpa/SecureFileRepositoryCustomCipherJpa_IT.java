@@ -0,0 +1,189 @@
+package ucles.weblab.common.files.domain.jpa;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.annotation.Transactional;
+import ucles.weblab.common.files.domain.EncryptionService;
+import ucles.weblab.common.files.domain.EncryptionServiceImpl;
+import ucles.weblab.common.files.domain.EncryptionStrategy;
+import ucles.weblab.common.files.domain.SecureFile;
+import ucles.weblab.common.files.domain.SecureFileCollection;
+import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that files can be stored with a cipher which, like those written before the encrypted length could be
+ * predicted, does not say how long its encrypted data will be.
+ *
+ * @since 18/10/26
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest
+@Transactional
+@TestPropertySource(properties = "files.security.cipher=" + SecureFileRepositoryCustomCipherJpa_IT.CIPHER)
+public class SecureFileRepositoryCustomCipherJpa_IT {
+    static final String CIPHER = "TEST-PADDED";
+    private static final String FILE_RESOURCE_PATH = "81672667_bus.jpg";
+
+    /**
+     * Pads the data with a header, without overriding {@link EncryptionStrategy#encryptedLength}.
+     */
+    static class PaddingEncryptionStrategy implements EncryptionStrategy {
+        private static final int PADDING = 7;
+
+        @Override
+        public boolean supports(String cipher) {
+            return CIPHER.equals(cipher);
+        }
+
+        @Override
+        public byte[] decrypt(String cipherName, byte[] key, byte[] encryptedData) {
+            return Arrays.copyOfRange(encryptedData, PADDING, encryptedData.length);
+        }
+
+        @Override
+        public byte[] encrypt(String cipherName, byte[] key, byte[] plainData) {
+            final byte[] encrypted = new byte[PADDING + plainData.length];
+            System.arraycopy(plainData, 0, encrypted, PADDING, plainData.length);
+            return encrypted;
+        }
+    }
+
+    @Configuration
+    public static class Config extends SecureFileRepositoryJpa_IT.Config {
+        @Bean
+        @Override
+        public EncryptionService encryptionService() {
+            return new EncryptionServiceImpl(Collections.singletonList(new PaddingEncryptionStrategy()),
+                    "0123456789012345".getBytes(UTF_8));
+        }
+    }
+
+    @Autowired
+    FilesFactoryJpa filesFactory;
+
+    @Autowired
+    SecureFileRepositoryJpa secureFileRepository;
+
+    @Autowired
+    SecureFileRepositoryJpaImpl secureFileRepositoryImpl;
+
+    @PersistenceContext
+    EntityManager entityManager;
+
+    private SecureFileCollectionEntity bucket;
+    private byte[] originalData;
+
+    @Before
+    public void createBucket() throws IOException {
+        bucket = filesFactory.newSecureFileCollection(new SecureFileCollection() {
+            @Override
+            public String getDisplayName() {
+                return UUID.randomUUID().toString();
+            }
+
+            @Override
+            public Optional<Instant> getPurgeInstant() {
+                return Optional.empty();
+            }
+        });
+        entityManager.persist(bucket);
+        originalData = Resources.toByteArray(getClass().getResource(FILE_RESOURCE_PATH));
+    }
+
+    @After
+    public void restoreStorage() {
+        secureFileRepositoryImpl.configureChunkedStorage(false, 261120);
+    }
+
+    @Test
+    public void testBlobStoredWithLengthFoundByEncrypting() throws IOException {
+        final SecureFileEntityJpa secureFile = secureFileRepository.save(newSecureFile());
+        assertEquals("Expect encrypted length found before reload", originalData.length + 7, secureFile.getEncryptedLength());
+        assertReloadedIntact(secureFile);
+    }
+
+    @Test
+    public void testChunksStoredWithLengthCountedAsInserted() throws IOException {
+        secureFileRepositoryImpl.configureChunkedStorage(true, 1000);
+        final SecureFileEntityJpa secureFile = secureFileRepository.save(newSecureFile());
+        assertEquals("Expect encrypted length recorded before reload", originalData.length + 7, secureFile.getEncryptedLength());
+        assertReloadedIntact(secureFile);
+    }
+
+    private void assertReloadedIntact(SecureFileEntityJpa secureFile) throws IOException {
+        entityManager.flush();
+        entityManager.clear();
+
+        final SecureFileEntityJpa reloadedFile = secureFileRepository.findOneByCollectionAndFilename(bucket, secureFile.getFilename()).get();
+        assertEquals("Expect encrypted length stored", originalData.length + 7, reloadedFile.getEncryptedLength());
+        try (InputStream in = reloadedFile.getEncryptedDataSource().getInputStream()) {
+            assertEquals("Expect all encrypted data read", originalData.length + 7, ByteStreams.toByteArray(in).length);
+        }
+        try (InputStream in = reloadedFile.getPlainDataSource().getInputStream()) {
+            assertArrayEquals("Decrypted content should match", originalData, ByteStreams.toByteArray(in));
+        }
+    }
+
+    private SecureFileEntityJpa newSecureFile() {
+        return filesFactory.newSecureFile(bucket, new SecureFile() {
+            @Override
+            public String getFilename() {
+                return FILE_RESOURCE_PATH;
+            }
+
+            @Override
+            public String getContentType() {
+                return "image/jpeg";
+            }
+
+            @Override
+            public long getLength() {
+                return originalData.length;
+            }
+
+            @Override
+            public String getNotes() {
+                return null;
+            }
+
+            @Override
+            public byte[] getPlainData() {
+                return originalData;
+            }
+
+            @Override
+            public byte[] getEncryptedData() {
+                return null;
+            }
+
+            @Override
+            public Instant getCreatedDate() {
+                return Instant.now();
+            }
+        });
+    }
+}
@@ -0,0 +1,184 @@
+package ucles.weblab.common.files.domain.jpa;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.autoconfigure.PropertyPlaceholderAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.convert.threeten.Jsr310JpaConverters;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ucles.weblab.common.domain.ConfigurableEntitySupport;
+import ucles.weblab.common.files.domain.AesGcmChunkedEncryptionStrategy;
+import ucles.weblab.common.files.domain.AesGcmEncryptionStrategy;
+import ucles.weblab.common.files.domain.DummyEncryptionStrategy;
+import ucles.weblab.common.files.domain.EncryptionService;
+import ucles.weblab.common.files.domain.EncryptionServiceImpl;
+import ucles.weblab.common.files.domain.FilesBuilders;
+import ucles.weblab.common.files.domain.SecureFile;
+import ucles.weblab.common.files.domain.SecureFileCollection;
+import ucles.weblab.common.files.webapi.converter.FilesConverters;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Throughput of {@link SecureFileRepositoryJpa} saving and loading files on an in-memory H2 database, in operations
+ * per second. Saves are flushed and then rolled back so that the database does not grow during the run.
+ *
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SecureFileRepositoryJpaBenchmark {
+    private static final long SEED = 56275638975328L;
+
+    @Configuration
+    @EnableJpaRepositories(basePackageClasses = {SecureFileCollectionRepositoryJpa.class})
+    @EntityScan(basePackageClasses = {SecureFileEntityJpa.class, Jsr310JpaConverters.class})
+    @Import({ConfigurableEntitySupport.class, DataSourceAutoConfiguration.class, HibernateJpaAutoConfiguration.class, FilesConverters.class, FilesBuilders.class, PropertyPlaceholderAutoConfiguration.class})
+    public static class Config {
+        @Bean
+        public FilesFactoryJpa filesFactoryJpa() {
+            return new FilesFactoryJpa();
+        }
+
+        @Bean
+        public EncryptionService encryptionService() {
+            return new EncryptionServiceImpl(Arrays.asList(new AesGcmEncryptionStrategy("some-test-aad"),
+                    new AesGcmChunkedEncryptionStrategy("some-test-aad"), new DummyEncryptionStrategy()),
+                    "0123456789012345".getBytes(UTF_8));
+        }
+    }
+
+    @Param({ EncryptionService.CIPHER_AES_GCM, EncryptionService.CIPHER_AES_GCM_CHUNKED })
+    private String cipher;
+
+    @Param({ "1024", "1048576" })
+    private int payloadBytes;
+
+    private ConfigurableApplicationContext context;
+    private FilesFactoryJpa filesFactory;
+    private SecureFileRepositoryJpa secureFileRepository;
+    private EntityManager entityManager;
+    private TransactionTemplate transactionTemplate;
+    private SecureFileCollectionEntityJpa bucket;
+    private byte[] plainData;
+    private String savedFilename;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new SpringApplicationBuilder(Config.class)
+                .web(false)
+                .properties("files.security.cipher=" + cipher, "spring.jpa.show-sql=false")
+                .run();
+        filesFactory = context.getBean(FilesFactoryJpa.class);
+        secureFileRepository = context.getBean(SecureFileRepositoryJpa.class);
+        entityManager = SharedEntityManagerCreator.createSharedEntityManager(context.getBean(EntityManagerFactory.class));
+        transactionTemplate = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+
+        plainData = new byte[payloadBytes];
+        new Random(SEED).nextBytes(plainData);
+        savedFilename = transactionTemplate.execute(status -> {
+            bucket = filesFactory.newSecureFileCollection(new SecureFileCollection() {
+                @Override
+                public String getDisplayName() {
+                    return "Benchmark";
+                }
+
+                @Override
+                public Optional<Instant> getPurgeInstant() {
+                    return Optional.empty();
+                }
+            });
+            entityManager.persist(bucket);
+            return secureFileRepository.save(filesFactory.newSecureFile(bucket, newSecureFile())).getFilename();
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public SecureFileEntityJpa save() {
+        return transactionTemplate.execute(status -> {
+            final SecureFileEntityJpa saved = secureFileRepository.save(filesFactory.newSecureFile(bucket, newSecureFile()));
+            entityManager.flush();
+            status.setRollbackOnly();
+            return saved;
+        });
+    }
+
+    @Benchmark
+    public byte[] loadAndDecrypt() {
+        return transactionTemplate.execute(status ->
+                secureFileRepository.findOneByCollectionAndFilename(bucket, savedFilename).get().getPlainData());
+    }
+
+    private SecureFile newSecureFile() {
+        final String filename = UUID.randomUUID() + ".bin";
+        return new SecureFile() {
+            @Override
+            public String getFilename() {
+                return filename;
+            }
+
+            @Override
+            public String getContentType() {
+                return "application/octet-stream";
+            }
+
+            @Override
+            public String getNotes() {
+                return null;
+            }
+
+            @Override
+            public long getLength() {
+                return plainData.length;
+            }
+
+            @Override
+            public byte[] getEncryptedData() {
+                return null;
+            }
+
+            @Override
+            public byte[] getPlainData() {
+                return plainData;
+            }
+
+            @Override
+            public Instant getCreatedDate() {
+                return Instant.now();
+            }
+        };
+    }
+}
@@ -1,5 +1,6 @@
 package ucles.weblab.common.files.domain.jpa;
 
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
 import org.junit.After;
 import org.junit.Before;
@@ -14,6 +15,7 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.data.jpa.convert.threeten.Jsr310JpaConverters;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 import org.springframework.test.context.TestPropertySource;
@@ -24,15 +26,18 @@ import ucles.weblab.common.files.domain.*;
 import ucles.weblab.common.files.webapi.converter.FilesConverters;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnitUtil;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaDelete;
 import javax.persistence.criteria.Root;
@@ -45,6 +50,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeNotNull;
 
 /**
@@ -75,6 +82,12 @@ public class SecureFileRepositoryJpa_IT {
                     "0123456789012345".getBytes(UTF_8));
         }
 
+        @Bean
+        public Executor filesPurgeExecutor() {
+            // Purge in the test's transaction
+            return Runnable::run;
+        }
+
         @Bean
         public SecureFileCollectionService secureFileCollectionService(SecureFileCollectionRepository secureFileCollectionRepository, SecureFileRepository secureFileRepository) {
             return new AutoPurgeSecureFileCollectionServiceImpl(secureFileCollectionRepository, secureFileRepository);
@@ -90,6 +103,9 @@ public class SecureFileRepositoryJpa_IT {
     @Autowired
     SecureFileCollectionService secureFileCollectionService;
 
+    @Autowired
+    SecureFileRepositoryJpaImpl secureFileRepositoryImpl;
+
     @PersistenceContext
     EntityManager entityManager;
 
@@ -118,6 +134,7 @@ public class SecureFileRepositoryJpa_IT {
         final Root<SecureFileEntityJpa> e = delete.from(SecureFileEntityJpa.class);
         delete.where(cb.equal(e.get(SecureFileEntityJpa_.collection).get(SecureFileCollectionEntityJpa_.bucket), bucket.getId()));
         entityManager.createQuery(delete).executeUpdate();
+        secureFileRepositoryImpl.configureChunkedStorage(false, 261120);
     }
 
     @Transactional
@@ -138,11 +155,50 @@ public class SecureFileRepositoryJpa_IT {
         assertThat(secureFileRepository.findAllByCollection(bucket), not(contains(secureFile)));
     }
 
+    @Transactional
+    @Test
+    public void testSecureFileRoundTripAfterReload() throws IOException {
+        final byte[] originalData = Resources.toByteArray(getClass().getResource(FILE_RESOURCE_PATH));
+        final SecureFileEntityJpa secureFile = secureFileRepository.save(newSecureFile(originalData));
+        entityManager.flush();
+        entityManager.clear();
+
+        final SecureFileEntityJpa reloadedFile = secureFileRepository.findOneByCollectionAndFilename(bucket, secureFile.getFilename()).get();
+        assertFalse("Expect encryption to have occurred", Arrays.equals(originalData, reloadedFile.getEncryptedData()));
+        assertArrayEquals("Decrypted content should match", originalData, reloadedFile.getPlainData());
+    }
+
+    @Transactional
+    @Test
+    public void testLoadingCollectionDoesNotLoadFileData() throws IOException {
+        final byte[] originalData = Resources.toByteArray(getClass().getResource(FILE_RESOURCE_PATH));
+        for (int i = 0; i < 3; i++) {
+            secureFileRepository.save(newSecureFile(i + "-" + FILE_RESOURCE_PATH, originalData));
+        }
+        entityManager.flush();
+        entityManager.clear();
+
+        final PersistenceUnitUtil persistenceUnitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        final Collection<SecureFileEntityJpa> allByBucket = secureFileRepository.findAllByCollection(bucket);
+        assertEquals("Expect all files found", 3, allByBucket.size());
+        for (SecureFileEntityJpa file : allByBucket) {
+            assertFalse("Expect file data not loaded with metadata", persistenceUnitUtil.isLoaded(file, SecureFileEntityJpa_.content.getName()));
+        }
+
+        final SecureFileEntityJpa file = allByBucket.iterator().next();
+        assertArrayEquals("Decrypted content should match", originalData, file.getPlainData());
+        assertTrue("Expect file data loaded once read", persistenceUnitUtil.isLoaded(file, SecureFileEntityJpa_.content.getName()));
+    }
+
     private SecureFileEntityJpa newSecureFile(final byte[] originalData) {
+        return newSecureFile(FILE_RESOURCE_PATH, originalData);
+    }
+
+    private SecureFileEntityJpa newSecureFile(final String filename, final byte[] originalData) {
         return filesFactory.newSecureFile(bucket, new SecureFile() {
                 @Override
                 public String getFilename() {
-                    return FILE_RESOURCE_PATH;
+                    return filename;
                 }
 
                 @Override
@@ -189,6 +245,120 @@ public class SecureFileRepositoryJpa_IT {
         assertEquals("Expect found file to have updated notes", "Very very important document", reloadedFile.getNotes());
     }
 
+    @Transactional
+    @Test
+    public void testFileMetadataUpdateByFilename() throws IOException {
+        final byte[] originalData = Resources.toByteArray(getClass().getResource(FILE_RESOURCE_PATH));
+        final SecureFileEntityJpa secureFile = secureFileRepository.save(newSecureFile(originalData));
+        entityManager.flush();
+        entityManager.clear();
+
+        final Integer count = secureFileRepository.updateMetadata(bucket, FILE_RESOURCE_PATH,
+                new SecureFileMetadataUpdate("renamed.jpg", null, "Very very important document"));
+        assertEquals("Expect 1 file updated", (Integer) 1, count);
+        assertEquals("Expect no file updated when missing", (Integer) 0, secureFileRepository.updateMetadata(bucket, FILE_RESOURCE_PATH,
+                new SecureFileMetadataUpdate(null, null, "Missing")));
+
+        final SecureFileEntityJpa reloadedFile = secureFileRepository.findOneByCollectionAndFilename(bucket, "renamed.jpg").get();
+        assertEquals("Expect same file", secureFile.getId(), reloadedFile.getId());
+        assertEquals("Expect content type unchanged", "image/jpeg", reloadedFile.getContentType());
+        assertEquals("Expect found file to have updated notes", "Very very important document", reloadedFile.getNotes());
+        assertArrayEquals("Decrypted content should match", originalData, reloadedFile.getPlainData());
+    }
+
+    @Transactional
+    @Test
+    public void testDeleteByFilename() throws IOException {
+        final byte[] originalData = Resources.toByteArray(getClass().getResource(FILE_RESOURCE_PATH));
+        final SecureFileEntityJpa secureFile = secureFileRepository.save(newSecureFile(originalData));
+        entityManager.flush();
+        entityManager.clear();
+
+        assertEquals("Expect 1 file deleted", (Integer) 1, secureFileRepository.deleteByCollectionAndFilename(bucket, FILE_RESOURCE_PATH));
+        assertEquals("Expect no file deleted when missing", (Integer) 0, secureFileRepository.deleteByCollectionAndFilename(bucket, FILE_RESOURCE_PATH));
+        assertNull("Expect secure file to be missing from the database.", entityManager.find(SecureFileEntityJpa.class, secureFile.getId()));
+    }
+
+    @Transactional
+    @Test
+    public void testChunkedSecureFileRoundTripAfterReload() throws IOException {
+        secureFileRepositoryImpl.configureChunkedStorage(true, 1000);
+        final byte[] originalData = Resources.toByteArray(getClass().getResource(FILE_RESOURCE_PATH));
+        final SecureFileEntityJpa secureFile = secureFileRepository.save(newSecureFile(originalData));
+        entityManager.flush();
+        entityManager.clear();
+
+        final SecureFileEntityJpa reloadedFile = secureFileRepository.findOneByCollectionAndFilename(bucket, secureFile.getFilename()).get();
+        final byte[] encryptedData = reloadedFile.getEncryptedData();
+        assertEquals("Expect encrypted length recorded", encryptedData.length, reloadedFile.getEncryptedLength());
+        assertEquals("Expect data split into chunks", (encryptedData.length + 999) / 1000, countChunks(secureFile));
+        assertArrayEquals("Decrypted content should match", originalData, reloadedFile.getPlainData());
+    }
+
+    @Transactional
+    @Test
+    public void testChunkedSecureFileRangeRead() throws IOException {
+        secureFileRepositoryImpl.configureChunkedStorage(true, 1000);
+        final byte[] originalData = Resources.toByteArray(getClass().getResource(FILE_RESOURCE_PATH));
+        final SecureFileEntityJpa secureFile = secureFileRepository.save(newSecureFile(originalData));
+        entityManager.flush();
+        entityManager.clear();
+
+        final SecureFileEntityJpa reloadedFile = secureFileRepository.findOneByCollectionAndFilename(bucket, secureFile.getFilename()).get();
+        final byte[] encryptedData = reloadedFile.getEncryptedData();
+        try (InputStream in = reloadedFile.getEncryptedDataSource().getInputStream()) {
+            assertEquals("Expect whole chunks skipped", 2990, in.skip(2990));
+            final byte[] range = new byte[20];
+            assertEquals("Expect range read across chunks", 20, ByteStreams.read(in, range, 0, range.length));
+            assertArrayEquals("Range should match", Arrays.copyOfRange(encryptedData, 2990, 3010), range);
+        }
+    }
+
+    @Transactional
+    @Test
+    public void testChunkedSecureFileStreamedThroughPlainDataSource() throws IOException {
+        secureFileRepositoryImpl.configureChunkedStorage(true, 1000);
+        final byte[] originalData = Resources.toByteArray(getClass().getResource(FILE_RESOURCE_PATH));
+        final SecureFileEntityJpa secureFile = secureFileRepository.save(newSecureFile(originalData));
+        entityManager.flush();
+        entityManager.clear();
+
+        final SecureFileEntityJpa reloadedFile = secureFileRepository.findOneByCollectionAndFilename(bucket, secureFile.getFilename()).get();
+        final InputStreamSource plainDataSource = reloadedFile.getPlainDataSource();
+        try (InputStream in = plainDataSource.getInputStream()) {
+            assertArrayEquals("Decrypted content should match", originalData, ByteStreams.toByteArray(in));
+        }
+
+        entityManager.createQuery("delete from SecureFileChunk c where c.fileId = :fileId")
+                .setParameter("fileId", secureFile.getId())
+                .executeUpdate();
+        try (InputStream in = plainDataSource.getInputStream()) {
+            ByteStreams.toByteArray(in);
+            fail("Expect chunks read from the database as the data is read, not when the source was obtained");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Transactional
+    @Test
+    public void testDeletingChunkedSecureFileDeletesChunks() throws IOException {
+        secureFileRepositoryImpl.configureChunkedStorage(true, 1000);
+        final byte[] originalData = Resources.toByteArray(getClass().getResource(FILE_RESOURCE_PATH));
+        final SecureFileEntityJpa secureFile = secureFileRepository.save(newSecureFile(originalData));
+        entityManager.flush();
+        entityManager.clear();
+
+        assertEquals("Expect 1 file deleted", (Integer) 1, secureFileRepository.deleteByCollectionAndFilename(bucket, FILE_RESOURCE_PATH));
+        assertEquals("Expect chunks deleted with file", 0, countChunks(secureFile));
+    }
+
+    private long countChunks(SecureFileEntityJpa secureFile) {
+        return entityManager.createQuery("select count(c) from SecureFileChunk c where c.fileId = :fileId", Long.class)
+                .setParameter("fileId", secureFile.getId())
+                .getSingleResult();
+    }
+
     @Transactional
     @Test
     public void testPurging() throws IOException, ExecutionException, InterruptedException {
@@ -0,0 +1,93 @@
+package ucles.weblab.common.files.domain.mongodb;
+
+import com.github.fakemongo.Fongo;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import ucles.weblab.common.files.domain.DummyEncryptionStrategy;
+import ucles.weblab.common.files.domain.EncryptionService;
+import ucles.weblab.common.files.domain.EncryptionServiceImpl;
+import ucles.weblab.common.files.domain.FilesBuilders;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests the MongoDB secure file metadata repository against an in-memory Fongo database.
+ *
+ * @since 18/10/26
+ */
+public class SecureFileMetadataRepositoryMongoTest {
+    private final FilesBuilders filesBuilders = new FilesBuilders();
+    private final FilesFactoryMongo filesFactory = new FilesFactoryMongo();
+    private MongoTemplate mongoTemplate;
+    private SecureFileRepositoryMongo secureFileRepository;
+    private SecureFileMetadataRepositoryMongo secureFileMetadataRepository;
+    private SecureFileCollectionEntityMongo collection;
+
+    @Before
+    public void setUp() {
+        mongoTemplate = new MongoTemplate(new Fongo("test").getMongo(), "test");
+        secureFileRepository = new SecureFileRepositoryMongo(mongoTemplate, new EncryptionServiceImpl(
+                Collections.singletonList(new DummyEncryptionStrategy()), "0123456789012345".getBytes(UTF_8)));
+        secureFileRepository.configureCipher(EncryptionService.CIPHER_NONE);
+        secureFileMetadataRepository = new SecureFileMetadataRepositoryMongo(mongoTemplate);
+        collection = filesFactory.newSecureFileCollection(filesBuilders.secureFileCollectionBuilder().get()
+                .displayName("Metadata")
+                .purgeInstant(Optional.empty())
+                .get());
+        for (String filename : new String[] { "c.txt", "a.txt", "d.txt", "b.txt" }) {
+            final byte[] plainData = ("Contents of " + filename).getBytes(UTF_8);
+            secureFileRepository.save(filesFactory.newSecureFile(collection, filesBuilders.secureFileBuilder().get()
+                    .filename(filename)
+                    .contentType("text/plain")
+                    .notes("Notes on " + filename)
+                    .length(plainData.length)
+                    .plainData(plainData)
+                    .get()));
+        }
+        // Nothing should need the chunks
+        mongoTemplate.dropCollection(collection.getBucket() + ".chunks");
+    }
+
+    @Test
+    public void testFindOneReadsMetadataOnly() {
+        final SecureFileMetadataEntityMongo file = secureFileMetadataRepository.findOneByCollectionAndFilename(collection, "b.txt").get();
+        assertEquals("Expect content type", "text/plain", file.getContentType());
+        assertEquals("Expect notes", "Notes on b.txt", file.getNotes());
+        assertEquals("Expect plain length", "Contents of b.txt".length(), file.getLength());
+        assertEquals("Expect cipher", EncryptionService.CIPHER_NONE, file.getCipher());
+        assertNotNull("Expect upload date", file.getCreatedDate());
+        assertFalse("Expect missing file not found", secureFileMetadataRepository.findOneByCollectionAndFilename(collection, "z.txt").isPresent());
+    }
+
+    @Test
+    public void testFindAllSortedByFilename() {
+        assertThat("Expect all files sorted", filenames(secureFileMetadataRepository.findAllByCollection(collection)),
+                contains("a.txt", "b.txt", "c.txt", "d.txt"));
+    }
+
+    @Test
+    public void testFindAllPaged() {
+        assertThat("Expect second page", filenames(secureFileMetadataRepository.findAllByCollection(collection, new PageRequest(1, 3))),
+                contains("d.txt"));
+        assertThat("Expect first page in reverse", filenames(secureFileMetadataRepository.findAllByCollection(collection,
+                new PageRequest(0, 2, Sort.Direction.DESC, "filename"))), contains("d.txt", "c.txt"));
+    }
+
+    private static List<String> filenames(List<SecureFileMetadataEntityMongo> files) {
+        return files.stream().map(SecureFileMetadataEntityMongo::getFilename).collect(toList());
+    }
+}
@@ -0,0 +1,186 @@
+package ucles.weblab.common.files.domain.mongodb;
+
+import com.github.fakemongo.Fongo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.autoconfigure.PropertyPlaceholderAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import ucles.weblab.common.domain.ConfigurableEntitySupport;
+import ucles.weblab.common.files.domain.AesGcmChunkedEncryptionStrategy;
+import ucles.weblab.common.files.domain.AesGcmEncryptionStrategy;
+import ucles.weblab.common.files.domain.DummyEncryptionStrategy;
+import ucles.weblab.common.files.domain.EncryptionService;
+import ucles.weblab.common.files.domain.EncryptionServiceImpl;
+import ucles.weblab.common.files.domain.SecureFile;
+import ucles.weblab.common.files.domain.SecureFileCollection;
+import ucles.weblab.common.files.domain.SecureFileEntity;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Throughput of {@link SecureFileRepositoryMongo} saving and loading files, in operations per second. Fongo stands
+ * in for MongoDB, so the figures measure this module's overhead (encryption, copying and GridFS chunking) rather than
+ * the database. Each saved file is deleted again so that the store does not grow during the run.
+ * <p>
+ * Comparing runs with {@code gridFsCacheSize} of zero and otherwise shows the cost of creating a GridFS handle, and
+ * checking the bucket's indexes, for every operation. This shows most in {@link #find}, which reads no file data.
+ * </p>
+ *
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SecureFileRepositoryMongoBenchmark {
+    private static final long SEED = 56275638975328L;
+
+    @Configuration
+    @Import({ConfigurableEntitySupport.class, PropertyPlaceholderAutoConfiguration.class})
+    public static class Config {
+        @Bean
+        public MongoTemplate mongoTemplate() {
+            return new MongoTemplate(new Fongo("benchmark").getMongo(), "benchmark");
+        }
+
+        @Bean
+        public FilesFactoryMongo filesFactoryMongo() {
+            return new FilesFactoryMongo();
+        }
+
+        @Bean
+        public SecureFileRepositoryMongo secureFileRepositoryMongo(MongoOperations mongoOperations, EncryptionService encryptionService) {
+            return new SecureFileRepositoryMongo(mongoOperations, encryptionService);
+        }
+
+        @Bean
+        public EncryptionService encryptionService() {
+            return new EncryptionServiceImpl(Arrays.asList(new AesGcmEncryptionStrategy("some-test-aad"),
+                    new AesGcmChunkedEncryptionStrategy("some-test-aad"), new DummyEncryptionStrategy()),
+                    "0123456789012345".getBytes(UTF_8));
+        }
+    }
+
+    @Param({ EncryptionService.CIPHER_AES_GCM, EncryptionService.CIPHER_AES_GCM_CHUNKED })
+    private String cipher;
+
+    @Param({ "1024", "1048576" })
+    private int payloadBytes;
+
+    @Param({ "0", "256" })
+    private int gridFsCacheSize;
+
+    private ConfigurableApplicationContext context;
+    private FilesFactoryMongo filesFactory;
+    private SecureFileRepositoryMongo secureFileRepository;
+    private SecureFileCollectionEntityMongo bucket;
+    private byte[] plainData;
+    private String savedFilename;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new SpringApplicationBuilder(Config.class)
+                .web(false)
+                .properties("files.security.cipher=" + cipher, "files.mongo.gridFsCacheSize=" + gridFsCacheSize)
+                .run();
+        filesFactory = context.getBean(FilesFactoryMongo.class);
+        secureFileRepository = context.getBean(SecureFileRepositoryMongo.class);
+
+        plainData = new byte[payloadBytes];
+        new Random(SEED).nextBytes(plainData);
+        bucket = filesFactory.newSecureFileCollection(new SecureFileCollection() {
+            @Override
+            public String getDisplayName() {
+                return "Benchmark";
+            }
+
+            @Override
+            public Optional<Instant> getPurgeInstant() {
+                return Optional.empty();
+            }
+        });
+        savedFilename = secureFileRepository.save(filesFactory.newSecureFile(bucket, newSecureFile())).getFilename();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public SecureFileEntity saveAndDelete() {
+        final SecureFileEntityMongo saved = secureFileRepository.save(filesFactory.newSecureFile(bucket, newSecureFile()));
+        secureFileRepository.delete(saved);
+        return saved;
+    }
+
+    @Benchmark
+    public SecureFileEntity find() {
+        return secureFileRepository.findOneByCollectionAndFilename(bucket, savedFilename).get();
+    }
+
+    @Benchmark
+    public byte[] loadAndDecrypt() {
+        return secureFileRepository.findOneByCollectionAndFilename(bucket, savedFilename).get().getPlainData();
+    }
+
+    private SecureFile newSecureFile() {
+        final String filename = UUID.randomUUID() + ".bin";
+        return new SecureFile() {
+            @Override
+            public String getFilename() {
+                return filename;
+            }
+
+            @Override
+            public String getContentType() {
+                return "application/octet-stream";
+            }
+
+            @Override
+            public String getNotes() {
+                return null;
+            }
+
+            @Override
+            public long getLength() {
+                return plainData.length;
+            }
+
+            @Override
+            public byte[] getEncryptedData() {
+                return null;
+            }
+
+            @Override
+            public byte[] getPlainData() {
+                return plainData;
+            }
+
+            @Override
+            public Instant getCreatedDate() {
+                return Instant.now();
+            }
+        };
+    }
+}
@@ -0,0 +1,150 @@
+package ucles.weblab.common.files.domain.mongodb;
+
+import com.github.fakemongo.Fongo;
+import com.mongodb.DBObject;
+import com.mongodb.gridfs.GridFS;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.util.StreamUtils;
+import ucles.weblab.common.files.domain.DummyEncryptionStrategy;
+import ucles.weblab.common.files.domain.EncryptionService;
+import ucles.weblab.common.files.domain.EncryptionServiceImpl;
+import ucles.weblab.common.files.domain.FilesBuilders;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toMap;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the MongoDB secure file repository against an in-memory Fongo database.
+ *
+ * @since 18/10/26
+ */
+public class SecureFileRepositoryMongoTest {
+    private final FilesBuilders filesBuilders = new FilesBuilders();
+    private final FilesFactoryMongo filesFactory = new FilesFactoryMongo();
+    private final EncryptionService encryptionService = new EncryptionServiceImpl(
+            Collections.singletonList(new DummyEncryptionStrategy()), "0123456789012345".getBytes(UTF_8));
+    private MongoTemplate mongoTemplate;
+    private SecureFileRepositoryMongo secureFileRepository;
+
+    @Before
+    public void setUp() {
+        mongoTemplate = new MongoTemplate(new Fongo("test").getMongo(), "test");
+        secureFileRepository = new SecureFileRepositoryMongo(mongoTemplate, encryptionService);
+        secureFileRepository.configureCipher(EncryptionService.CIPHER_NONE);
+        secureFileRepository.configurePurgeParallelism(2);
+    }
+
+    @Test
+    public void testPurgeDropsBucketsOfExpiredCollectionsOnly() {
+        final Instant now = Instant.now();
+        final SecureFileCollectionEntityMongo expired1 = newCollection("Expired 1", now.minus(1, ChronoUnit.DAYS), 3);
+        final SecureFileCollectionEntityMongo expired2 = newCollection("Expired 2", now.minus(2, ChronoUnit.DAYS), 2);
+        final SecureFileCollectionEntityMongo current = newCollection("Current", now.plus(1, ChronoUnit.DAYS), 1);
+
+        assertEquals("Expect files in expired buckets counted", (Integer) 5, secureFileRepository.deleteByCollectionPurgeInstantBefore(now));
+
+        assertFalse("Expect expired bucket files dropped", mongoTemplate.collectionExists(expired1.getBucket() + ".files"));
+        assertFalse("Expect expired bucket chunks dropped", mongoTemplate.collectionExists(expired1.getBucket() + ".chunks"));
+        assertFalse("Expect expired bucket files dropped", mongoTemplate.collectionExists(expired2.getBucket() + ".files"));
+        assertTrue("Expect current bucket kept", mongoTemplate.collectionExists(current.getBucket() + ".files"));
+        assertEquals("Expect current bucket's files kept", 1, secureFileRepository.findAllByCollection(current).size());
+
+        final Map<String, Number> metrics = secureFileRepository.metrics().stream().collect(toMap(Metric::getName, Metric::getValue));
+        assertEquals("Expect buckets dropped published", 2L, metrics.get("files.purge.gridfs.buckets"));
+    }
+
+    @Test
+    public void testDeleteAllByCollectionInDropsBuckets() {
+        final SecureFileCollectionEntityMongo collection = newCollection("Whole", Instant.now(), 4);
+
+        assertEquals("Expect files in bucket counted", Optional.of(4L),
+                secureFileRepository.deleteAllByCollectionIn(Collections.singletonList(collection)));
+        assertTrue("Expect no files left", secureFileRepository.findAllByCollection(collection).isEmpty());
+        assertEquals("Expect nothing to drop", Optional.of(0L), secureFileRepository.deleteAllByCollectionIn(Collections.emptyList()));
+    }
+
+    @Test
+    public void testListingReadsOnlyFileMetadata() {
+        final SecureFileCollectionEntityMongo collection = newCollection("Listed", Instant.now(), 2);
+        mongoTemplate.dropCollection(collection.getBucket() + ".chunks");
+
+        final Collection<SecureFileEntityMongo> files = secureFileRepository.findAllByCollection(collection);
+        assertEquals("Expect files listed without their chunks", 2, files.size());
+        assertEquals("Expect length known without reading chunks", "File 0".length(), files.iterator().next().getEncryptedLength());
+    }
+
+    @Test
+    public void testDataReadLazilyAndStreamed() throws IOException {
+        final SecureFileCollectionEntityMongo collection = newCollection("Lazy", Instant.now(), 1);
+        final SecureFileEntityMongo file = secureFileRepository.findOneByCollectionAndFilename(collection, "file0.txt").get();
+        file.configureEncryptionService(encryptionService); // as there is no application context to configure it
+
+        assertArrayEquals("Expect encrypted data streamed", "File 0".getBytes(UTF_8),
+                StreamUtils.copyToByteArray(file.getEncryptedDataSource().getInputStream()));
+        assertArrayEquals("Expect plain data streamed", "File 0".getBytes(UTF_8),
+                StreamUtils.copyToByteArray(file.getPlainDataSource().getInputStream()));
+        assertArrayEquals("Expect plain data read", "File 0".getBytes(UTF_8), file.getPlainData());
+    }
+
+    @Test
+    public void testGridFsHandleReusedForBucket() {
+        final SecureFileCollectionEntityMongo collection = newCollection("Reused", Instant.now(), 0);
+        final GridFS gridFS = secureFileRepository.gridFs(mongoTemplate.getDb(), collection);
+        assertSame("Expect handle reused", gridFS, secureFileRepository.gridFs(mongoTemplate.getDb(), collection));
+
+        secureFileRepository.configureGridFsCache(0);
+        assertNotSame("Expect handle not reused without a cache", secureFileRepository.gridFs(mongoTemplate.getDb(), collection),
+                secureFileRepository.gridFs(mongoTemplate.getDb(), collection));
+    }
+
+    @Test
+    public void testBucketIndexesCreatedAgainAfterBucketDropped() {
+        final SecureFileCollectionEntityMongo collection = newCollection("Recreated", Instant.now(), 1);
+        secureFileRepository.deleteAllByCollectionIn(Collections.singletonList(collection));
+        assertFalse("Expect chunks dropped", mongoTemplate.collectionExists(collection.getBucket() + ".chunks"));
+
+        saveFile(collection, "again.txt", "Again");
+        assertTrue("Expect chunks index created again", mongoTemplate.getCollection(collection.getBucket() + ".chunks").getIndexInfo().stream()
+                .anyMatch(index -> ((DBObject) index.get("key")).containsField("files_id")));
+    }
+
+    private SecureFileCollectionEntityMongo newCollection(String displayName, Instant purgeInstant, int files) {
+        final SecureFileCollectionEntityMongo collection = filesFactory.newSecureFileCollection(filesBuilders.secureFileCollectionBuilder().get()
+                .displayName(displayName)
+                .purgeInstant(Optional.of(purgeInstant))
+                .get());
+        mongoTemplate.save(collection);
+        for (int i = 0; i < files; i++) {
+            saveFile(collection, "file" + i + ".txt", "File " + i);
+        }
+        return collection;
+    }
+
+    private void saveFile(SecureFileCollectionEntityMongo collection, String filename, String contents) {
+        final byte[] plainData = contents.getBytes(UTF_8);
+        secureFileRepository.save(filesFactory.newSecureFile(collection, filesBuilders.secureFileBuilder().get()
+                .filename(filename)
+                .contentType("text/plain")
+                .length(plainData.length)
+                .plainData(plainData)
+                .createdDate(Instant.now())
+                .get()));
+    }
+}
@@ -0,0 +1,378 @@
+package ucles.weblab.common.files.domain.s3;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StreamUtils;
+import ucles.weblab.common.files.blob.api.Blob;
+import ucles.weblab.common.files.blob.api.BlobId;
+import ucles.weblab.common.files.blob.api.BlobNotFoundException;
+import ucles.weblab.common.files.blob.api.BlobStoreException;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the S3 blob store against an in-memory S3 stand-in.
+ *
+ * @since 18/10/26
+ */
+public class BlobStoreServiceS3Test {
+    private static final String BUCKET = "files-test";
+    private static final int PART_SIZE = BlobStoreServiceS3.MIN_PART_SIZE;
+
+    private S3StandIn s3;
+    private BlobStoreServiceS3 blobStoreService;
+    private final Instant expiry = Instant.now().plus(1, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS);
+
+    @BeforeClass
+    public static void quietenWireLogging() {
+        // Logging every byte of each part sent, and every request made, is far slower than sending them.
+        ((Logger) LoggerFactory.getLogger("org.apache.http")).setLevel(Level.INFO);
+        ((Logger) LoggerFactory.getLogger("com.amazonaws")).setLevel(Level.INFO);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        s3 = new S3StandIn();
+        blobStoreService = new BlobStoreServiceS3(s3.client(), "test", "eu-west-1", "files", "blobs");
+        blobStoreService.configureMultipartUpload(PART_SIZE, PART_SIZE, 3, 2);
+    }
+
+    @After
+    public void tearDown() {
+        blobStoreService.dispose();
+        s3.close();
+    }
+
+    @Test
+    public void testSmallBlobPutInOneRequest() throws BlobStoreException {
+        final byte[] data = randomData(1000);
+        blobStoreService.putBlob(new BlobId("small.bin"), "application/octet-stream", data, expiry);
+
+        assertArrayEquals("Expect object stored", data, s3.getObject(BUCKET, "blobs/small.bin").data);
+        assertEquals("Expect no parts uploaded", 0, s3.getPartUploads());
+    }
+
+    @Test
+    public void testLargeBlobUploadedInParallelParts() throws BlobStoreException, BlobNotFoundException {
+        final byte[] data = randomData(PART_SIZE * 3 + 1234);
+        s3.delayPartUploads(200);
+        blobStoreService.putBlob(new BlobId("large.bin"), "application/pdf", data, expiry);
+
+        assertArrayEquals("Expect parts joined in order", data, s3.getObject(BUCKET, "blobs/large.bin").data);
+        assertEquals("Expect four parts", 4, s3.getPartUploads());
+        assertTrue("Expect parts uploaded at once", s3.getMaxPartsUploadingAtOnce() > 1);
+        assertTrue("Expect no more parts at once than threads", s3.getMaxPartsUploadingAtOnce() <= 3);
+
+        final Blob blob = blobStoreService.getBlob(new BlobId("large.bin"), true).get();
+        assertEquals("Expect content type kept", "application/pdf", blob.getMimeType());
+        assertEquals("Expect expiry kept", expiry, blob.getExpiryDate());
+    }
+
+    @Test
+    public void testLargeStreamUploadedInParts() throws BlobStoreException {
+        final byte[] data = randomData(PART_SIZE * 2 + 1);
+        blobStoreService.putBlob(new BlobId("stream.bin"), "application/octet-stream", new ByteArrayInputStream(data), data.length);
+
+        assertArrayEquals("Expect parts joined in order", data, s3.getObject(BUCKET, "blobs/stream.bin").data);
+        assertEquals("Expect three parts", 3, s3.getPartUploads());
+    }
+
+    @Test
+    public void testLargeStreamWithExpiryUploadedInParts() throws BlobStoreException, BlobNotFoundException {
+        final byte[] data = randomData(PART_SIZE * 2 + 1);
+        blobStoreService.putBlob(new BlobId("expiring.bin"), "application/pdf", new ByteArrayInputStream(data), (long) data.length, expiry);
+
+        assertArrayEquals("Expect parts joined in order", data, s3.getObject(BUCKET, "blobs/expiring.bin").data);
+        assertEquals("Expect three parts", 3, s3.getPartUploads());
+        final Blob blob = blobStoreService.getBlob(new BlobId("expiring.bin"), false).get();
+        assertEquals("Expect content type kept", "application/pdf", blob.getMimeType());
+        assertEquals("Expect expiry kept", expiry, blob.getExpiryDate());
+    }
+
+    @Test
+    public void testStreamReadNoFurtherAheadThanPartsCanBeUploaded() throws BlobStoreException {
+        final byte[] data = randomData(PART_SIZE * 6);
+        final AtomicInteger maxPartsHeld = new AtomicInteger();
+        s3.delayPartUploads(300);
+        final InputStream in = new FilterInputStream(new ByteArrayInputStream(data)) {
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                notePartStarted();
+                final int b = super.read();
+                position += b < 0 ? 0 : 1;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                notePartStarted();
+                final int count = super.read(b, off, len);
+                position += Math.max(count, 0);
+                return count;
+            }
+
+            private void notePartStarted() {
+                if (position % PART_SIZE == 0 && position < data.length) {
+                    maxPartsHeld.accumulateAndGet(position / PART_SIZE + 1 - s3.getPartUploads(), Math::max);
+                }
+            }
+        };
+        blobStoreService.putBlob(new BlobId("bounded.bin"), "application/octet-stream", in, (long) data.length, expiry);
+
+        assertArrayEquals("Expect parts joined in order", data, s3.getObject(BUCKET, "blobs/bounded.bin").data);
+        assertTrue("Expect no more parts held than threads", maxPartsHeld.get() <= 3);
+    }
+
+    @Test
+    public void testLargeBlobReadWhileLargeUploadUsesItsThreads() throws Exception {
+        final byte[] stored = randomData(PART_SIZE * 2);
+        blobStoreService.putBlob(new BlobId("stored.bin"), "application/octet-stream", stored, expiry);
+        final int partsStored = s3.getPartUploads();
+        blobStoreService.configureTransferThreads(4);
+        s3.delayPartUploads(2000);
+        final byte[] uploaded = randomData(PART_SIZE * 3);
+        final ExecutorService uploader = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> upload = uploader.submit(() -> blobStoreService.putBlob(new BlobId("uploaded.bin"), "application/octet-stream", uploaded, expiry));
+            while (s3.getMaxPartsUploadingAtOnce() < 3) {
+                Thread.sleep(10);
+            }
+
+            assertArrayEquals("Expect blob read", stored, blobStoreService.getBlob(new BlobId("stored.bin"), true).get().getData());
+            assertEquals("Expect blob read before any part of the upload finished", partsStored, s3.getPartUploads());
+            upload.get();
+        } finally {
+            uploader.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedPartRetried() throws BlobStoreException {
+        final byte[] data = randomData(PART_SIZE * 2 + 1);
+        s3.failPartUploads(2, 1);
+        blobStoreService.putBlob(new BlobId("retried.bin"), "application/octet-stream", data, expiry);
+
+        assertArrayEquals("Expect whole object stored", data, s3.getObject(BUCKET, "blobs/retried.bin").data);
+    }
+
+    @Test
+    public void testUploadAbortedWhenPartKeepsFailing() {
+        final byte[] data = randomData(PART_SIZE * 2 + 1);
+        s3.failPartUploads(2, 2);
+        try {
+            blobStoreService.putBlob(new BlobId("aborted.bin"), "application/octet-stream", data, expiry);
+            fail("Expect upload to fail");
+        } catch (BlobStoreException e) {
+            assertNull("Expect no object stored", s3.getObject(BUCKET, "blobs/aborted.bin"));
+            assertEquals("Expect upload aborted", 1, s3.getAbortedUploads());
+            assertEquals("Expect no parts kept", 0, s3.getUploadsInProgress());
+        }
+    }
+
+    @Test
+    public void testSmallBlobReadInOneRequest() throws BlobStoreException, BlobNotFoundException, IOException {
+        final byte[] data = randomData(1000);
+        blobStoreService.putBlob(new BlobId("small.bin"), "application/octet-stream", data, expiry);
+
+        assertArrayEquals("Expect content read", data, blobStoreService.getBlob(new BlobId("small.bin"), true).get().getData());
+        try (InputStream in = blobStoreService.openBlob(new BlobId("small.bin"))) {
+            assertArrayEquals("Expect content streamed", data, StreamUtils.copyToByteArray(in));
+        }
+        assertEquals("Expect one request for each read", 2, s3.getGets());
+    }
+
+    @Test
+    public void testEmptyBlobRead() throws BlobStoreException, BlobNotFoundException, IOException {
+        // The service does not write empty blobs itself
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(0);
+        metadata.addUserMetadata("expiry", expiry.toString());
+        s3.client().putObject(BUCKET, "blobs/empty.bin", new ByteArrayInputStream(new byte[0]), metadata);
+
+        assertEquals("Expect no content", 0, blobStoreService.getBlob(new BlobId("empty.bin"), true).get().getLength());
+        try (InputStream in = blobStoreService.openBlob(new BlobId("empty.bin"))) {
+            assertEquals("Expect nothing streamed", -1, in.read());
+        }
+    }
+
+    @Test
+    public void testLargeBlobReadInParallelRanges() throws BlobStoreException, BlobNotFoundException {
+        final byte[] data = randomData(PART_SIZE * 4 + 1234);
+        blobStoreService.putBlob(new BlobId("large.bin"), "application/octet-stream", data, expiry);
+        s3.delayRangeReads(200);
+
+        assertArrayEquals("Expect ranges joined in order", data, blobStoreService.getBlob(new BlobId("large.bin"), true).get().getData());
+        assertEquals("Expect first range then the rest", 5, s3.getGets());
+        assertTrue("Expect ranges read at once", s3.getMaxRangesReadingAtOnce() > 1);
+    }
+
+    @Test
+    public void testLargeBlobStreamedInRanges() throws BlobStoreException, BlobNotFoundException, IOException {
+        final byte[] data = randomData(PART_SIZE * 4 + 1234);
+        blobStoreService.putBlob(new BlobId("large.bin"), "application/octet-stream", data, expiry);
+        s3.delayRangeReads(200);
+
+        try (InputStream in = blobStoreService.openBlob(new BlobId("large.bin"))) {
+            assertArrayEquals("Expect ranges streamed in order", data, StreamUtils.copyToByteArray(in));
+        }
+        assertEquals("Expect first range then the rest", 5, s3.getGets());
+        assertTrue("Expect ranges read ahead at once", s3.getMaxRangesReadingAtOnce() > 1);
+        assertTrue("Expect no more ranges read ahead than threads", s3.getMaxRangesReadingAtOnce() <= 3);
+    }
+
+    @Test
+    public void testFailedRangeRetried() throws BlobStoreException, BlobNotFoundException, IOException {
+        final byte[] data = randomData(PART_SIZE * 2 + 1);
+        blobStoreService.putBlob(new BlobId("retried.bin"), "application/octet-stream", data, expiry);
+        s3.failRangeReads(PART_SIZE, 1);
+
+        try (InputStream in = blobStoreService.openBlob(new BlobId("retried.bin"))) {
+            assertArrayEquals("Expect whole object streamed", data, StreamUtils.copyToByteArray(in));
+        }
+    }
+
+    @Test
+    public void testStreamFailsWhenRangeKeepsFailing() throws BlobStoreException, BlobNotFoundException {
+        final byte[] data = randomData(PART_SIZE * 2 + 1);
+        blobStoreService.putBlob(new BlobId("failed.bin"), "application/octet-stream", data, expiry);
+        s3.failRangeReads(PART_SIZE, 2);
+
+        try (InputStream in = blobStoreService.openBlob(new BlobId("failed.bin"))) {
+            StreamUtils.copyToByteArray(in);
+            fail("Expect stream to fail rather than end early");
+        } catch (IOException e) {
+            assertTrue("Expect S3 error as cause", e.getCause() instanceof AmazonServiceException);
+        }
+    }
+
+    @Test(expected = BlobNotFoundException.class)
+    public void testOpeningMissingBlobThrowsNotFound() throws BlobStoreException, BlobNotFoundException {
+        blobStoreService.openBlob(new BlobId("missing.bin"));
+    }
+
+    @Test
+    public void testBlobMetadataReadWithoutContent() throws BlobStoreException, BlobNotFoundException {
+        blobStoreService.putBlob(new BlobId("metadata.bin"), "application/pdf", randomData(1000), expiry);
+
+        final Blob blob = blobStoreService.getBlob(new BlobId("metadata.bin"), false).get();
+        assertEquals("Expect content type read", "application/pdf", blob.getMimeType());
+        assertEquals("Expect expiry read", expiry, blob.getExpiryDate());
+        assertEquals("Expect no content", 0, blob.getLength());
+        assertEquals("Expect content not fetched", 0, s3.getGets());
+    }
+
+    @Test
+    public void testListBlobsReadsEveryPage() throws BlobStoreException, BlobNotFoundException {
+        for (int i = 0; i < 1001; i++) {
+            s3.putObject(BUCKET, String.format("blobs/%04d.bin", i), new byte[0],
+                    Collections.singletonMap("x-amz-meta-expiry", expiry.toString()), Instant.now());
+        }
+
+        assertEquals("Expect blobs listed from both pages", 1001, blobStoreService.listBlobs(false).size());
+        assertEquals("Expect each page listed once", 2, s3.getListings());
+    }
+
+    @Test
+    public void testBlobsPublicWithPlainUrlsByDefault() throws BlobStoreException, BlobNotFoundException {
+        blobStoreService.putBlob(new BlobId("public.bin"), "application/octet-stream", randomData(10), expiry);
+
+        assertEquals("Expect object public", "public-read", s3.getObject(BUCKET, "blobs/public.bin").headers.get("x-amz-acl"));
+        assertEquals("Expect plain url", URI.create("https://s3-eu-west-1.amazonaws.com/files-test/blobs/public.bin"),
+                blobStoreService.getUrl(new BlobId("public.bin"), Instant.now().plusSeconds(30)).get());
+    }
+
+    @Test
+    public void testPrivateBlobsReadWithPresignedUrls() throws BlobStoreException, BlobNotFoundException, IOException {
+        blobStoreService.configurePresignedUrls(true);
+        final byte[] small = randomData(10);
+        final byte[] large = randomData(PART_SIZE * 2 + 1);
+        blobStoreService.putBlob(new BlobId("small.bin"), "application/octet-stream", small, expiry);
+        blobStoreService.putBlob(new BlobId("large.bin"), "application/octet-stream", large, expiry);
+
+        assertNull("Expect object private", s3.getObject(BUCKET, "blobs/small.bin").headers.get("x-amz-acl"));
+        assertNull("Expect object uploaded in parts private", s3.getObject(BUCKET, "blobs/large.bin").headers.get("x-amz-acl"));
+
+        final URI url = blobStoreService.getUrl(new BlobId("small.bin"), Instant.now().plusSeconds(60)).get();
+        assertTrue("Expect url signed", url.getQuery().contains("X-Amz-Signature="));
+        assertTrue("Expect url to last until the given expiry", url.getQuery().matches(".*X-Amz-Expires=(59|60)(&.*|$)"));
+        try (InputStream in = url.toURL().openStream()) {
+            assertArrayEquals("Expect content downloaded from url", small, StreamUtils.copyToByteArray(in));
+        }
+    }
+
+    @Test
+    public void testExistsLooksUnderRootPath() throws BlobStoreException {
+        blobStoreService.putBlob(new BlobId("exists.bin"), "application/octet-stream", randomData(10), expiry);
+
+        assertTrue("Expect blob found", blobStoreService.exists(new BlobId("exists.bin")));
+        assertFalse("Expect missing blob not found", blobStoreService.exists(new BlobId("missing.bin")));
+    }
+
+    @Test
+    public void testBlobWithPartIdFoundOnlyAmongKeysWithPrefix() throws BlobStoreException, BlobNotFoundException {
+        for (int i = 0; i < 1001; i++) {
+            s3.putObject(BUCKET, String.format("blobs/a_%04d_file.bin", i), new byte[0],
+                    Collections.singletonMap("x-amz-meta-expiry", expiry.toString()), Instant.now());
+        }
+        s3.putObject(BUCKET, "blobs/b_0001_file.bin", new byte[0], Collections.singletonMap("x-amz-meta-expiry", expiry.toString()), Instant.now());
+
+        assertEquals("Expect blob found after a page of other keys", new BlobId("b_0001_file.bin"),
+                blobStoreService.getBlobWithPartBlobId("b_", "file.bin", false).get().getId());
+        assertEquals("Expect only keys with the prefix listed", 1, s3.getListings());
+    }
+
+    @Test
+    public void testBlobsModifiedBeforeCutOffRemovedInBatches() throws BlobStoreException {
+        final Instant cutOff = Instant.now().minus(1, ChronoUnit.HOURS);
+        for (int i = 0; i < 2500; i++) {
+            s3.putObject(BUCKET, String.format("blobs/old/%04d.bin", i), new byte[0], Collections.emptyMap(),
+                    i % 100 == 0 ? cutOff.plusSeconds(1) : cutOff.minusSeconds(1));
+        }
+        s3.putObject(BUCKET, "blobs/kept.bin", new byte[0], Collections.emptyMap(), cutOff.minus(1, ChronoUnit.DAYS));
+
+        assertEquals("Expect blobs written before cut-off removed", Optional.of(2475L), blobStoreService.removeBlobsModifiedBefore("old/", cutOff));
+        assertNull("Expect old blob removed", s3.getObject(BUCKET, "blobs/old/0001.bin"));
+        assertNotNull("Expect newer blob kept", s3.getObject(BUCKET, "blobs/old/0100.bin"));
+        assertNotNull("Expect blob without prefix kept", s3.getObject(BUCKET, "blobs/kept.bin"));
+        assertEquals("Expect one delete for each page", 3, s3.getDeleteRequests());
+        assertTrue("Expect no more keys in a delete than S3 allows",
+                s3.getMaxKeysPerDelete() <= BlobStoreServiceS3.MAX_KEYS_PER_DELETE);
+        assertEquals("Expect nothing read but the listing", 0, s3.getGets() + s3.getHeads());
+    }
+
+    private static byte[] randomData(int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,410 @@
+package ucles.weblab.common.files.domain.s3;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Minimal S3-compatible server for tests, holding objects in memory. It understands just enough of the S3 REST API
+ * to put, get, list and delete objects, to get ranges of them, and to run multipart uploads, and can be told to fail or
+ * slow down part uploads and ranged reads.
+ *
+ * @since 18/10/26
+ */
+public class S3StandIn implements AutoCloseable {
+    private static final String XML_NAMESPACE = "http://s3.amazonaws.com/doc/2006-03-01/";
+    private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final Pattern KEY = Pattern.compile("<Key>([^<]*)</Key>");
+    private static final DateTimeFormatter LAST_MODIFIED_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    public static final class StoredObject {
+        public final byte[] data;
+        final Map<String, String> headers;
+        volatile Instant lastModified = Instant.now();
+
+        StoredObject(byte[] data, Map<String, String> headers) {
+            this.data = data;
+            this.headers = headers;
+        }
+    }
+
+    private final HttpServer server;
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> uploadHeaders = new ConcurrentHashMap<>();
+    private final Map<String, SortedMap<Integer, byte[]>> uploadParts = new ConcurrentHashMap<>();
+    private final Set<String> abortedUploads = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, AtomicInteger> partFailures = new ConcurrentHashMap<>();
+    private final AtomicInteger partsUploading = new AtomicInteger();
+    private final AtomicInteger maxPartsUploading = new AtomicInteger();
+    private final AtomicInteger partUploads = new AtomicInteger();
+    private volatile long partDelayMillis;
+    private final Map<Long, AtomicInteger> rangeFailures = new ConcurrentHashMap<>();
+    private final AtomicInteger rangesReading = new AtomicInteger();
+    private final AtomicInteger maxRangesReading = new AtomicInteger();
+    private final AtomicInteger gets = new AtomicInteger();
+    private final AtomicInteger heads = new AtomicInteger();
+    private final AtomicInteger listings = new AtomicInteger();
+    private final AtomicInteger deleteRequests = new AtomicInteger();
+    private final AtomicInteger maxKeysPerDelete = new AtomicInteger();
+    private volatile long rangeDelayMillis;
+
+    public S3StandIn() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            try {
+                handle(exchange);
+            } catch (RuntimeException | InterruptedException e) {
+                respond(exchange, 500, error("InternalError", e.toString()));
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * A client which talks to this server rather than S3, and does not retry failed requests itself.
+     */
+    public AmazonS3 client() {
+        return AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(
+                        "http://localhost:" + server.getAddress().getPort(), "eu-west-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")))
+                .withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0).withUseExpectContinue(false))
+                .withPathStyleAccessEnabled(true)
+                .withChunkedEncodingDisabled(true)
+                .build();
+    }
+
+    public StoredObject getObject(String bucket, String key) {
+        return objects.get("/" + bucket + "/" + key);
+    }
+
+    /**
+     * Stores an object directly, as if it had been put at the given time.
+     */
+    public void putObject(String bucket, String key, byte[] data, Map<String, String> headers, Instant lastModified) {
+        final StoredObject object = new StoredObject(data, headers);
+        object.lastModified = lastModified;
+        objects.put("/" + bucket + "/" + key, object);
+    }
+
+    /**
+     * Fails the given part's next uploads with a server error.
+     */
+    void failPartUploads(int partNumber, int times) {
+        partFailures.put(partNumber, new AtomicInteger(times));
+    }
+
+    void delayPartUploads(long millis) {
+        this.partDelayMillis = millis;
+    }
+
+    /**
+     * Fails the next reads of the range starting at the given offset with a server error.
+     */
+    void failRangeReads(long start, int times) {
+        rangeFailures.put(start, new AtomicInteger(times));
+    }
+
+    void delayRangeReads(long millis) {
+        this.rangeDelayMillis = millis;
+    }
+
+    int getGets() {
+        return gets.get();
+    }
+
+    int getHeads() {
+        return heads.get();
+    }
+
+    int getListings() {
+        return listings.get();
+    }
+
+    int getDeleteRequests() {
+        return deleteRequests.get();
+    }
+
+    int getMaxKeysPerDelete() {
+        return maxKeysPerDelete.get();
+    }
+
+    int getMaxRangesReadingAtOnce() {
+        return maxRangesReading.get();
+    }
+
+    int getPartUploads() {
+        return partUploads.get();
+    }
+
+    int getMaxPartsUploadingAtOnce() {
+        return maxPartsUploading.get();
+    }
+
+    int getUploadsInProgress() {
+        return uploadParts.size();
+    }
+
+    int getAbortedUploads() {
+        return abortedUploads.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException, InterruptedException {
+        final String path = exchange.getRequestURI().getPath();
+        final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        final String method = exchange.getRequestMethod();
+        final byte[] body = StreamUtils.copyToByteArray(exchange.getRequestBody());
+
+        if ("GET".equals(method) && keyOf(path).isEmpty()) {
+            listings.incrementAndGet();
+            listObjects(exchange, bucketOf(path), query);
+        } else if ("POST".equals(method) && query.containsKey("delete")) {
+            final Matcher keys = KEY.matcher(new String(body, UTF_8));
+            int count = 0;
+            while (keys.find()) {
+                objects.remove("/" + bucketOf(path) + "/" + keys.group(1));
+                count++;
+            }
+            deleteRequests.incrementAndGet();
+            maxKeysPerDelete.accumulateAndGet(count, Math::max);
+            respond(exchange, 200, "<DeleteResult xmlns=\"" + XML_NAMESPACE + "\"></DeleteResult>");
+        } else if ("HEAD".equals(method) && objects.containsKey(path)) {
+            heads.incrementAndGet();
+            final StoredObject object = objects.get(path);
+            object.headers.forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+            exchange.getResponseHeaders().set("ETag", '"' + md5(object.data) + '"');
+            exchange.sendResponseHeaders(200, -1);
+        } else if ("POST".equals(method) && query.containsKey("uploads")) {
+            final String uploadId = UUID.randomUUID().toString();
+            uploadHeaders.put(uploadId, headersToStore(exchange));
+            uploadParts.put(uploadId, new TreeMap<>());
+            respond(exchange, 200, "<InitiateMultipartUploadResult xmlns=\"" + XML_NAMESPACE + "\"><Bucket>" + bucketOf(path)
+                    + "</Bucket><Key>" + keyOf(path) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+        } else if ("PUT".equals(method) && query.containsKey("uploadId")) {
+            uploadPart(exchange, query.get("uploadId"), Integer.parseInt(query.get("partNumber")), body);
+        } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+            final SortedMap<Integer, byte[]> parts = uploadParts.remove(query.get("uploadId"));
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            final Matcher partNumbers = PART_NUMBER.matcher(new String(body, UTF_8));
+            while (partNumbers.find()) {
+                data.write(parts.get(Integer.valueOf(partNumbers.group(1))));
+            }
+            objects.put(path, new StoredObject(data.toByteArray(), uploadHeaders.remove(query.get("uploadId"))));
+            respond(exchange, 200, "<CompleteMultipartUploadResult xmlns=\"" + XML_NAMESPACE + "\"><Bucket>" + bucketOf(path)
+                    + "</Bucket><Key>" + keyOf(path) + "</Key><ETag>\"" + md5(data.toByteArray()) + "-" + parts.size()
+                    + "\"</ETag></CompleteMultipartUploadResult>");
+        } else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+            uploadParts.remove(query.get("uploadId"));
+            uploadHeaders.remove(query.get("uploadId"));
+            abortedUploads.add(query.get("uploadId"));
+            exchange.sendResponseHeaders(204, -1);
+        } else if ("PUT".equals(method)) {
+            objects.put(path, new StoredObject(body, headersToStore(exchange)));
+            exchange.getResponseHeaders().set("ETag", '"' + md5(body) + '"');
+            exchange.sendResponseHeaders(200, -1);
+        } else if ("GET".equals(method) && objects.containsKey(path)) {
+            gets.incrementAndGet();
+            getObject(exchange, objects.get(path));
+        } else {
+            respond(exchange, 404, error("NoSuchKey", path));
+        }
+    }
+
+    private void listObjects(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+        final String prefix = "/" + bucket + "/" + query.getOrDefault("prefix", "");
+        final String after = "/" + bucket + "/" + query.getOrDefault("marker", "");
+        final int maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+        final List<String> keys = objects.keySet().stream()
+                .filter(key -> key.startsWith(prefix) && key.compareTo(after) > 0)
+                .sorted()
+                .collect(toList());
+        // S3 echoes the request, which the SDK uses to ask for the next page
+        final StringBuilder xml = new StringBuilder("<ListBucketResult xmlns=\"" + XML_NAMESPACE + "\"><Name>" + bucket + "</Name>")
+                .append("<Prefix>").append(query.getOrDefault("prefix", "")).append("</Prefix>")
+                .append("<Marker>").append(query.getOrDefault("marker", "")).append("</Marker>")
+                .append("<MaxKeys>").append(maxKeys).append("</MaxKeys>")
+                .append("<IsTruncated>").append(keys.size() > maxKeys).append("</IsTruncated>");
+        for (String key : keys.subList(0, Math.min(maxKeys, keys.size()))) {
+            final StoredObject object = objects.get(key);
+            xml.append("<Contents><Key>").append(keyOf(key)).append("</Key><LastModified>").append(LAST_MODIFIED_FORMAT.format(object.lastModified))
+                    .append("</LastModified><ETag>&quot;").append(md5(object.data)).append("&quot;</ETag><Size>")
+                    .append(object.data.length).append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+        }
+        respond(exchange, 200, xml.append("</ListBucketResult>").toString());
+    }
+
+    private void getObject(HttpExchange exchange, StoredObject object) throws IOException, InterruptedException {
+        final String eTag = '"' + md5(object.data) + '"';
+        final String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.replace("\"", "").equals(md5(object.data))) {
+            exchange.sendResponseHeaders(412, -1);
+            return;
+        }
+        object.headers.forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+        exchange.getResponseHeaders().set("ETag", eTag);
+
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range == null) {
+            send(exchange, 200, object.data, 0, object.data.length);
+            return;
+        }
+        final Matcher bounds = RANGE.matcher(range);
+        if (!bounds.matches() || Long.parseLong(bounds.group(1)) >= object.data.length) {
+            respond(exchange, 416, error("InvalidRange", range));
+            return;
+        }
+        final int start = Integer.parseInt(bounds.group(1));
+        final int end = (int) Math.min(Long.parseLong(bounds.group(2)), object.data.length - 1);
+        final int reading = rangesReading.incrementAndGet();
+        maxRangesReading.accumulateAndGet(reading, Math::max);
+        try {
+            Thread.sleep(rangeDelayMillis);
+            final AtomicInteger failures = rangeFailures.get((long) start);
+            if (failures != null && failures.getAndDecrement() > 0) {
+                respond(exchange, 500, error("InternalError", "Failing range from " + start));
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + object.data.length);
+            send(exchange, 206, object.data, start, end - start + 1);
+        } finally {
+            rangesReading.decrementAndGet();
+        }
+    }
+
+    private void uploadPart(HttpExchange exchange, String uploadId, int partNumber, byte[] body) throws IOException, InterruptedException {
+        final int uploading = partsUploading.incrementAndGet();
+        maxPartsUploading.accumulateAndGet(uploading, Math::max);
+        try {
+            Thread.sleep(partDelayMillis);
+            final AtomicInteger failures = partFailures.get(partNumber);
+            if (failures != null && failures.getAndDecrement() > 0) {
+                respond(exchange, 500, error("InternalError", "Failing part " + partNumber));
+                return;
+            }
+            final SortedMap<Integer, byte[]> parts = uploadParts.get(uploadId);
+            if (parts == null) {
+                respond(exchange, 404, error("NoSuchUpload", uploadId));
+                return;
+            }
+            synchronized (parts) {
+                parts.put(partNumber, body);
+            }
+            partUploads.incrementAndGet();
+            exchange.getResponseHeaders().set("ETag", '"' + md5(body) + '"');
+            exchange.sendResponseHeaders(200, -1);
+        } finally {
+            partsUploading.decrementAndGet();
+        }
+    }
+
+    private static Map<String, String> headersToStore(HttpExchange exchange) {
+        final Map<String, String> headers = new HashMap<>();
+        exchange.getRequestHeaders().forEach((name, values) -> {
+            final String lowerName = name.toLowerCase();
+            if (lowerName.startsWith("x-amz-meta-") || lowerName.equals("x-amz-acl")
+                    || lowerName.equals("content-type") || lowerName.equals("content-disposition")) {
+                headers.put(lowerName, values.get(0));
+            }
+        });
+        return headers;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        final Map<String, String> query = new HashMap<>();
+        if (rawQuery != null) {
+            for (String parameter : rawQuery.split("&")) {
+                final int equals = parameter.indexOf('=');
+                query.put(URLDecoder.decode(equals < 0 ? parameter : parameter.substring(0, equals), "UTF-8"),
+                        equals < 0 ? "" : URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static String bucketOf(String path) {
+        final int slash = path.indexOf('/', 1);
+        return slash < 0 ? path.substring(1) : path.substring(1, slash);
+    }
+
+    private static String keyOf(String path) {
+        final int slash = path.indexOf('/', 1);
+        return slash < 0 ? "" : path.substring(slash + 1);
+    }
+
+    private static String error(String code, String message) {
+        return "<Error><Code>" + code + "</Code><Message>" + message + "</Message></Error>";
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] data, int offset, int length) throws IOException {
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        if (length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(data, offset, length);
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String xml) throws IOException {
+        final byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
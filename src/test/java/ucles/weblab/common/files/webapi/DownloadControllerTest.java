@@ -5,10 +5,14 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.URI;
 import java.time.Clock;
 import java.time.Duration;
@@ -16,6 +20,9 @@ import java.time.Instant;
 import java.util.Optional;
 import java.util.UUID;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.util.StreamUtils;
 import ucles.weblab.common.files.blob.api.BlobStoreResult;
 import ucles.weblab.common.files.domain.SecureFile;
 import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
@@ -30,6 +37,10 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static ucles.weblab.common.test.webapi.WebTestSupport.setUpRequestContext;
 
 /**
@@ -52,7 +63,7 @@ public class DownloadControllerTest {
     }
 
     @Test
-    public void testDownloadCacheWorks() {
+    public void testDownloadCacheWorks() throws IOException {
         byte[] content = new byte[] { 1, 5, 3, 8, 1, 7, 3, 9, 4, 6, 7 };
         MediaType contentType = MediaType.IMAGE_GIF;
         String filename = "nonsense picture.gif";
@@ -69,21 +80,51 @@ public class DownloadControllerTest {
 
         final URI uri = downloadController.generateDownload(id, filename, secureFileEntity);
         assertTrue("The URI should be set", uri.toString().startsWith("http://localhost/downloads/"));
-        final ResponseEntity<byte[]> response = downloadController.fetchPreviouslyGeneratedDownload("collection", id.toString(), filename);
+        final ResponseEntity<Resource> response = downloadController.fetchPreviouslyGeneratedDownload("collection", id.toString(), filename, null);
         assertEquals("Should return 200 OK", HttpStatus.OK, response.getStatusCode());
 
         //wont work with s3 implementation as there is no content passed
-        assertArrayEquals("Expect content returned", content, response.getBody());
+        assertArrayEquals("Expect content returned", content, StreamUtils.copyToByteArray(response.getBody().getInputStream()));
         assertFalse("Must not have no-cache", response.getHeaders().getCacheControl().contains("no-cache"));
         assertFalse("Must not have no-store", response.getHeaders().getCacheControl().contains("no-store"));
         assertEquals("Expect content type returned", contentType, response.getHeaders().getContentType());
 
         //an assert on the content length will not work with an external link
-        assertEquals("Expect content length returned", (long) content.length, response.getHeaders().getContentLength());
+        assertEquals("Expect content length returned", (long) content.length, response.getBody().contentLength());
         assertThat("Expect filename return", response.getHeaders().get(HttpHeaders.CONTENT_DISPOSITION), contains(containsString(filename)));
         assertThat("Expect filename to be quoted", response.getHeaders().get(HttpHeaders.CONTENT_DISPOSITION), contains(containsString('"' + filename + '"')));
     }
 
+    @Test
+    public void testRangeRequestReturnsPartialContent() throws Exception {
+        byte[] content = new byte[] { 1, 5, 3, 8, 1, 7, 3, 9, 4, 6, 7 };
+        String filename = "nonsense picture.gif";
+        UUID id = UUID.randomUUID();
+        Instant pt = Instant.now().plus(Duration.ofSeconds(120));
+        PendingDownload pd = new PendingDownload(MediaType.IMAGE_GIF, filename, new ByteArrayResource(content), content.length, pt, null);
+        inMemoryCache.put(id, "collection", pd);
+
+        MockMvc mockMvc = MockMvcBuilders.standaloneSetup(downloadController).build();
+        mockMvc.perform(get("/downloads/collection/{id}/{filename}/", id, filename).header(HttpHeaders.RANGE, "bytes=2-5"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 2-5/" + content.length))
+                .andExpect(content().bytes(new byte[] { 3, 8, 1, 7 }));
+    }
+
+    @Test
+    public void testDeferredDownloadOfDeletedFileReturnsNotFound() {
+        String filename = "nonsense picture.gif";
+        UUID id = UUID.randomUUID();
+        Instant pt = Instant.now().plus(Duration.ofSeconds(120));
+        PendingDownload pd = PendingDownload.deferred(MediaType.IMAGE_GIF, new StoredFileReference(filename, null, false), () -> {
+            throw new FileNotFoundException(filename);
+        }, 11, pt, null);
+        inMemoryCache.put(id, "collection", pd);
+
+        final ResponseEntity<Resource> response = downloadController.fetchPreviouslyGeneratedDownload("collection", id.toString(), filename, null);
+        assertEquals("Should return 404 Not Found", HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
+
     /**
      * Creates a SecureFile entity with the details of the mock multipart file provided.
      *
@@ -0,0 +1,125 @@
+package ucles.weblab.common.files.webapi;
+
+import ch.qos.logback.classic.Level;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+import org.springframework.hateoas.ResourceSupport;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import ucles.weblab.common.files.domain.FilesBuilders;
+import ucles.weblab.common.files.domain.FilesFactory;
+import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
+import ucles.weblab.common.files.domain.SecureFileCollectionRepository;
+import ucles.weblab.common.files.domain.SecureFileEntity;
+import ucles.weblab.common.files.domain.SecureFileMetadataRepository;
+import ucles.weblab.common.files.domain.SecureFileRepository;
+import ucles.weblab.common.files.webapi.converter.FileCollectionResourceAssembler;
+import ucles.weblab.common.files.webapi.converter.FileMetadataResourceAssembler;
+
+import java.net.URI;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Throughput of download link generation, in requests per second, as the number of client threads grows. Every
+ * request is for a file not yet in the download cache, and the repository takes five milliseconds to find each file,
+ * so throughput should scale with the thread count unless requests for different files serialise each other.
+ * Run with {@code mvn -P benchmark test-compile exec:exec -Dbenchmark=FileControllerDownloadLinkBenchmark}.
+ *
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FileControllerDownloadLinkBenchmark {
+    private static final String BUCKET = "benchmark";
+    private static final long REPOSITORY_LATENCY_MICROS = 5000;
+
+    private final AtomicLong files = new AtomicLong();
+    private FileController fileController;
+
+    /**
+     * Download URLs are built from the current request, which each benchmark thread needs its own copy of.
+     */
+    @State(Scope.Thread)
+    public static class CurrentRequest {
+        @Setup
+        public void setUp() {
+            RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(
+                    MockMvcRequestBuilders.post("http://example.com/").buildRequest(new MockServletContext())));
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(FileController.class)).setLevel(Level.WARN);
+
+        final SecureFileCollectionEntity collection = mock(SecureFileCollectionEntity.class, withSettings().stubOnly());
+        when(collection.getBucket()).thenReturn(BUCKET);
+        final SecureFileCollectionRepository collectionRepository = mock(SecureFileCollectionRepository.class, withSettings().stubOnly());
+        when(collectionRepository.findOneByBucket(BUCKET)).thenReturn(collection);
+
+        final SecureFileRepository fileRepository = mock(SecureFileRepository.class, withSettings().stubOnly());
+        when(fileRepository.findOneByCollectionAndFilename(any(), anyString())).thenAnswer(invocation -> {
+            TimeUnit.MICROSECONDS.sleep(REPOSITORY_LATENCY_MICROS);
+            final SecureFileEntity file = mock(SecureFileEntity.class, withSettings().stubOnly());
+            when(file.getFilename()).thenReturn(invocation.getArgument(1));
+            when(file.getContentType()).thenReturn("application/octet-stream");
+            when(file.getPlainData()).thenReturn(new byte[1024]);
+            return Optional.of(file);
+        });
+
+        final DownloadController downloadController = mock(DownloadController.class, withSettings().stubOnly());
+        when(downloadController.generateDownload(any(), any(), any())).thenReturn(URI.create("urn:benchmark"));
+
+        final FileDownloadCacheInMemory downloadCache = new FileDownloadCacheInMemory();
+        downloadCache.configureCacheExpiry(3600);
+        downloadCache.configureMaxBytes(1024 * 1024);
+
+        final FilesBuilders filesBuilders = new FilesBuilders();
+        fileController = new FileController(mock(FilesFactory.class), collectionRepository, fileRepository,
+                mock(SecureFileMetadataRepository.class), mock(FileMetadataResourceAssembler.class),
+                mock(FileCollectionResourceAssembler.class), downloadController,
+                filesBuilders.secureFileCollectionBuilder(), filesBuilders.secureFileBuilder(), downloadCache);
+    }
+
+    private ResponseEntity<ResourceSupport> generateDownloadLinkForNewFile() {
+        return fileController.generateDownloadLink(BUCKET, "file-" + files.incrementAndGet() + ".bin");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ResponseEntity<ResourceSupport> oneThread(CurrentRequest request) {
+        return generateDownloadLinkForNewFile();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ResponseEntity<ResourceSupport> fourThreads(CurrentRequest request) {
+        return generateDownloadLinkForNewFile();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public ResponseEntity<ResourceSupport> sixteenThreads(CurrentRequest request) {
+        return generateDownloadLinkForNewFile();
+    }
+}
@@ -10,13 +10,18 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.data.domain.Pageable;
 import org.springframework.hateoas.Link;
 import org.springframework.hateoas.ResourceSupport;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.StreamUtils;
+import ucles.weblab.common.files.domain.SecureFileMetadataEntity;
 import ucles.weblab.common.files.domain.SecureFileMetadataRepository;
+import ucles.weblab.common.files.domain.SecureFileMetadataUpdate;
 import ucles.weblab.common.webapi.exception.ResourceNotFoundException;
 import ucles.weblab.common.files.domain.FilesBuilders;
 import ucles.weblab.common.files.domain.FilesFactory;
@@ -40,10 +45,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.slf4j.Logger;
@@ -55,6 +63,8 @@ import org.springframework.web.context.request.RequestAttributes;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
 
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -135,7 +145,7 @@ public class FileControllerTest {
         assertEquals("Should use content type", file.getContentType(), secureFileCaptor.getValue().getContentType());
         assertEquals("Should use length", file.getSize(), secureFileCaptor.getValue().getLength());
         assertEquals("Should use notes", notes, secureFileCaptor.getValue().getNotes());
-        assertArrayEquals("Should use data", file.getBytes(), secureFileCaptor.getValue().getPlainData());
+        assertArrayEquals("Should stream data", file.getBytes(), StreamUtils.copyToByteArray(secureFileCaptor.getValue().getPlainDataSource().getInputStream()));
         assertEquals("Should return 201 Created", HttpStatus.CREATED, result.getStatusCode());
         assertNotNull("Should return a Location", result.getHeaders().getLocation());
         assertEquals("Should return the resource", resource, result.getBody());
@@ -216,14 +226,40 @@ public class FileControllerTest {
         when(fileMetadataResourceAssembler.toResource(same(file1))).thenReturn(resource1);
         when(fileMetadataResourceAssembler.toResource(same(file2))).thenReturn(resource2);
 
-        final ResponseEntity<List<FileMetadataResource>> result = fileController.listFilesInBucket(bucketName);
+        final ResponseEntity<List<FileMetadataResource>> result = fileController.listFilesInBucket(bucketName, null, null);
         assertThat("Should return the two expected files", result.getBody(), containsInAnyOrder(resource1, resource2));
     }
 
+    @Test
+    public void testFetchingPageOfFiles() {
+        final String bucketName = "bucket1";
+        SecureFileCollectionEntity collection = mockSecureFileCollection("Shaun", Optional.of(Instant.now()));
+        SecureFileEntity file3 = mock(SecureFileEntity.class);
+        FileMetadataResource resource3 = new FileMetadataResource("file3", "text/pdf", 4214533L, null, Instant.now());
+        final ArgumentCaptor<Pageable> pageable = ArgumentCaptor.forClass(Pageable.class);
+
+        when(mockSecureFileCollectionRepository.findOneByBucket(bucketName)).thenReturn(collection);
+        when(mockSecureFileMetadataRepository.findAllByCollection(same(collection), pageable.capture())).thenReturn((List) Collections.singletonList(file3));
+        when(fileMetadataResourceAssembler.toResource(same(file3))).thenReturn(resource3);
+
+        final ResponseEntity<List<FileMetadataResource>> result = fileController.listFilesInBucket(bucketName, 1, 2);
+        assertThat("Should return the page of files", result.getBody(), contains(resource3));
+        assertEquals("Should ask for the second page", 2, pageable.getValue().getOffset());
+        assertEquals("Should ask for pages of two", 2, pageable.getValue().getPageSize());
+        assertNotNull("Should sort by filename", pageable.getValue().getSort().getOrderFor("filename"));
+    }
+
+    @Test
+    public void testFetchingPageOfFilesWithoutSizeReturnsBadRequest() {
+        final ResponseEntity<List<FileMetadataResource>> result = fileController.listFilesInBucket("bucket1", 1, null);
+
+        assertEquals("Should return 400 Bad Request", HttpStatus.BAD_REQUEST, result.getStatusCode());
+    }
+
     @Test
     public void testFetchingListOfFilesForNonExistentCollectionReturnsNotFound() {
         String bucketName = "golden";
-        final ResponseEntity<List<FileMetadataResource>> result = fileController.listFilesInBucket(bucketName);
+        final ResponseEntity<List<FileMetadataResource>> result = fileController.listFilesInBucket(bucketName, null, null);
 
         assertEquals("Should return 404 Not Found", HttpStatus.NOT_FOUND, result.getStatusCode());
         verify(mockSecureFileMetadataRepository, never()).findAllByCollection(any());
@@ -276,100 +312,90 @@ public class FileControllerTest {
         final String bucketName = "Agenda";
         final String filename = "Apologies";
         final SecureFileCollectionEntity collection = mockSecureFileCollection("Shaun", Optional.of(Instant.now()));
-        final SecureFileEntity file = mock(SecureFileEntity.class);
 
         when(mockSecureFileCollectionRepository.findOneByBucket(bucketName)).thenReturn(collection);
-        when(mockSecureFileRepository.findOneByCollectionAndFilename(collection, filename)).thenReturn((Optional) Optional.of(file));
+        when(mockSecureFileRepository.deleteByCollectionAndFilename(collection, filename)).thenReturn(1);
 
         fileController.deleteUploadedFile(bucketName, filename);
-        verify(mockSecureFileRepository, times(1)).delete(same(file));
+        verify(mockSecureFileRepository, times(1)).deleteByCollectionAndFilename(collection, filename);
+        verify(mockSecureFileRepository, never()).findOneByCollectionAndFilename(any(), any());
     }
 
     @Test
     public void testUpdatingFileContentType() {
-        final String bucketName = "Agenda";
-        final String filename = "Apologies";
-        final SecureFileCollectionEntity collection = mockSecureFileCollection("Shaun", Optional.of(Instant.now()));
-        final SecureFileEntity file = mock(SecureFileEntity.class);
-        final FileMetadataResource update = new FileMetadataResource(null, "text/pdf", 0L, null, Instant.now());
-        final FileMetadataResource resource = new FileMetadataResource(filename, "text/pdf", 42164233L, null, Instant.now());
-
-        when(mockSecureFileCollectionRepository.findOneByBucket(bucketName)).thenReturn(collection);
-        when(mockSecureFileRepository.findOneByCollectionAndFilename(collection, filename)).thenReturn((Optional) Optional.of(file));
-        when(mockSecureFileRepository.save(same(file))).thenReturn(file);
-        when(fileMetadataResourceAssembler.toResource(same(file))).thenReturn(resource);
+        final SecureFileMetadataUpdate changes = updateFileMetadata(new FileMetadataResource(null, "text/pdf", 0L, null, Instant.now()));
 
-        final FileMetadataResource result = fileController.updateFileMetadata(bucketName, filename, update);
-
-        verify(file).setContentType("text/pdf");
-        verifyNoMoreInteractions(file);
-        assertEquals("Should return the resource", resource, result);
+        assertEquals("Should leave filename", Optional.empty(), changes.getFilename());
+        assertEquals("Should change content type", Optional.of("text/pdf"), changes.getContentType());
+        assertEquals("Should leave notes", Optional.empty(), changes.getNotes());
     }
 
     @Test
     public void testUpdatingFilename() {
-        final String bucketName = "Agenda";
-        final String filename = "Apologies";
-        final SecureFileCollectionEntity collection = mockSecureFileCollection("Shaun", Optional.of(Instant.now()));
-        final SecureFileEntity file = mock(SecureFileEntity.class);
-        final FileMetadataResource update = new FileMetadataResource(filename, null, 0L, null, Instant.now());
-        final FileMetadataResource resource = new FileMetadataResource(filename, "text/pdf", 42164233L, null, Instant.now());
+        final SecureFileMetadataUpdate changes = updateFileMetadata(new FileMetadataResource("Minutes", null, 0L, null, Instant.now()));
 
-        when(mockSecureFileCollectionRepository.findOneByBucket(bucketName)).thenReturn(collection);
-        when(mockSecureFileRepository.findOneByCollectionAndFilename(collection, filename)).thenReturn((Optional) Optional.of(file));
-        when(mockSecureFileRepository.save(same(file))).thenReturn(file);
-        when(fileMetadataResourceAssembler.toResource(same(file))).thenReturn(resource);
+        assertEquals("Should change filename", Optional.of("Minutes"), changes.getFilename());
+        assertEquals("Should leave content type", Optional.empty(), changes.getContentType());
+        assertEquals("Should leave notes", Optional.empty(), changes.getNotes());
+    }
 
-        final FileMetadataResource result = fileController.updateFileMetadata(bucketName, filename, update);
+    @Test
+    public void testUpdatingNotes() {
+        final SecureFileMetadataUpdate changes = updateFileMetadata(new FileMetadataResource(null, null, 0L, "waste of time", Instant.now()));
 
-        verify(file).setFilename(filename);
-        verifyNoMoreInteractions(file);
-        assertEquals("Should return the resource", resource, result);
+        assertEquals("Should leave filename", Optional.empty(), changes.getFilename());
+        assertEquals("Should leave content type", Optional.empty(), changes.getContentType());
+        assertEquals("Should change notes", Optional.of("waste of time"), changes.getNotes());
     }
 
     @Test
-    public void testUpdatingNotes() {
+    public void testUpdatingAll() {
+        final SecureFileMetadataUpdate changes = updateFileMetadata(new FileMetadataResource("Minutes", "text/pdf", 0L, "waste of time", Instant.now()));
+
+        assertEquals("Should change filename", Optional.of("Minutes"), changes.getFilename());
+        assertEquals("Should change content type", Optional.of("text/pdf"), changes.getContentType());
+        assertEquals("Should change notes", Optional.of("waste of time"), changes.getNotes());
+    }
+
+    /**
+     * Updates a file's metadata and checks that it was changed without loading the file, and that the updated
+     * metadata was returned.
+     *
+     * @return the changes made
+     */
+    private SecureFileMetadataUpdate updateFileMetadata(FileMetadataResource update) {
         final String bucketName = "Agenda";
         final String filename = "Apologies";
+        final String updatedFilename = update.getFilename() != null ? update.getFilename() : filename;
         final SecureFileCollectionEntity collection = mockSecureFileCollection("Shaun", Optional.of(Instant.now()));
-        final SecureFileEntity file = mock(SecureFileEntity.class);
-        final FileMetadataResource update = new FileMetadataResource(null, null, 0L, "waste of time", Instant.now());
-        final FileMetadataResource resource = new FileMetadataResource(filename, "text/pdf", 42164233L, null, Instant.now());
+        final SecureFileMetadataEntity updatedFile = mock(SecureFileMetadataEntity.class);
+        final FileMetadataResource resource = new FileMetadataResource(updatedFilename, "text/pdf", 42164233L, null, Instant.now());
+        final ArgumentCaptor<SecureFileMetadataUpdate> changes = ArgumentCaptor.forClass(SecureFileMetadataUpdate.class);
 
         when(mockSecureFileCollectionRepository.findOneByBucket(bucketName)).thenReturn(collection);
-        when(mockSecureFileRepository.findOneByCollectionAndFilename(collection, filename)).thenReturn((Optional) Optional.of(file));
-        when(mockSecureFileRepository.save(same(file))).thenReturn(file);
-        when(fileMetadataResourceAssembler.toResource(same(file))).thenReturn(resource);
+        when(mockSecureFileRepository.updateMetadata(same(collection), eq(filename), changes.capture())).thenReturn(1);
+        when(mockSecureFileMetadataRepository.findOneByCollectionAndFilename(collection, updatedFilename)).thenReturn((Optional) Optional.of(updatedFile));
+        when(fileMetadataResourceAssembler.toResource(same(updatedFile))).thenReturn(resource);
 
         final FileMetadataResource result = fileController.updateFileMetadata(bucketName, filename, update);
 
-        verify(file).setNotes("waste of time");
-        verifyNoMoreInteractions(file);
+        verify(mockSecureFileRepository, never()).findOneByCollectionAndFilename(any(), any());
+        verify(mockSecureFileRepository, never()).save(any());
         assertEquals("Should return the resource", resource, result);
+        return changes.getValue();
     }
 
-    @Test
-    public void testUpdatingAll() {
+    @Test(expected = ResourceNotFoundException.class)
+    public void testUpdatingNonExistentFileInValidCollection() {
         final String bucketName = "Agenda";
         final String filename = "Apologies";
         final SecureFileCollectionEntity collection = mockSecureFileCollection("Shaun", Optional.of(Instant.now()));
-        final SecureFileEntity file = mock(SecureFileEntity.class);
-        final SecureFileEntity savedFile = mock(SecureFileEntity.class);
-        final FileMetadataResource update = new FileMetadataResource(filename, "text/pdf", 0L, "waste of time", Instant.now());
-        final FileMetadataResource resource = new FileMetadataResource(filename, "text/pdf", 42164233L, null, Instant.now());
+        final FileMetadataResource update = new FileMetadataResource(null, null, 0L, "waste of time", Instant.now());
 
         when(mockSecureFileCollectionRepository.findOneByBucket(bucketName)).thenReturn(collection);
-        when(mockSecureFileRepository.findOneByCollectionAndFilename(collection, filename)).thenReturn((Optional) Optional.of(file));
-        when(mockSecureFileRepository.save(same(file))).thenReturn(savedFile);
-        when(fileMetadataResourceAssembler.toResource(same(savedFile))).thenReturn(resource);
-
-        final FileMetadataResource result = fileController.updateFileMetadata(bucketName, filename, update);
+        when(mockSecureFileRepository.updateMetadata(same(collection), eq(filename), any())).thenReturn(0);
 
-        verify(file).setContentType("text/pdf");
-        verify(file).setFilename(filename);
-        verify(file).setNotes("waste of time");
-        verifyNoMoreInteractions(file);
-        assertEquals("Should return the resource", resource, result);
+        fileController.updateFileMetadata(bucketName, filename, update);
     }
 
     @Test(expected = ResourceNotFoundException.class)
@@ -380,7 +406,7 @@ public class FileControllerTest {
         try {
             fileController.deleteUploadedFile(bucketName, filename);
         } finally {
-            verify(mockSecureFileRepository, never()).delete(any());
+            verify(mockSecureFileRepository, never()).deleteByCollectionAndFilename(any(), any());
         }
     }
 
@@ -391,13 +417,9 @@ public class FileControllerTest {
 
         SecureFileCollectionEntity collection = mockSecureFileCollection("TICKET COLLECTION", Optional.of(Instant.now()));
         when(mockSecureFileCollectionRepository.findOneByBucket(bucketName)).thenReturn(collection);
-        when(mockSecureFileRepository.findOneByCollectionAndFilename(any(), any())).thenReturn(Optional.empty());
+        when(mockSecureFileRepository.deleteByCollectionAndFilename(any(), any())).thenReturn(0);
 
-        try {
-            fileController.deleteUploadedFile(bucketName, filename);
-        } finally {
-            verify(mockSecureFileRepository, never()).delete(any());
-        }
+        fileController.deleteUploadedFile(bucketName, filename);
     }
 
     @Test
@@ -443,7 +465,6 @@ public class FileControllerTest {
         final SecureFileEntity file = mock(SecureFileEntity.class);
         when(file.getFilename()).thenReturn(filename);
         when(file.getContentType()).thenReturn("text/pdf");
-        when(file.getPlainData()).thenReturn(new byte[0]);
         final URI downloadUri = URI.create("urn:applesauce");
 
         when(mockSecureFileCollectionRepository.findOneByBucket(bucketName)).thenReturn(collection);
@@ -455,6 +476,33 @@ public class FileControllerTest {
         assertEquals("Should return 201 Created", HttpStatus.CREATED, result.getStatusCode());
         assertEquals("Should return a Location", result.getHeaders().getLocation(), downloadUri);
         assertEquals("Should return a resource with self link", downloadUri, URI.create(result.getBody().getId().getHref()));
+        verify(file, never()).getPlainData();
+        verify(file, never()).getPlainDataSource();
+    }
+
+    @Test
+    public void testGeneratedDownloadReadsFileOnlyWhenFetched() throws IOException {
+        final String filename = "Timmy";
+        final byte[] plainData = { 1, 2, 3 };
+        final SecureFileCollectionEntity collection = mockSecureFileCollection("Shaun", Optional.of(Instant.now()));
+        final String bucketName = collection.getBucket();
+        final SecureFileEntity file = mock(SecureFileEntity.class);
+        when(file.getFilename()).thenReturn(filename);
+        when(file.getContentType()).thenReturn("text/pdf");
+        when(file.getLength()).thenReturn((long) plainData.length);
+        when(file.getPlainDataSource()).thenReturn(new ByteArrayResource(plainData));
+
+        when(mockSecureFileCollectionRepository.findOneByBucket(bucketName)).thenReturn(collection);
+        when(mockSecureFileRepository.findOneByCollectionAndFilename(collection, filename)).thenReturn((Optional) Optional.of(file));
+        when(downloadController.generateDownload(any(), any(), any())).thenReturn(URI.create("urn:applesauce"));
+
+        fileController.generateDownloadLink(bucketName, filename);
+        verify(file, never()).getPlainDataSource();
+
+        final PendingDownload pendingDownload = fileDownloadCacheInMemory.get(UUID.randomUUID(), bucketName, filename).get();
+        assertEquals("Should know length without reading", plainData.length, pendingDownload.getContentLength());
+        assertArrayEquals("Should read file when fetched", plainData, StreamUtils.copyToByteArray(pendingDownload.openContent()));
+        verify(mockSecureFileRepository, times(2)).findOneByCollectionAndFilename(collection, filename);
     }
 
     @Test
@@ -491,7 +539,6 @@ public class FileControllerTest {
         final SecureFileEntity file = mock(SecureFileEntity.class);
         when(file.getFilename()).thenReturn(filename);
         when(file.getContentType()).thenReturn("text/pdf");
-        when(file.getPlainData()).thenReturn(new byte[0]);
         final URI downloadUri = URI.create("urn:some-test-url");
 
         //mock the request in this unit test since it builds URLs based on rest controller.
@@ -525,6 +572,41 @@ public class FileControllerTest {
 
     }
 
+    @Test
+    public void testConcurrentFirstRequestsToDifferentFilesLoadInParallel() throws Exception {
+        final String collectionName = "My-Collection";
+        final SecureFileCollectionEntity collection = mockSecureFileCollection(collectionName, Optional.of(Instant.now()));
+        final String bucketName = collection.getBucket();
+        final List<String> filenames = Arrays.asList("first-test-filename", "second-test-filename");
+        final CyclicBarrier bothLoading = new CyclicBarrier(filenames.size());
+
+        MockHttpServletRequest request = MockMvcRequestBuilders.get("http://example.com/").buildRequest(new MockServletContext());
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request), true);
+
+        when(mockSecureFileCollectionRepository.findOneByBucket(bucketName)).thenReturn(collection);
+        for (String filename : filenames) {
+            final SecureFileEntity file = mock(SecureFileEntity.class);
+            when(file.getFilename()).thenReturn(filename);
+            when(file.getContentType()).thenReturn("text/pdf");
+            // Each load waits for the other to start, so would time out if the loads were serialised
+            when(mockSecureFileRepository.findOneByCollectionAndFilename(collection, filename)).thenAnswer(invocation -> {
+                bothLoading.await(10, TimeUnit.SECONDS);
+                return Optional.of(file);
+            });
+        }
+        when(downloadController.generateDownload(any(), any(), any())).thenReturn(URI.create("urn:some-test-url"));
+
+        ExecutorService executorService = Executors.newFixedThreadPool(filenames.size());
+        List<Future<ResponseEntity<ResourceSupport>>> futures = executorService.invokeAll(filenames.stream()
+                .map(filename -> (Callable<ResponseEntity<ResourceSupport>>) () -> fileController.generateDownloadLink(bucketName, filename))
+                .collect(toList()));
+        for (Future<ResponseEntity<ResourceSupport>> future : futures) {
+            assertEquals(HttpStatus.CREATED, future.get().getStatusCode());
+        }
+        executorService.shutdown();
+        verify(this.downloadController, times(filenames.size())).generateDownload(any(), anyString(), any());
+    }
+
     private static SecureFileEntity mockSecureFile(MockMultipartFile file) {
         final SecureFileEntity fileEntity = mock(SecureFileEntity.class);
         return fileEntity;
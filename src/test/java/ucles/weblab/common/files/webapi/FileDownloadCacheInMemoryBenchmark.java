@@ -0,0 +1,71 @@
+package ucles.weblab.common.files.webapi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.MediaType;
+import ucles.weblab.common.files.blob.api.BlobStoreResult;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Throughput of {@link FileDownloadCacheInMemory} lookups and insertions, in operations per second, with readers and
+ * writers contending for the same cache.
+ *
+ * @since 18/10/26
+ */
+@State(Scope.Group)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FileDownloadCacheInMemoryBenchmark {
+    private static final String COLLECTION = "benchmark";
+
+    @Param({ "100", "10000" })
+    private int entries;
+
+    private FileDownloadCacheInMemory cache;
+    private UUID[] ids;
+    private PendingDownload[] downloads;
+
+    @Setup
+    public void setUp() {
+        cache = new FileDownloadCacheInMemory();
+        cache.configureCacheExpiry(3600);
+        ids = new UUID[entries];
+        downloads = new PendingDownload[entries];
+        final Instant purgeTime = Instant.now().plus(1, ChronoUnit.DAYS);
+        for (int i = 0; i < entries; i++) {
+            ids[i] = UUID.randomUUID();
+            downloads[i] = new PendingDownload(MediaType.APPLICATION_OCTET_STREAM, "file " + i + ".bin", new byte[1024], purgeTime, null);
+            cache.put(ids[i], COLLECTION, downloads[i]);
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(6)
+    public Optional<PendingDownload> get() {
+        final int i = ThreadLocalRandom.current().nextInt(entries);
+        return cache.get(ids[i], COLLECTION, downloads[i].getFilename());
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public Optional<BlobStoreResult> put() {
+        final int i = ThreadLocalRandom.current().nextInt(entries);
+        return cache.put(ids[i], COLLECTION, downloads[i]);
+    }
+}
@@ -0,0 +1,218 @@
+package ucles.weblab.common.files.webapi;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import ucles.weblab.common.files.domain.SecureFileMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @since 18/10/26
+ */
+public class FileDownloadCacheInMemoryTest {
+    private static final String FILENAME = "nonsense picture.gif";
+    private final Instant now = Instant.now();
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FileDownloadCacheInMemory cache;
+
+    @Before
+    public void setUp() {
+        cache = new FileDownloadCacheInMemory();
+        cache.configureCacheExpiry(30);
+        cache.configureClock(Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    private PendingDownload pendingDownload(String filename, Instant purgeTime) {
+        return new PendingDownload(MediaType.IMAGE_GIF, filename, new byte[] { 1, 2, 3 }, purgeTime, null);
+    }
+
+    @Test
+    public void testLookupByIdAndByFilename() {
+        final UUID id = UUID.randomUUID();
+        final PendingDownload pendingDownload = pendingDownload(FILENAME, now.plusSeconds(30));
+        cache.put(id, "collection", pendingDownload);
+        cache.put(UUID.randomUUID(), "other", pendingDownload("other.gif", now.plusSeconds(30)));
+
+        assertSame("Expect found by ID", pendingDownload, cache.get(id, "collection", FILENAME).get());
+        assertSame("Expect found by filename without ID", pendingDownload, cache.get(UUID.randomUUID(), "collection", FILENAME).get());
+        assertFalse("Expect not found in another collection", cache.get(id, "other", FILENAME).isPresent());
+        assertFalse("Expect not found under a collection name prefix", cache.get(id, "coll", FILENAME).isPresent());
+    }
+
+    @Test
+    public void testMostRecentDownloadIsFoundByFilename() {
+        final PendingDownload first = pendingDownload(FILENAME, now.plusSeconds(30));
+        final PendingDownload second = pendingDownload(FILENAME, now.plusSeconds(60));
+        cache.put(UUID.randomUUID(), "collection", first);
+        cache.put(UUID.randomUUID(), "collection", second);
+
+        assertSame(second, cache.get(UUID.randomUUID(), "collection", FILENAME).get());
+    }
+
+    @Test
+    public void testMostRecentDownloadsOfDifferentFilesDoNotCollide() {
+        final PendingDownload spaced = pendingDownload("my file.txt", now.plusSeconds(30));
+        final PendingDownload underscored = pendingDownload("my_file.txt", now.plusSeconds(30));
+        final PendingDownload split = pendingDownload("b_c.txt", now.plusSeconds(30));
+        cache.put(UUID.randomUUID(), "collection", spaced);
+        cache.put(UUID.randomUUID(), "collection", underscored);
+        cache.put(UUID.randomUUID(), "a", split);
+
+        assertSame(spaced, cache.get(UUID.randomUUID(), "collection", "my file.txt").get());
+        assertSame(underscored, cache.get(UUID.randomUUID(), "collection", "my_file.txt").get());
+        assertFalse("Expect not found in another collection", cache.get(UUID.randomUUID(), "a_b", "c.txt").isPresent());
+    }
+
+    @Test
+    public void testExistsUsesFilename() {
+        final UUID id = UUID.randomUUID();
+        cache.put(id, "collection", pendingDownload(FILENAME, now.plusSeconds(30)));
+        final SecureFileMetadata metadata = mock(SecureFileMetadata.class);
+        when(metadata.getFilename()).thenReturn(FILENAME);
+
+        assertTrue(cache.exists(id, "collection", metadata));
+        assertFalse(cache.exists(UUID.randomUUID(), "collection", metadata));
+    }
+
+    @Test
+    public void testCleanRemovesBothIndexEntries() {
+        final UUID id = UUID.randomUUID();
+        cache.put(id, "collection", pendingDownload(FILENAME, now.minusSeconds(1)));
+        cache.clean();
+
+        assertFalse(cache.get(id, "collection", FILENAME).isPresent());
+        assertFalse(cache.get(UUID.randomUUID(), "collection", FILENAME).isPresent());
+    }
+
+    @Test
+    public void testExpiredDownloadIsRemovedOnNextUse() {
+        final UUID id = UUID.randomUUID();
+        cache.put(id, "collection", pendingDownload(FILENAME, now.minusSeconds(1)));
+
+        assertFalse(cache.get(id, "collection", FILENAME).isPresent());
+        assertEquals(1L, metric("expirations"));
+        assertEquals(0L, metric("residentBytes"));
+        assertEquals(1L, metric("misses"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedDownloadIsEvictedWhenFull() {
+        cache.configureMaxBytes(10);
+        final UUID[] ids = { UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID() };
+        cache.put(ids[0], "collection", pendingDownload("0.gif", now.plusSeconds(30)));
+        cache.put(ids[1], "collection", pendingDownload("1.gif", now.plusSeconds(30)));
+        cache.put(ids[2], "collection", pendingDownload("2.gif", now.plusSeconds(30)));
+        assertTrue(cache.get(ids[0], "collection", "0.gif").isPresent());
+        cache.put(ids[3], "collection", pendingDownload("3.gif", now.plusSeconds(30)));
+
+        assertFalse("Expect least recently used evicted", cache.get(ids[1], "collection", "1.gif").isPresent());
+        assertTrue(cache.get(ids[0], "collection", "0.gif").isPresent());
+        assertTrue(cache.get(ids[3], "collection", "3.gif").isPresent());
+        assertEquals(1L, metric("evictions"));
+        assertEquals(9L, metric("residentBytes"));
+        assertEquals(3, metric("entries"));
+    }
+
+    @Test
+    public void testDeferredDownloadsAreEvictedWhenThereAreTooMany() {
+        cache.configureMaxEntries(2);
+        final UUID[] ids = { UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID() };
+        for (int i = 0; i < ids.length; i++) {
+            final String filename = i + ".gif";
+            cache.put(ids[i], "collection", PendingDownload.deferred(MediaType.IMAGE_GIF, new StoredFileReference(filename, now, false),
+                    () -> { throw new AssertionError("Content should not be read"); }, 3, now.plusSeconds(30), null));
+        }
+
+        assertFalse("Expect least recently used evicted", cache.get(ids[0], "collection", "0.gif").isPresent());
+        assertTrue(cache.get(ids[1], "collection", "1.gif").isPresent());
+        assertTrue(cache.get(ids[2], "collection", "2.gif").isPresent());
+        assertEquals(1L, metric("evictions"));
+        assertEquals(0L, metric("residentBytes"));
+        assertEquals(2, metric("entries"));
+    }
+
+    @Test
+    public void testEvictedDownloadIsNotKeptUntilItsPurgeTime() throws IllegalAccessException {
+        cache.configureMaxBytes(3);
+        final PendingDownload evicted = pendingDownload("0.gif", now.plusSeconds(30));
+        cache.put(UUID.randomUUID(), "collection", evicted);
+        final UUID replacedId = UUID.randomUUID();
+        final PendingDownload replaced = pendingDownload("1.gif", now.plusSeconds(30));
+        cache.put(replacedId, "collection", replaced);
+        cache.put(replacedId, "collection", pendingDownload("1.gif", now.plusSeconds(30)));
+
+        assertNotHeldForExpiry("Expect evicted download not held", evicted);
+        assertNotHeldForExpiry("Expect replaced download not held", replaced);
+        assertEquals(3L, metric("residentBytes"));
+    }
+
+    /**
+     * Checks that no entry waiting in the cache's expiry queue refers strongly to the download.
+     */
+    private void assertNotHeldForExpiry(String message, PendingDownload pendingDownload) throws IllegalAccessException {
+        final Collection<?> expiryQueue = (Collection<?>) ReflectionTestUtils.getField(cache, "expiryQueue");
+        assertFalse("Expect downloads still queued for expiry", expiryQueue.isEmpty());
+        for (Object entry : expiryQueue) {
+            for (Field field : entry.getClass().getDeclaredFields()) {
+                field.setAccessible(true);
+                assertNotSame(message, pendingDownload, field.get(entry));
+            }
+        }
+    }
+
+    @Test
+    public void testDownloadLargerThanLimitIsStillHeld() {
+        cache.configureMaxBytes(2);
+        final UUID id = UUID.randomUUID();
+        cache.put(id, "collection", pendingDownload(FILENAME, now.plusSeconds(30)));
+
+        assertTrue(cache.get(id, "collection", FILENAME).isPresent());
+        assertEquals(1L, metric("hits"));
+    }
+
+    @Test
+    public void testOffHeapDownloadIsHeldInFileUntilEvicted() throws IOException {
+        final File directory = temporaryFolder.newFolder();
+        cache.configureOffHeap(true, directory.getPath());
+        cache.configureMaxBytes(3);
+        final UUID id = UUID.randomUUID();
+        cache.put(id, "collection", pendingDownload(FILENAME, now.plusSeconds(30)));
+
+        assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get(id, "collection", FILENAME).get().getContent());
+        assertEquals("Expect content in a file", 1, directory.list().length);
+
+        cache.put(UUID.randomUUID(), "collection", pendingDownload("other.gif", now.plusSeconds(30)));
+        assertEquals("Expect evicted download's file deleted", 1, directory.list().length);
+        cache.releaseAll();
+        assertEquals("Expect all files deleted", 0, directory.list().length);
+    }
+
+    private Number metric(String name) {
+        return cache.metrics().stream()
+                .filter(metric -> metric.getName().equals("files.download.cache." + name))
+                .findFirst().get().getValue();
+    }
+}
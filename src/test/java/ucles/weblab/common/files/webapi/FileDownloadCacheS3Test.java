@@ -0,0 +1,232 @@
+package ucles.weblab.common.files.webapi;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.MediaType;
+import ucles.weblab.common.files.blob.api.Blob;
+import ucles.weblab.common.files.blob.api.BlobId;
+import ucles.weblab.common.files.blob.api.BlobNotFoundException;
+import ucles.weblab.common.files.blob.api.BlobStoreResult;
+import ucles.weblab.common.files.blob.api.BlobStoreService;
+import ucles.weblab.common.files.domain.SecureFileMetadata;
+import ucles.weblab.common.files.domain.s3.BlobStoreServiceS3;
+import ucles.weblab.common.files.domain.s3.S3StandIn;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @since 18/10/26
+ */
+public class FileDownloadCacheS3Test {
+    private static final String FILENAME = "nonsense picture.gif";
+    private final Instant now = Instant.now();
+    private final BlobStoreService blobStoreService = mock(BlobStoreService.class);
+    private FileDownloadCacheS3 cache;
+
+    @Before
+    public void setUp() {
+        cache = new FileDownloadCacheS3(blobStoreService);
+        cache.configureCacheExpiry(30);
+        cache.configureClock(Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    private PendingDownload storeDownload(UUID id, Instant purgeTime) throws Exception {
+        final PendingDownload pendingDownload = new PendingDownload(MediaType.IMAGE_GIF, FILENAME, new byte[] { 1, 2, 3 }, purgeTime, null);
+        final BlobId blobId = new BlobId(FileDownloadCacheS3.DOWNLOAD_PREFIX + cache.createCacheKey(id, "collection", FILENAME));
+        when(blobStoreService.putBlob(eq(blobId), any(), any(ByteBuffer.class), any()))
+                .thenReturn(Optional.of(new BlobStoreResult(blobId, blobId.getId(), "blobs", purgeTime, "")));
+        when(blobStoreService.getUrl(eq(blobId), any())).thenReturn(Optional.of(URI.create("https://s3/" + blobId.getId())));
+        cache.put(id, "collection", pendingDownload);
+        return pendingDownload;
+    }
+
+    @Test
+    public void testLatestDownloadFoundByFilenameWithoutGoingToS3() throws Exception {
+        final UUID id = UUID.randomUUID();
+        storeDownload(id, now.plusSeconds(30));
+
+        final PendingDownload found = cache.get(UUID.randomUUID(), "collection", FILENAME).get();
+        assertEquals("Expect URL of latest download", URI.create("https://s3/" + FileDownloadCacheS3.DOWNLOAD_PREFIX + cache.createCacheKey(id, "collection", FILENAME)), found.getUrl());
+        assertTrue("Expect download known to exist", cache.exists(id, "collection", secureFileMetadata()));
+        verify(blobStoreService, never()).openBlob(any());
+        verify(blobStoreService, never()).exists(any());
+        verify(blobStoreService, never()).getBlobWithPartBlobId(any(), any(), anyBoolean());
+    }
+
+    @Test
+    public void testDeferredDownloadStreamedIntoS3() throws Exception {
+        final UUID id = UUID.randomUUID();
+        final BlobId blobId = new BlobId(FileDownloadCacheS3.DOWNLOAD_PREFIX + cache.createCacheKey(id, "collection", FILENAME));
+        final ByteArrayInputStream content = new ByteArrayInputStream(new byte[] { 1, 2, 3 });
+        final PendingDownload pendingDownload = PendingDownload.deferred(MediaType.IMAGE_GIF,
+                new StoredFileReference(FILENAME, now, false), () -> content, 3, now.plusSeconds(30), null);
+        when(blobStoreService.putBlob(eq(blobId), any(), any(InputStream.class), anyLong(), any()))
+                .thenReturn(Optional.of(new BlobStoreResult(blobId, blobId.getId(), "blobs", now.plusSeconds(30), "")));
+
+        assertTrue("Expect download stored", cache.put(id, "collection", pendingDownload).isPresent());
+        verify(blobStoreService).putBlob(blobId, "image/gif", content, 3L, now.plusSeconds(30));
+        verify(blobStoreService, never()).putBlob(eq(blobId), any(), any(ByteBuffer.class), any());
+    }
+
+    @Test
+    public void testLatestDownloadReadFromS3WhenNotIndexed() throws Exception {
+        cache.configureLatestDownloadIndex(0);
+        final UUID id = UUID.randomUUID();
+        storeDownload(id, now.plusSeconds(30));
+
+        final ArgumentCaptor<InputStream> latest = ArgumentCaptor.forClass(InputStream.class);
+        final BlobId latestId = new BlobId(FileDownloadCacheS3.LATEST_DOWNLOAD_PREFIX + "collection/nonsense+picture.gif");
+        verify(blobStoreService).putBlob(eq(latestId), eq("text/plain"), latest.capture(), anyInt());
+        when(blobStoreService.openBlob(latestId)).thenReturn(latest.getValue());
+
+        final PendingDownload found = cache.get(UUID.randomUUID(), "collection", FILENAME).get();
+        assertEquals("Expect URL of latest download", URI.create("https://s3/" + FileDownloadCacheS3.DOWNLOAD_PREFIX + cache.createCacheKey(id, "collection", FILENAME)), found.getUrl());
+        assertEquals("Expect content type recorded", MediaType.IMAGE_GIF, found.getContentType());
+        verify(blobStoreService, never()).getBlobWithPartBlobId(any(), any(), anyBoolean());
+    }
+
+    @Test
+    public void testLatestDownloadsOfDifferentFilesDoNotCollide() throws Exception {
+        when(blobStoreService.openBlob(any())).thenThrow(new BlobNotFoundException("Not found"));
+        final String[][] files = { { "a_b", "c" }, { "a", "b_c" }, { "x", "y z" }, { "x", "y_z" }, { "x/y", "z" }, { "x", "y/z" } };
+        for (int i = 0; i < files.length; i += 2) {
+            final UUID id = UUID.randomUUID();
+            final BlobId blobId = new BlobId(FileDownloadCacheS3.DOWNLOAD_PREFIX + cache.createCacheKey(id, files[i][0], files[i][1]));
+            when(blobStoreService.putBlob(eq(blobId), any(), any(ByteBuffer.class), any()))
+                    .thenReturn(Optional.of(new BlobStoreResult(blobId, blobId.getId(), "blobs", now.plusSeconds(30), "")));
+            cache.put(id, files[i][0], new PendingDownload(MediaType.IMAGE_GIF, files[i][1], new byte[] { 1 }, now.plusSeconds(30), null));
+
+            assertTrue("Expect download found", cache.get(UUID.randomUUID(), files[i][0], files[i][1]).isPresent());
+            assertFalse("Expect no download of a different file", cache.get(UUID.randomUUID(), files[i + 1][0], files[i + 1][1]).isPresent());
+        }
+
+        final ArgumentCaptor<BlobId> latestIds = ArgumentCaptor.forClass(BlobId.class);
+        verify(blobStoreService, times(3)).putBlob(latestIds.capture(), eq("text/plain"), any(InputStream.class), anyInt());
+        verify(blobStoreService).openBlob(new BlobId(FileDownloadCacheS3.LATEST_DOWNLOAD_PREFIX + "a/b_c"));
+        verify(blobStoreService).openBlob(new BlobId(FileDownloadCacheS3.LATEST_DOWNLOAD_PREFIX + "x/y_z"));
+        verify(blobStoreService).openBlob(new BlobId(FileDownloadCacheS3.LATEST_DOWNLOAD_PREFIX + "x/y%2Fz"));
+        assertEquals("Expect a record of each file's latest download", Arrays.asList(
+                new BlobId(FileDownloadCacheS3.LATEST_DOWNLOAD_PREFIX + "a_b/c"),
+                new BlobId(FileDownloadCacheS3.LATEST_DOWNLOAD_PREFIX + "x/y+z"),
+                new BlobId(FileDownloadCacheS3.LATEST_DOWNLOAD_PREFIX + "x%2Fy/z")), latestIds.getAllValues());
+    }
+
+    @Test
+    public void testNoDownloadFoundWhenNeverStored() throws Exception {
+        when(blobStoreService.openBlob(any())).thenThrow(new BlobNotFoundException("Not found"));
+
+        assertFalse("Expect no download", cache.get(UUID.randomUUID(), "collection", FILENAME).isPresent());
+    }
+
+    @Test
+    public void testUrlsLastUntilDownloadExpires() throws Exception {
+        final UUID id = UUID.randomUUID();
+        final Instant purgeTime = now.plusSeconds(20);
+        storeDownload(id, purgeTime);
+        final BlobId blobId = new BlobId(FileDownloadCacheS3.DOWNLOAD_PREFIX + cache.createCacheKey(id, "collection", FILENAME));
+
+        cache.getUrl(id, "collection", FILENAME);
+        verify(blobStoreService).getUrl(blobId, now.plusSeconds(30));
+        cache.get(UUID.randomUUID(), "collection", FILENAME);
+        verify(blobStoreService).getUrl(blobId, purgeTime);
+    }
+
+    @Test
+    public void testExpiredLatestDownloadNotFound() throws Exception {
+        storeDownload(UUID.randomUUID(), now.minusSeconds(1));
+
+        assertFalse("Expect expired download not found", cache.get(UUID.randomUUID(), "collection", FILENAME).isPresent());
+    }
+
+    private SecureFileMetadata secureFileMetadata() {
+        final SecureFileMetadata metadata = mock(SecureFileMetadata.class);
+        when(metadata.getFilename()).thenReturn(FILENAME);
+        return metadata;
+    }
+
+    @Test
+    public void testCleanRemovesDownloadsWrittenBeforeExpiry() throws Exception {
+        when(blobStoreService.removeBlobsModifiedBefore(any(), any())).thenReturn(Optional.of(3L));
+
+        cache.clean();
+
+        verify(blobStoreService).removeBlobsModifiedBefore(FileDownloadCacheS3.DOWNLOAD_PREFIX, now.minusSeconds(30));
+        verify(blobStoreService).removeBlobsModifiedBefore(FileDownloadCacheS3.LATEST_DOWNLOAD_PREFIX, now.minusSeconds(30));
+        verify(blobStoreService, never()).listBlobs(false);
+    }
+
+    @Test
+    public void testCleanLeavesLongerLivedBlobsInS3() throws Exception {
+        try (S3StandIn s3 = new S3StandIn()) {
+            final BlobStoreServiceS3 s3BlobStoreService = new BlobStoreServiceS3(s3.client(), "test", "eu-west-1", "files", "blobs");
+            final FileDownloadCacheS3 s3Cache = new FileDownloadCacheS3(s3BlobStoreService);
+            s3Cache.configureCacheExpiry(30);
+            final Instant longAgo = Instant.now().minus(1, ChronoUnit.DAYS);
+            final Map<String, String> expiryNextYear = Collections.singletonMap("x-amz-meta-expiry", longAgo.plus(365, ChronoUnit.DAYS).toString());
+            s3.putObject("files-test", "blobs/collection-1", new byte[] { 1 }, expiryNextYear, longAgo);
+            s3.putObject("files-test", "blobs/downloads/expired.gif", new byte[] { 1 }, Collections.emptyMap(), longAgo);
+            s3.putObject("files-test", "blobs/latest/expired.gif", new byte[] { 1 }, Collections.emptyMap(), longAgo);
+            s3.putObject("files-test", "blobs/downloads/current.gif", new byte[] { 1 }, Collections.emptyMap(), Instant.now());
+
+            s3Cache.clean();
+
+            assertNotNull("Expect collection kept", s3.getObject("files-test", "blobs/collection-1"));
+            assertNull("Expect expired download removed", s3.getObject("files-test", "blobs/downloads/expired.gif"));
+            assertNull("Expect record of expired download removed", s3.getObject("files-test", "blobs/latest/expired.gif"));
+            assertNotNull("Expect current download kept", s3.getObject("files-test", "blobs/downloads/current.gif"));
+            s3BlobStoreService.dispose();
+        }
+    }
+
+    @Test
+    public void testCleanLeavesExpiryToS3WhenDisabled() throws Exception {
+        cache.configureClean(false);
+
+        cache.clean();
+
+        verify(blobStoreService, never()).removeBlobsModifiedBefore(any(), any());
+        verify(blobStoreService, never()).listBlobs(anyBoolean());
+    }
+
+    @Test
+    public void testCleanFallsBackToCheckingEachBlobsExpiry() throws Exception {
+        final Blob expired = new Blob(new BlobId("expired"), "text/plain", new byte[0], now.minusSeconds(1), null);
+        final Blob current = new Blob(new BlobId("current"), "text/plain", new byte[0], now.plusSeconds(1), null);
+        when(blobStoreService.removeBlobsModifiedBefore(any(), any())).thenReturn(Optional.empty());
+        when(blobStoreService.listBlobs(false)).thenReturn(Arrays.asList(expired, current));
+
+        cache.clean();
+
+        verify(blobStoreService).removeBlob(expired.getId());
+        verify(blobStoreService, never()).removeBlob(current.getId());
+    }
+}
@@ -0,0 +1,134 @@
+package ucles.weblab.common.files.webapi;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.util.StreamUtils;
+import ucles.weblab.common.files.domain.SecureFileCollectionEntity;
+import ucles.weblab.common.files.domain.SecureFileCollectionRepository;
+import ucles.weblab.common.files.domain.SecureFileEntity;
+import ucles.weblab.common.files.domain.SecureFileRepository;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Optional;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static ucles.weblab.common.test.webapi.WebTestSupport.setUpRequestContext;
+
+/**
+ * @since 18/10/26
+ */
+public class FileDownloadCacheSignedTokenTest {
+    private static final String BUCKET = "bucket";
+    private static final String FILENAME = "nonsense picture.gif";
+    private static final byte[] SECRET_KEY = "0123456789012345".getBytes(UTF_8);
+
+    private final Instant now = Instant.now();
+    private final byte[] content = { 1, 5, 3, 8, 1, 7, 3, 9, 4, 6, 7 };
+    private final SecureFileCollectionRepository collectionRepository = mock(SecureFileCollectionRepository.class);
+    private final SecureFileRepository fileRepository = mock(SecureFileRepository.class);
+    private final SecureFileEntity file = mock(SecureFileEntity.class);
+    private final UUID id = UUID.randomUUID();
+
+    @Before
+    public void setUp() {
+        setUpRequestContext();
+        final SecureFileCollectionEntity collection = mock(SecureFileCollectionEntity.class);
+        when(collectionRepository.findOneByBucket(BUCKET)).thenReturn(collection);
+        when(fileRepository.findOneByCollectionAndFilename(collection, FILENAME)).thenReturn((Optional) Optional.of(file));
+        when(file.getFilename()).thenReturn(FILENAME);
+        when(file.getContentType()).thenReturn(MediaType.IMAGE_GIF_VALUE);
+        when(file.getCreatedDate()).thenReturn(now.minusSeconds(3600));
+        when(file.getLength()).thenReturn((long) content.length);
+        when(file.getPlainData()).thenReturn(content);
+    }
+
+    private FileDownloadCacheSignedToken newCache(byte[] secretKey, Instant time) {
+        final FileDownloadCacheSignedToken cache = new FileDownloadCacheSignedToken(collectionRepository, fileRepository, secretKey);
+        cache.configureCacheExpiry(30);
+        cache.configureClock(Clock.fixed(time, ZoneOffset.UTC));
+        return cache;
+    }
+
+    /**
+     * Issues a link from one node, returning the token from it.
+     */
+    private String issueToken() {
+        final FileDownloadCacheSignedToken cache = newCache(SECRET_KEY, now);
+        final StoredFileReference storedFile = StoredFileReference.of(file, false);
+        cache.put(id, BUCKET, PendingDownload.deferred(MediaType.IMAGE_GIF, storedFile, () -> {
+            throw new AssertionError("Content should not be read when the link is issued");
+        }, content.length, now.plus(cache.getExpiry()), null));
+        final URI link = cache.getRedirectUrl(id, BUCKET, FILENAME);
+        assertNull("Link should only be collected once", cache.getRedirectUrl(id, BUCKET, FILENAME));
+        final String idSegment = link.getPath().split("/")[3];
+        assertTrue("Link should carry the ID then a token", idSegment.startsWith(id.toString() + DownloadController.TOKEN_SEPARATOR));
+        return idSegment.substring(id.toString().length() + 1);
+    }
+
+    @Test
+    public void testTokenIsAcceptedByAnotherNode() throws IOException {
+        final String token = issueToken();
+        final FileDownloadCacheSignedToken otherNode = newCache(SECRET_KEY, now.plusSeconds(10));
+        final PendingDownload download = otherNode.get(id, BUCKET, FILENAME, token).get();
+        assertEquals(MediaType.IMAGE_GIF, download.getContentType());
+        assertEquals(content.length, download.getContentLength());
+        assertArrayEquals(content, StreamUtils.copyToByteArray(download.openContent()));
+        assertFalse("Download should not be found without the token", otherNode.get(id, BUCKET, FILENAME).isPresent());
+    }
+
+    @Test
+    public void testExpiredTokenIsRejected() {
+        final String token = issueToken();
+        assertFalse(newCache(SECRET_KEY, now.plusSeconds(60)).get(id, BUCKET, FILENAME, token).isPresent());
+    }
+
+    @Test
+    public void testTamperedTokenIsRejected() {
+        final String token = issueToken();
+        final FileDownloadCacheSignedToken otherNode = newCache(SECRET_KEY, now);
+        final String later = (Long.parseLong(token.substring(0, token.indexOf('.'))) + 3600) + token.substring(token.indexOf('.'));
+        assertFalse("Changed expiry", otherNode.get(id, BUCKET, FILENAME, later).isPresent());
+        assertFalse("Changed mode", otherNode.get(id, BUCKET, FILENAME, token.replace(".p.", ".e.")).isPresent());
+        assertFalse("Different file", otherNode.get(id, BUCKET, "other.gif", token).isPresent());
+        assertFalse("Different ID", otherNode.get(UUID.randomUUID(), BUCKET, FILENAME, token).isPresent());
+        assertFalse("Malformed", otherNode.get(id, BUCKET, FILENAME, "rubbish").isPresent());
+        assertFalse("Different key", newCache("5432109876543210".getBytes(UTF_8), now).get(id, BUCKET, FILENAME, token).isPresent());
+    }
+
+    @Test
+    public void testTokenWithDatesOutOfRangeIsRejected() {
+        final String token = issueToken();
+        final String signature = token.substring(token.lastIndexOf('.'));
+        final FileDownloadCacheSignedToken otherNode = newCache(SECRET_KEY, now);
+        assertFalse("Expiry out of range", otherNode.get(id, BUCKET, FILENAME, "99999999999999999.e.1_0" + signature).isPresent());
+        assertFalse("Created date out of range", otherNode.get(id, BUCKET, FILENAME,
+                now.getEpochSecond() + ".p." + Long.MAX_VALUE + "_0" + signature).isPresent());
+        assertFalse("Nanoseconds overflowing", otherNode.get(id, BUCKET, FILENAME,
+                now.getEpochSecond() + ".p." + Long.MAX_VALUE + "_" + Long.MAX_VALUE + signature).isPresent());
+    }
+
+    @Test
+    public void testTokenForReplacedFileIsRejected() {
+        final String token = issueToken();
+        when(file.getCreatedDate()).thenReturn(now);
+        assertFalse(newCache(SECRET_KEY, now).get(id, BUCKET, FILENAME, token).isPresent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDownloadHeldInMemoryIsRefused() {
+        newCache(SECRET_KEY, now).put(id, BUCKET, new PendingDownload(MediaType.IMAGE_GIF, FILENAME, content, now.plusSeconds(30), null));
+    }
+}
@@ -0,0 +1,127 @@
+package ucles.weblab.common.files.webapi;
+
+import com.github.fakemongo.Fongo;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+import ucles.weblab.common.files.domain.AesGcmEncryptionStrategy;
+import ucles.weblab.common.files.domain.EncryptionService;
+import ucles.weblab.common.files.domain.EncryptionServiceImpl;
+import ucles.weblab.common.files.domain.FilesBuilders;
+import ucles.weblab.common.files.domain.SecureFileCollectionRepository;
+import ucles.weblab.common.files.domain.SecureFileEntity;
+import ucles.weblab.common.files.domain.mongodb.FilesFactoryMongo;
+import ucles.weblab.common.files.domain.mongodb.SecureFileCollectionEntityMongo;
+import ucles.weblab.common.files.domain.mongodb.SecureFileRepositoryMongo;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static ucles.weblab.common.test.webapi.WebTestSupport.setUpRequestContext;
+
+/**
+ * Tests that references and signed links to files stored in MongoDB stop working once the file is replaced.
+ *
+ * @since 18/10/26
+ */
+public class StoredFileReferenceTest {
+    private static final String FILENAME = "replaced.txt";
+
+    private final FilesBuilders filesBuilders = new FilesBuilders();
+    private final FilesFactoryMongo filesFactory = new FilesFactoryMongo();
+    private final EncryptionService encryptionService = new EncryptionServiceImpl(
+            Collections.singletonList(new AesGcmEncryptionStrategy("some-test-aad")), "0123456789012345".getBytes(UTF_8));
+    private SecureFileRepositoryMongo secureFileRepository;
+    private SecureFileCollectionEntityMongo collection;
+
+    @Before
+    public void setUp() {
+        final MongoTemplate mongoTemplate = new MongoTemplate(new Fongo("test").getMongo(), "test");
+        secureFileRepository = new SecureFileRepositoryMongo(mongoTemplate, encryptionService);
+        // As there is no application context to configure it
+        ReflectionTestUtils.invokeMethod(secureFileRepository, "configureCipher", "AES-GCM");
+        collection = filesFactory.newSecureFileCollection(filesBuilders.secureFileCollectionBuilder().get()
+                .displayName("Replacements")
+                .purgeInstant(Optional.of(Instant.now().plus(1, ChronoUnit.DAYS)))
+                .get());
+        mongoTemplate.save(collection);
+    }
+
+    @Test
+    public void testReferenceToReplacedMongoFileIsNotFound() throws IOException, InterruptedException {
+        final SecureFileEntity original = saveFile("Original");
+        assertNotNull("Expect upload date read as the created date", original.getCreatedDate());
+        final StoredFileReference storedFile = StoredFileReference.of(original, false);
+        assertTrue("Expect original found", storedFile.find(secureFileRepository, collection).isPresent());
+
+        // The upload date is only precise to the millisecond
+        while (!Instant.now().truncatedTo(ChronoUnit.MILLIS).isAfter(original.getCreatedDate())) {
+            Thread.sleep(1);
+        }
+        secureFileRepository.delete(original);
+        saveFile("Replacement");
+
+        assertFalse("Expect replacement not found through the old reference", storedFile.find(secureFileRepository, collection).isPresent());
+        try (InputStream in = storedFile.open(secureFileRepository, collection)) {
+            fail("Expect replacement not opened through the old reference, but read "
+                    + new String(StreamUtils.copyToByteArray(in), UTF_8));
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        final SecureFileEntity replacement = secureFileRepository.findOneByCollectionAndFilename(collection, FILENAME).get();
+        assertTrue("Expect replacement found through a new reference",
+                StoredFileReference.of(replacement, false).find(secureFileRepository, collection).isPresent());
+    }
+
+    @Test
+    public void testSignedLinkToReplacedMongoFileIsRejected() throws InterruptedException {
+        setUpRequestContext();
+        final SecureFileCollectionRepository collectionRepository = mock(SecureFileCollectionRepository.class);
+        when(collectionRepository.findOneByBucket(collection.getBucket())).thenReturn(collection);
+        final FileDownloadCacheSignedToken cache = new FileDownloadCacheSignedToken(collectionRepository, secureFileRepository,
+                "0123456789012345".getBytes(UTF_8));
+        cache.configureCacheExpiry(30);
+        final SecureFileEntity original = saveFile("Original");
+        final UUID id = UUID.randomUUID();
+        cache.put(id, collection.getBucket(), PendingDownload.deferred(MediaType.TEXT_PLAIN, StoredFileReference.of(original, false),
+                () -> null, original.getLength(), Instant.now().plus(cache.getExpiry()), null));
+        final String idSegment = cache.getRedirectUrl(id, collection.getBucket(), FILENAME).getPath().split("/")[3];
+        final String token = idSegment.substring(id.toString().length() + 1);
+        assertTrue("Expect link to original accepted", cache.get(id, collection.getBucket(), FILENAME, token).isPresent());
+
+        while (!Instant.now().truncatedTo(ChronoUnit.MILLIS).isAfter(original.getCreatedDate())) {
+            Thread.sleep(1);
+        }
+        secureFileRepository.delete(original);
+        saveFile("Replacement");
+
+        assertFalse("Expect link to original rejected once replaced", cache.get(id, collection.getBucket(), FILENAME, token).isPresent());
+    }
+
+    private SecureFileEntity saveFile(String contents) {
+        final byte[] plainData = contents.getBytes(UTF_8);
+        return secureFileRepository.save(filesFactory.newSecureFile(collection, filesBuilders.secureFileBuilder().get()
+                .filename(FILENAME)
+                .contentType("text/plain")
+                .length(plainData.length)
+                .plainData(plainData)
+                .createdDate(Instant.now())
+                .get()));
+    }
+}